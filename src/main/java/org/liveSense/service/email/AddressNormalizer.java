@@ -0,0 +1,149 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.liveSense.service.email;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+
+/**
+ * Converts address objects (InternetAddress, String, arrays and collections of them) to InternetAddress.
+ * The parsed addresses are cached by their source string, so the same recipients and senders are parsed only once.
+ * Strings can contain comma separated address lists, the personal name of non ASCII addresses is encoded by RFC 2047.
+ * The addresses are parsed strictly and validated, so a malformed address fails at enqueue, not at delivery.
+ * Cached addresses are cloned on return, so the callers can not modify the cache.
+ */
+public class AddressNormalizer {
+
+	private static final InternetAddress[] EMPTY = new InternetAddress[0];
+
+	private final String charset;
+	private final LruCache<String, InternetAddress[]> cache;
+
+	/**
+	 * @param charset - The charset of encoded personal names
+	 * @param cacheSize - The maximum number of cached address strings. 0 disables the cache.
+	 */
+	public AddressNormalizer(String charset, long cacheSize) {
+		this.charset = charset;
+		this.cache = new LruCache<String, InternetAddress[]>(cacheSize);
+	}
+
+	/**
+	 * Parse an address string. It can be a comma separated list.
+	 * @param address - The address
+	 * @return The parsed addresses
+	 * @throws AddressException
+	 * @throws UnsupportedEncodingException
+	 */
+	public InternetAddress[] parse(String address) throws AddressException, UnsupportedEncodingException {
+		List<InternetAddress> list = new ArrayList<InternetAddress>(1);
+		parse(address, list);
+		return list.toArray(new InternetAddress[list.size()]);
+	}
+
+	private void parse(String address, List<InternetAddress> list) throws AddressException, UnsupportedEncodingException {
+		address = address.trim();
+		if (address.length() == 0) return;
+
+		InternetAddress[] parsed = cache.get(address);
+		if (parsed == null) {
+			parsed = InternetAddress.parse(address, true);
+			for (InternetAddress addr : parsed) {
+				addr.validate();
+			}
+			if (!TransferEncodingSelector.isAscii(address)) {
+				for (InternetAddress addr : parsed) {
+					if (addr.getPersonal() != null) {
+						addr.setPersonal(addr.getPersonal(), charset);
+					}
+				}
+			}
+			cache.put(address, parsed, 1);
+		}
+		for (InternetAddress addr : parsed) {
+			list.add((InternetAddress) addr.clone());
+		}
+	}
+
+	/**
+	 * Convert an address object to InternetAddress array in one pass.
+	 * @param address - InternetAddress, String or an array or collection of them. Other objects are converted by toString().
+	 * @return The addresses, empty array if the address is null
+	 * @throws AddressException
+	 * @throws UnsupportedEncodingException
+	 */
+	public InternetAddress[] normalize(Object address) throws AddressException, UnsupportedEncodingException {
+		if (address == null) return EMPTY;
+		if (address instanceof InternetAddress[]) return (InternetAddress[]) address;
+		List<InternetAddress> list = new ArrayList<InternetAddress>();
+		normalize(address, list);
+		return list.toArray(new InternetAddress[list.size()]);
+	}
+
+	@SuppressWarnings("rawtypes")
+	private void normalize(Object address, List<InternetAddress> list) throws AddressException, UnsupportedEncodingException {
+		if (address == null) {
+			return;
+		} else if (address instanceof InternetAddress) {
+			list.add((InternetAddress) address);
+		} else if (address instanceof String) {
+			parse((String) address, list);
+		} else if (address instanceof Object[]) {
+			for (Object o : (Object[]) address) {
+				normalize(o, list);
+			}
+		} else if (address instanceof Collection) {
+			for (Object o : (Collection) address) {
+				normalize(o, list);
+			}
+		} else {
+			parse(address.toString(), list);
+		}
+	}
+
+	/**
+	 * @return The lower case domain of address or empty string if it has no domain
+	 */
+	public static String getDomain(InternetAddress address) {
+		return getDomain(address.getAddress());
+	}
+
+	/**
+	 * @return The lower case domain of address or empty string if it has no domain
+	 */
+	public static String getDomain(String address) {
+		int at = address != null ? address.lastIndexOf('@') : -1;
+		return at < 0 ? "" : address.substring(at + 1).toLowerCase();
+	}
+
+	/**
+	 * Clear the cache.
+	 */
+	public void clear() {
+		cache.clear();
+	}
+
+	@Override
+	public String toString() {
+		return cache.toString();
+	}
+}
@@ -0,0 +1,92 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.liveSense.service.email;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.activation.DataSource;
+import javax.activation.MimetypesFileTypeMap;
+import javax.jcr.Binary;
+import javax.jcr.RepositoryException;
+
+/**
+ * DataSource of a JCR binary. Only the reference of the binary is kept, every getInputStream() opens
+ * a new stream of it, so the MIME encoder streams the content without buffering it on the heap.
+ * The binary has to stay valid (its session open) until the message is written.
+ */
+public class BinaryDataSource implements DataSource {
+
+	private final Binary binary;
+	private final String fileName;
+	private String contentType;
+
+	/**
+	 * @param binary - The binary content
+	 * @param fileName - The file name. If the content type is not given it's guessed by the extension.
+	 * @param contentType - The content type or null
+	 */
+	public BinaryDataSource(Binary binary, String fileName, String contentType) {
+		this.binary = binary;
+		this.fileName = fileName != null ? fileName : "";
+
+		if (contentType == null && fileName != null)
+			contentType = new MimetypesFileTypeMap().getContentType(fileName);
+		if (contentType == null || contentType.equalsIgnoreCase(""))
+			contentType = "application/octet-stream";
+		this.contentType = contentType + "; name=\"" + fileName + "\"";
+	}
+
+	/**
+	 * Implements getContentType method from DataSource interface
+	 * @return Content-Type for MIME message header field
+	 */
+	public String getContentType() {
+		return contentType;
+	}
+
+	/**
+	 * Implements getInputStream method from DataSource interface
+	 * @return A new stream of the binary
+	 * @exception IOException
+	 */
+	public InputStream getInputStream() throws IOException {
+		try {
+			return binary.getStream();
+		} catch (RepositoryException e) {
+			throw new IOException("Could not read binary of " + fileName + " - " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Implements getName method from DataSource interface
+	 * @return The file name
+	 */
+	public String getName() {
+		return fileName;
+	}
+
+	/**
+	 * Implements getOutputStream method from DataSource interface. This method is
+	 * not in use.
+	 * @exception IOException is always thrown when this method is used.
+	 */
+	public OutputStream getOutputStream() throws IOException {
+		throw new IOException("BinaryDataSource does not support getOutputStream()");
+	}
+}
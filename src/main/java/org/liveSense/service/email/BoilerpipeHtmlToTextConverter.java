@@ -0,0 +1,37 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.liveSense.service.email;
+
+import de.l3s.boilerpipe.extractors.ArticleExtractor;
+
+/**
+ * HTML to text converter extracting the main article text with boilerpipe.
+ * It runs a full HTML parse and a classifier on every conversion and drops the non-article content
+ * (navigation, buttons, footers), so it suits to newsletter like content only.
+ */
+public class BoilerpipeHtmlToTextConverter implements HtmlToTextConverter {
+
+	public static final String NAME = "boilerpipe";
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String convert(String html) throws Exception {
+		return ArticleExtractor.getInstance().getText(html);
+	}
+}
@@ -0,0 +1,151 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.liveSense.service.email;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Progress of a bulk send. The counts are updated while the recipients are rendered and spooled,
+ * a recipient is counted as sent when its message is saved to the spool.
+ */
+public class BulkSendProgress {
+
+	private final AtomicInteger submitted = new AtomicInteger();
+	private final AtomicInteger sent = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+	private final AtomicInteger skipped = new AtomicInteger();
+
+	private final CountDownLatch done = new CountDownLatch(1);
+	private volatile boolean submitFinished = false;
+	private volatile boolean cancelled = false;
+	private volatile Throwable error;
+
+	/**
+	 * @return The number of recipients read from the recipient source so far
+	 */
+	public int getSubmitted() {
+		return submitted.get();
+	}
+
+	/**
+	 * @return The number of messages saved to the spool
+	 */
+	public int getSent() {
+		return sent.get();
+	}
+
+	/**
+	 * @return The number of recipients whose message could not be created or saved
+	 */
+	public int getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * @return The number of recipients skipped because the send was cancelled
+	 */
+	public int getSkipped() {
+		return skipped.get();
+	}
+
+	/**
+	 * @return The number of recipients in progress
+	 */
+	public int getPending() {
+		return submitted.get() - sent.get() - failed.get() - skipped.get();
+	}
+
+	/**
+	 * @return The error of reading the recipient source or null
+	 */
+	public Throwable getError() {
+		return error;
+	}
+
+	public boolean isDone() {
+		return done.getCount() == 0;
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * Stop the send. The recipients not rendered yet are skipped, the messages already spooled are sent.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * Wait for the end of send.
+	 * @throws InterruptedException
+	 */
+	public void await() throws InterruptedException {
+		done.await();
+	}
+
+	/**
+	 * Wait for the end of send.
+	 * @return true if the send is done, false if the timeout elapsed
+	 * @throws InterruptedException
+	 */
+	public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+		return done.await(timeout, unit);
+	}
+
+	void submitted(int count) {
+		submitted.addAndGet(count);
+	}
+
+	void sent(int count) {
+		sent.addAndGet(count);
+		checkDone();
+	}
+
+	void failed(int count) {
+		failed.addAndGet(count);
+		checkDone();
+	}
+
+	void skipped(int count) {
+		skipped.addAndGet(count);
+		checkDone();
+	}
+
+	void error(Throwable error) {
+		this.error = error;
+	}
+
+	void submitFinished() {
+		submitFinished = true;
+		checkDone();
+	}
+
+	private void checkDone() {
+		if (submitFinished && getPending() <= 0) {
+			done.countDown();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "submitted: " + getSubmitted() + " sent: " + getSent() + " failed: " + getFailed() + " skipped: " + getSkipped() + (isDone() ? " done" : "");
+	}
+}
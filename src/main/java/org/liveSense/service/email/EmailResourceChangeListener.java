@@ -34,15 +34,11 @@ import javax.jcr.observation.ObservationManager;
 
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
-import org.apache.felix.scr.annotations.ConfigurationPolicy;
-import org.apache.felix.scr.annotations.Properties;
-import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.ReferenceCardinality;
 import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.sling.api.resource.ResourceResolverFactory;
 import org.apache.sling.commons.osgi.OsgiUtil;
-import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.apache.sling.event.jobs.JobUtil;
 import org.apache.sling.jcr.api.SlingRepository;
 import org.osgi.service.component.ComponentContext;
@@ -54,33 +50,19 @@ import org.slf4j.LoggerFactory;
 /**
  * Observe the liveSense:email nodes for changes, and generate
  * send job when nodes are added/changed/deleted in spool.
+ * The spool folder, node type and property name are taken from the {@link JcrSpoolStore},
+ * so the observed folder is always the folder the mails are stored in.
  */
 @Component(label="%emailResourceChangeListener.name",
         description="%emailResourceChangeListener.description",
         immediate=true,
-        metatype=true,
-        configurationFactory=true,
-        policy=ConfigurationPolicy.OPTIONAL)
-@Properties(value={
-	    @Property(name=EmailResourceChangeListener.PARAM_EMAIL_SPOOL_PATH, 
-	    		label="%contentPathes.name", 
-	    		description="%contentPathes.description", 
-	    		value={EmailResourceChangeListener.DEFAULT_EMAIL_SPOOL_PATH}),
-	    @Property(name = EmailResourceChangeListener.PARAM_NODE_TYPE, 
-	    		label = "%nodeType.label", 
-	    		description = "%nodeType.description", 
-	    		value = {EmailResourceChangeListener.NODE_TYPE_EMAIL }),
-	    @Property(name = EmailResourceChangeListener.PARAM_PROPERTY_NAME, 
-	    		label = "%propertyName.label", 
-	    		description = "%propertyName.description", 
-	    		value =	EmailResourceChangeListener.DEFAULT_PROPERTY_NAME )
-})
+        metatype=false)
 
 public class EmailResourceChangeListener {
     private static final Logger log = LoggerFactory.getLogger(EmailResourceChangeListener.class);
 			
-    public static final String PARAM_EMAIL_SPOOL_PATH = EmailSendJobEventHandler.PARAM_SPOOL_FOLDER;
-    public static final String EMAIL_SPOOL_PATH = EmailSendJobEventHandler.DEFAULT_SPOOL_FOLDER;
+    public static final String PARAM_EMAIL_SPOOL_PATH = JcrSpoolStore.PARAM_SPOOL_FOLDER;
+    public static final String EMAIL_SPOOL_PATH = JcrSpoolStore.DEFAULT_SPOOL_FOLDER;
     public static final String DEFAULT_EMAIL_SPOOL_PATH = EMAIL_SPOOL_PATH;
 		
     public static final String PARAM_NODE_TYPE = "email.nodeType";
@@ -100,6 +82,8 @@ public class EmailResourceChangeListener {
     private EventAdmin eventAdmin;
 	@Reference(cardinality=ReferenceCardinality.MANDATORY_UNARY, policy=ReferencePolicy.DYNAMIC)
     ResourceResolverFactory resourceResolverFactory;
+	@Reference(cardinality=ReferenceCardinality.MANDATORY_UNARY, policy=ReferencePolicy.STATIC)
+    private JcrSpoolStore spoolStore;
 
     private ArrayList<PathEventListener> eventListeners = new ArrayList<PathEventListener>();
     
@@ -112,73 +96,59 @@ public class EmailResourceChangeListener {
     
     class PathEventListener implements EventListener {
 
-    	private void generateJobEvent(String eventType, String filePath, String fileName) {
-            if (!fileName.startsWith(".")) {
+    	private void generateJobEvent(String eventType, String mailPath) {
+            if (!getName(mailPath).startsWith(".")) {
             	try {
-               		log.info(">Generate email send event "+JobUtil.PROPERTY_JOB_TOPIC+" "+EMAIL_SEND_TOPIC+" for " +eventType+" "+filePath+" "+fileName);
+               		log.info(">Generate email send event "+JobUtil.PROPERTY_JOB_TOPIC+" "+EMAIL_SEND_TOPIC+" for " +eventType+" "+mailPath);
        	    		final Dictionary<String, Object> props = new Hashtable<String, Object>();
                         props.put(JobUtil.PROPERTY_JOB_TOPIC, EMAIL_SEND_TOPIC);
-           		props.put("resourcePath", "/"+filePath+"/"+fileName);
+           		props.put("resourcePath", mailPath);
            		props.put(PARAM_NODE_TYPE, nodeType);
            		props.put(PARAM_PROPERTY_NAME, propertyName);
 	    		org.osgi.service.event.Event emailSendJob = new org.osgi.service.event.Event(JobUtil.TOPIC_JOB, props);
 	    		eventAdmin.sendEvent(emailSendJob);
             	} catch (Exception e) {
-            		log.error("Error on JobEvent: "+filePath+"/"+fileName);
+            		log.error("Error on JobEvent: "+mailPath);
 				}
             }
     		
     	}
 
-    	private void removeJobEvent(String eventType, String filePath, String fileName) {
-            if (!fileName.startsWith(".")) {
-        		log.info(">Remove email send event "+org.apache.sling.event.jobs.JobUtil.PROPERTY_JOB_TOPIC+" "+EMAIL_REMOVE_TOPIC+" for " +eventType+" "+filePath+" "+fileName);
+    	private void removeJobEvent(String eventType, String mailPath) {
+            if (!getName(mailPath).startsWith(".")) {
+        		log.info(">Remove email send event "+org.apache.sling.event.jobs.JobUtil.PROPERTY_JOB_TOPIC+" "+EMAIL_REMOVE_TOPIC+" for " +eventType+" "+mailPath);
             	final Dictionary<String, Object> props = new Hashtable<String, Object>();
 	            props.put(JobUtil.PROPERTY_JOB_TOPIC, EMAIL_REMOVE_TOPIC);
-	    		props.put("resourcePath", "/"+filePath+"/"+fileName);
+	    		props.put("resourcePath", mailPath);
 	    		org.osgi.service.event.Event emailSendJob = new org.osgi.service.event.Event(JobUtil.TOPIC_JOB, props);
 	    		eventAdmin.sendEvent(emailSendJob);
             }   		
     	}
     	
+        /**
+         * The mails can be at any depth under the spool folder (see {@link SpoolLayout}), so the path
+         * of the mail is taken from the end of the event path: the node events are of the content node
+         * of the mail, the property events are of the properties of the content node.
+         */
         public void onEvent(EventIterator it) {
             while (it.hasNext()) {
                 Event event = it.nextEvent();
                 try {
 
                     if (event.getType() == Event.NODE_REMOVED || event.getType() == Event.NODE_ADDED) {
-                        String[] pathElements = event.getPath().split("/");
-
-                        StringBuffer sb = new StringBuffer();
-                        for (int i = 1; i < pathElements.length-2; i++) {
-                            if (i!=0) sb.append("/");
-                            sb.append(pathElements[i]);
-                        }
-                        String filePath = sb.toString().substring(1);
-                        String fileName = pathElements[pathElements.length-2];
-                        String parentFolder = pathElements[pathElements.length-3];
+                        String mailPath = getParentPath(event.getPath());
                         String eventType = (event.getType()==Event.NODE_ADDED ? "NODE_ADDED" : (event.getType()==Event.NODE_REMOVED ? "NODE_REMOVED" : "UNHANDLED_EVENT"));
                         if (event.getType() == Event.NODE_ADDED) {
-                        	generateJobEvent(eventType, filePath, fileName);
+                        	generateJobEvent(eventType, mailPath);
                         } else if (event.getType() == Event.NODE_REMOVED) {
-                        	removeJobEvent(eventType, filePath, fileName);
+                        	removeJobEvent(eventType, mailPath);
                         }
                     } else {
-                        String[] pathElements = event.getPath().split("/");
-
-                        StringBuffer sb = new StringBuffer();
-                        for (int i = 1; i < pathElements.length-3; i++) {
-                            if (i!=0) sb.append("/");
-                            sb.append(pathElements[i]);
-                        }
-                        String filePath = sb.toString().substring(1);
-                        String fileName = pathElements[pathElements.length-3];
-                        String parentFolder = pathElements[pathElements.length-4];
-
-                        String propertyName = pathElements[pathElements.length-1];
+                        String mailPath = getParentPath(getParentPath(event.getPath()));
+                        String propertyName = getName(event.getPath());
 
                         String eventType = (event.getType()==Event.PROPERTY_ADDED ? "PROPERTY_ADDED" : (event.getType()==Event.PROPERTY_CHANGED ? "PROPERTY_CHANGED" : (event.getType()==Event.PROPERTY_REMOVED ? "PROPERTY_REMOVED" : "UNHANDLED_EVENT")));
-                        if ("jcr:data".equals(propertyName)) generateJobEvent(eventType, filePath, fileName);
+                        if ("jcr:data".equals(propertyName)) generateJobEvent(eventType, mailPath);
                     }
                 } catch (Exception e) {
                     log.error(e.getMessage(), e);
@@ -186,6 +156,15 @@ public class EmailResourceChangeListener {
             }
         }
     }
+
+    private static String getParentPath(String path) {
+        int idx = path.lastIndexOf('/');
+        return idx > 0 ? path.substring(0, idx) : "/";
+    }
+
+    private static String getName(String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
     
 
     /**
@@ -196,18 +175,10 @@ public class EmailResourceChangeListener {
      */
     @Activate
     protected void activate(ComponentContext componentContext) throws RepositoryException {
-         // Setting up content path
-    	contentPathes = PropertiesUtil.toString(componentContext.getProperties().get(PARAM_EMAIL_SPOOL_PATH), DEFAULT_EMAIL_SPOOL_PATH);
-	
-    	// Cut leading and trailing /
-    	if (!contentPathes.startsWith("/")) contentPathes = "/"+contentPathes;
-    	if (contentPathes.endsWith("/")) contentPathes = contentPathes.substring(0, contentPathes.length()-1);
-    	
-        // Setting up supported node type
-        nodeType = PropertiesUtil.toString(componentContext.getProperties().get(PARAM_NODE_TYPE), DEFAULT_NODE_TYPE);
-
-        // Setting up supported property name
-        propertyName = PropertiesUtil.toString(componentContext.getProperties().get(PARAM_PROPERTY_NAME), DEFAULT_PROPERTY_NAME);
+        // The settings of the store, the static reference reactivates the listener when they change
+        contentPathes = spoolStore.getSpoolFolder();
+        nodeType = spoolStore.getNodeType();
+        propertyName = spoolStore.getPropertyName();
 
         try {
         	session = repository.loginAdministrative(null);
@@ -21,26 +21,15 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.io.StringWriter;
-import java.util.Dictionary;
-import java.util.HashMap;
-import java.util.Hashtable;
-import java.util.Map;
+import java.util.List;
 
-import javax.jcr.Node;
-import javax.jcr.PathNotFoundException;
 import javax.jcr.RepositoryException;
-import javax.jcr.Session;
-import javax.jcr.query.Query;
-import javax.jcr.query.QueryManager;
-import javax.jcr.query.QueryResult;
-import javax.jcr.query.Row;
-import javax.jcr.query.RowIterator;
+import javax.mail.Address;
 import javax.mail.Authenticator;
 import javax.mail.MessagingException;
 import javax.mail.PasswordAuthentication;
+import javax.mail.Transport;
 import javax.mail.internet.InternetAddress;
-import javax.mail.internet.MimeMessage;
-import javax.mail.internet.MimeMessage.RecipientType;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.Activate;
@@ -52,20 +41,12 @@ import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.ReferenceCardinality;
 import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.Service;
-import org.apache.sling.api.resource.LoginException;
-import org.apache.sling.api.resource.Resource;
-import org.apache.sling.api.resource.ResourceResolver;
-import org.apache.sling.api.resource.ResourceResolverFactory;
-import org.apache.sling.api.resource.ResourceUtil;
 import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.apache.sling.event.EventUtil;
 import org.apache.sling.event.jobs.JobProcessor;
 import org.apache.sling.event.jobs.JobUtil;
-import org.apache.sling.jcr.api.SlingRepository;
-import org.apache.sling.jcr.resource.JcrResourceConstants;
 import org.osgi.service.component.ComponentContext;
 import org.osgi.service.event.Event;
-import org.osgi.service.event.EventAdmin;
 import org.osgi.service.event.EventHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -85,7 +66,8 @@ import org.slf4j.LoggerFactory;
 		@Property(
 				name="scheduler.expression", 
 				value="0 * * ? * * "),
-		@Property(name = EmailSendJobEventHandler.PARAM_NODE_TYPE, label = "%nodeType.name", description = "%nodeType.description", value = EmailSendJobEventHandler.DEFAULT_NODE_TYPE),
+		@Property(name = EmailSendJobEventHandler.PARAM_SPOOL_STORE_TARGET, label = "%spoolStore.target.name", description = "%spoolStore.target.description", value = EmailSendJobEventHandler.DEFAULT_SPOOL_STORE_TARGET),
+		@Property(name = EmailSendJobEventHandler.PARAM_CLAIM_BATCH_SIZE, label = "%claimBatchSize.name", description = "%claimBatchSize.description", intValue = EmailSendJobEventHandler.DEFAULT_CLAIM_BATCH_SIZE),
 		@Property(name = EmailSendJobEventHandler.PARAM_SMTP_HOST, label = "%smtpHost.name", description = "%smtpHost.description", value = EmailSendJobEventHandler.DEFAULT_SMTP_HOST),
 		@Property(name = EmailSendJobEventHandler.PARAM_SMTP_PORT, label = "%smtpPort.name", description = "%smtpPort.description", longValue = EmailSendJobEventHandler.DEFAULT_SMTP_PORT),
 		@Property(name = EmailSendJobEventHandler.PARAM_SMTP_CONNECTION_TIMEOUT, label = "%smtpConnectionTimeout.name", description = "%smtpConnectionTimeout.description", longValue = EmailSendJobEventHandler.DEFAULT_SMTP_CONNECTION_TIMEOUT),
@@ -96,7 +78,6 @@ import org.slf4j.LoggerFactory;
 		@Property(name = EmailSendJobEventHandler.PARAM_SMTP_STARTTLS_ENABLE, label = "%smtpStartTlsEnable.name", description = "%smtpStartTlsEnable.description", boolValue = EmailSendJobEventHandler.DEFAULT_SMTP_STARTLS_ENABLE),
 		@Property(name = EmailSendJobEventHandler.PARAM_SMTP_USER_NAME, label = "%smtpUserName.name", description = "%smtpUserName.description", value = EmailSendJobEventHandler.DEFAULT_SMTP_USER_NAME),
 		@Property(name = EmailSendJobEventHandler.PARAM_SMTP_PASSWORD, label = "%smtpPassword.name", description = "%smtpPassword.description", value = EmailSendJobEventHandler.DEFAULT_SMTP_PASSWORD),
-		@Property(name = EmailSendJobEventHandler.PARAM_SPOOL_FOLDER, label = "%spoolFolder.name", description = "%spoolFolder.description", value = EmailSendJobEventHandler.DEFAULT_SPOOL_FOLDER),
 		@Property(name = EmailSendJobEventHandler.PARAM_TEST_MAIL_ADDRESS, label = "%testMailAddress.name", description = "%testMailAddress.description", value = EmailSendJobEventHandler.DEFAULT_TEST_MAIL_ADDRESS), 
 		@Property(name = EmailSendJobEventHandler.PARAM_SMTP_DEBUG, label = "%smtpDebug.name", description = "%smtpDebug.description", boolValue = EmailSendJobEventHandler.DEFAULT_SMTP_DEBUG) 
 })
@@ -107,8 +88,17 @@ public class EmailSendJobEventHandler implements JobProcessor, EventHandler, Run
 	 */
 	private final Logger log = LoggerFactory.getLogger(EmailSendJobEventHandler.class);
 
-	public static final String PARAM_NODE_TYPE = EmailResourceChangeListener.PARAM_NODE_TYPE;
-	public static final String DEFAULT_NODE_TYPE = EmailResourceChangeListener.NODE_TYPE_EMAIL;
+	/**
+	 * Target filter of the spool store reference, the store is selected by its name
+	 */
+	public static final String PARAM_SPOOL_STORE_TARGET = EmailServiceImpl.PARAM_SPOOL_STORE_TARGET;
+	public static final String DEFAULT_SPOOL_STORE_TARGET = EmailServiceImpl.DEFAULT_SPOOL_STORE_TARGET;
+
+	/**
+	 * Maximum number of mails claimed by a periodical run
+	 */
+	public static final String PARAM_CLAIM_BATCH_SIZE = "claimBatchSize";
+	public static final int DEFAULT_CLAIM_BATCH_SIZE = 100;
 
 	public static final String PARAM_SMTP_HOST = "smtpHost";
 	public static final String DEFAULT_SMTP_HOST = "localhost";
@@ -140,9 +130,6 @@ public class EmailSendJobEventHandler implements JobProcessor, EventHandler, Run
 	public static final String PARAM_SMTP_PASSWORD = "smtpPassword";
 	public static final String DEFAULT_SMTP_PASSWORD = "";
 
-	public static final String PARAM_SPOOL_FOLDER = "spoolFolder";
-	public static final String DEFAULT_SPOOL_FOLDER = "/var/spool/queue/mail/";
-
 	public static final String PARAM_TEST_MAIL_ADDRESS = "testMailAddress";
 	public static final String DEFAULT_TEST_MAIL_ADDRESS = "test@example.com";
 
@@ -161,19 +148,12 @@ public class EmailSendJobEventHandler implements JobProcessor, EventHandler, Run
 	private boolean smtpStartTlsEnable = DEFAULT_SMTP_STARTLS_ENABLE;
 	private String smtpUserName = DEFAULT_SMTP_USER_NAME;
 	private String smtpPassword = DEFAULT_SMTP_PASSWORD;
-	private String spoolFolder = DEFAULT_SPOOL_FOLDER;
 	private String testMailAddress = DEFAULT_TEST_MAIL_ADDRESS;
 	private boolean smtpDebug = DEFAULT_SMTP_DEBUG;
-	private String nodeType = DEFAULT_NODE_TYPE;
-
-	@Reference(cardinality=ReferenceCardinality.MANDATORY_UNARY, policy=ReferencePolicy.DYNAMIC)
-	SlingRepository repository;
+	private int claimBatchSize = DEFAULT_CLAIM_BATCH_SIZE;
 
-	@Reference(cardinality=ReferenceCardinality.MANDATORY_UNARY, policy=ReferencePolicy.DYNAMIC)
-	ResourceResolverFactory resourceResolverFactory;
-	
-	@Reference(cardinality=ReferenceCardinality.MANDATORY_UNARY, policy=ReferencePolicy.DYNAMIC)
-	EventAdmin eventAdmin;
+	@Reference(name = "spoolStore", cardinality=ReferenceCardinality.MANDATORY_UNARY, policy=ReferencePolicy.DYNAMIC, target = EmailSendJobEventHandler.DEFAULT_SPOOL_STORE_TARGET)
+	private volatile SpoolStore spoolStore;
 
 	/**
 	 * Activates this component.
@@ -197,26 +177,9 @@ public class EmailSendJobEventHandler implements JobProcessor, EventHandler, Run
 		smtpUserName = PropertiesUtil.toString(componentContext.getProperties().get(PARAM_SMTP_USER_NAME), DEFAULT_SMTP_USER_NAME);
 		smtpPassword = PropertiesUtil.toString(componentContext.getProperties().get(PARAM_SMTP_PASSWORD), DEFAULT_SMTP_PASSWORD);
 
-		spoolFolder = PropertiesUtil.toString(componentContext.getProperties().get(PARAM_SPOOL_FOLDER), DEFAULT_SPOOL_FOLDER);
 		testMailAddress = PropertiesUtil.toString(componentContext.getProperties().get(PARAM_TEST_MAIL_ADDRESS), DEFAULT_TEST_MAIL_ADDRESS);
 		smtpDebug = PropertiesUtil.toBoolean(componentContext.getProperties().get(PARAM_SMTP_DEBUG), DEFAULT_SMTP_DEBUG);
-		nodeType = PropertiesUtil.toString(componentContext.getProperties().get(PARAM_NODE_TYPE), DEFAULT_NODE_TYPE);
-
-		Session admin = repository.loginAdministrative(null);
-		if (spoolFolder.startsWith("/"))
-			spoolFolder = spoolFolder.substring(1);
-
-		String spoolFolders[] = spoolFolder.split("/");
-		Node n = admin.getRootNode();
-		for (int i = 0; i < spoolFolders.length; i++) {
-			if (!n.hasNode(spoolFolders[i])) {
-				n = n.addNode(spoolFolders[i]);
-			} else {
-				n = n.getNode(spoolFolders[i]);
-			}
-		}
-		admin.save();
-		admin.logout();
+		claimBatchSize = Math.max(1, PropertiesUtil.toInteger(componentContext.getProperties().get(PARAM_CLAIM_BATCH_SIZE), DEFAULT_CLAIM_BATCH_SIZE));
 	}
 
 	public void handleEvent(Event event) {
@@ -226,222 +189,104 @@ public class EmailSendJobEventHandler implements JobProcessor, EventHandler, Run
 	}
 
 	public boolean process(Event event) {
-		Session session = null;
-		ResourceResolver resourceResolver = null;
-
+		String resourcePath = (String) event.getProperty("resourcePath");
 		try {
-			String resourcePath = (String) event.getProperty("resourcePath");
-			String nodeType = (String) event.getProperty(EmailResourceChangeListener.PARAM_NODE_TYPE);
-//			String propertyName = (String) event.getProperty(EmailResourceChangeListener.PARAM_PROPERTY_NAME);
-
-			session = repository.loginAdministrative(null);
-
-			Map<String, Object> authInfo = new HashMap<String, Object>();
-			authInfo.put(JcrResourceConstants.AUTHENTICATION_INFO_SESSION, session);
-			try {
-				resourceResolver = resourceResolverFactory.getResourceResolver(authInfo);
-			} catch (LoginException e) {
-				log.error("Authentication error");
-				return false;
-			}
-
 			if (event.getTopic().equals(EmailResourceChangeListener.EMAIL_REMOVE_TOPIC)) {
 				// remove
-				return deleteMail(session, resourcePath);
+				log.info("Removing email: " + resourcePath);
+				spoolStore.ack(resourcePath);
 			} else if (event.getTopic().equals(EmailResourceChangeListener.EMAIL_SEND_TOPIC)) {
 				// insert
-				Resource res = resourceResolver.getResource(resourcePath);
-				if (ResourceUtil.isA(res, nodeType)) {
-					return sendMail(session, resourcePath);
-				} else {
-					log.error("NodeTypeConflict - expected: " + nodeType + " actual: " + res.getResourceType());
-					return false;
+				SpooledMail mail = spoolStore.claim(resourcePath);
+				if (mail != null) {
+					sendMail(mail);
 				}
 			}
 			return true;
-		} catch (RepositoryException e) {
-			log.error("process - " + e, e);
-			return false;
 		} catch (Exception e) {
 			log.error("process - " + e, e);
 			return false;
-		} finally {
-			if (resourceResolver != null)
-				resourceResolver.close();
-			if (session != null && session.isLive()) {
-				try {
-					if (session.hasPendingChanges()) {
-						session.save();
-					}
-				} catch (Exception e) {
-					log.error("Could not save session", e);
-				}
-				session.logout();
-				session = null;
-			}
 		}
 	}
 
-	private void updateFailedMailJob(Node mailNode) {
-		if (mailNode != null) {
-			// This was the first unsuccessfull try
-			try {
-				if (!mailNode.hasProperty("retryCount")) {
-					mailNode.setProperty("retryCount", new Long(1));
-					// Calculating the time of next try.
-					long nextTry = (new Double(
-							new Long(initialRetryDelay).doubleValue() +
-							new Long(System.currentTimeMillis()).doubleValue() + 
-							Math.random()*new Long(additionalRandomRetryDelay).doubleValue()
-							).longValue());
-					
-					mailNode.setProperty("nextTry", nextTry);
-
-				} else {
-					// If the number of tries exceeds maximumRetry, remove the spool
-					if (mailNode.getProperty("retryCount").getLong() >= maximumRetry) {
-						mailNode.remove();
-						return;
-					}
-					// Increase retry counter
-					mailNode.setProperty("retryCount", mailNode.getProperty("retryCount").getLong()+1);
-					// Calculating the time of next try. Exponential intervals are in the retries
-					long nextTry = (new Double(
-							Math.exp(new Double( new Long(mailNode.getProperty("retryCount").getLong()).doubleValue() )) * new Long(initialRetryDelay).doubleValue() +
-							new Long(System.currentTimeMillis()).doubleValue() + 
-							Math.random()*new Long(additionalRandomRetryDelay).doubleValue()
-							).longValue());
-					
-					mailNode.setProperty("nextTry", nextTry);
-				}
-			} catch (Throwable e) {
-				log.error("Could not update failed mail job", e);
+	/**
+	 * Release a mail after an unsuccessful try. The next try is delayed exponentially,
+	 * the mail is dead lettered after maximumRetry tries.
+	 */
+	private void updateFailedMailJob(SpooledMail mail, Exception reason) {
+		try {
+			long retryCount = mail.getRetryCount();
+			if (retryCount >= maximumRetry) {
+				spoolStore.deadLetter(mail.getId(), String.valueOf(reason));
+				return;
+			}
+			long delay;
+			if (retryCount == 0) {
+				// This was the first unsuccessfull try
+				delay = (long) (initialRetryDelay + Math.random() * additionalRandomRetryDelay);
+			} else {
+				// Exponential intervals are in the retries
+				delay = (long) (Math.exp(retryCount + 1) * initialRetryDelay + Math.random() * additionalRandomRetryDelay);
 			}
+			spoolStore.nack(mail.getId(), delay);
+		} catch (Throwable e) {
+			log.error("Could not update failed mail job", e);
 		}
 	}
 	
-	@SuppressWarnings("static-access")
-	public boolean sendMail(Session session, String path) throws RepositoryException, Exception {
-		ResourceResolver resourceResolver = null;
+	/**
+	 * Deliver a claimed mail. The stored message is sent verbatim, it's not parsed, the envelope is
+	 * taken from the spool.
+	 */
+	public void sendMail(SpooledMail mail) throws Exception {
 		ByteArrayOutputStream debugPrintOut = null;
 
 		try {
-			log.info("Sending email: " + path);
+			log.info("Sending email: " + mail.getId());
+			javax.mail.Session mailSession = getMailSession();
 
-			Map<String, Object> authInfo = new HashMap<String, Object>();
-			authInfo.put(JcrResourceConstants.AUTHENTICATION_INFO_SESSION, session);
-			try {
-				resourceResolver = resourceResolverFactory.getResourceResolver(authInfo);
-			} catch (LoginException e) {
-				log.error("Authentication error");
-				throw new RepositoryException();
+			PrintStream debugPrintStream = null;
+
+			if (smtpDebug) {
+				debugPrintOut = new ByteArrayOutputStream();
+				debugPrintStream =  new PrintStream(debugPrintOut);
+				mailSession.setDebug(true);
+				mailSession.setDebugOut(debugPrintStream);
 			}
 
-			Resource res = resourceResolver.getResource(path);
-			Node node = res.adaptTo(Node.class);
+			RawMimeMessage msg = new RawMimeMessage(mailSession, mail.getContent(), mail.getEnvelope());
 
-			if (node != null) {
-				// Sending mail to SMTP
+			Address[] recipients = mail.getEnvelope().getRecipientAddresses();
+			if (StringUtils.isNotEmpty(testMailAddress)) {
+				recipients = new Address[] {new InternetAddress(testMailAddress)};
+			}
+			if (recipients.length > 0) {
+				log.info("  --> Transporting to: " + recipients[0].toString());
+				// SSL is set by the mail.smtp properties of the session
+				Transport transport = mailSession.getTransport("smtp");
+				transport.connect();
 				try {
-					log.info("Sending email: " + node.getName());
-					javax.mail.Session mailSession = getMailSession();
-
-					PrintStream debugPrintStream = null;
-
-					if (smtpDebug) {
-						debugPrintOut = new ByteArrayOutputStream();
-						debugPrintStream =  new PrintStream(debugPrintOut);
-						mailSession.setDebug(true);
-						mailSession.setDebugOut(debugPrintStream);
-					}
-					
-					MimeMessage msg = new MimeMessage(mailSession, node.getNode("jcr:content").getProperty("jcr:data").getBinary().getStream());
-					if (StringUtils.isNotEmpty(testMailAddress)) {
-						msg.setRecipient(RecipientType.TO,  new InternetAddress(testMailAddress));
-//						msg.setRecipient(RecipientType.BCC, (InternetAddress)null);
-//						msg.setRecipient(RecipientType.CC, (InternetAddress)null);
-					}
-					if (msg.getAllRecipients() != null) {
-						log.info("  --> Transporting to: " + msg.getAllRecipients()[0].toString());
-						if (smtpSslEnable) mailSession.getTransport("smtps").send(msg);
-						else  mailSession.getTransport("smtp").send(msg);
-						try {
-							node.remove();
-						} catch (RepositoryException ex) {
-							log.error("Could not remove mail from spool folder: " + node.getName(), ex);
-							return true;
-						}
-					} else {
-						log.warn("  --> No recepients, removing " + node.getName());
-						try {
-							node.remove();
-						} catch (RepositoryException ex) {
-							log.error("Could not remove mail from spool folder: " + node.getName(), ex);
-							return true;
-						}
-
-					}
-				} catch (MessagingException ex) {
-					log.error("Message could not be send: " + node.getName(), ex);
-					updateFailedMailJob(node);
-					return true;
-				} catch (PathNotFoundException ex) {
-					log.error("Path not found - maybe not a nt:file node?: " + node.getName(), ex);
-					try {
-						node.remove();
-					} catch (Throwable e) {
-					}
-					return true;
-				} catch (RepositoryException ex) {
-					log.error("Repository error: " + node.getName(), ex);
-					updateFailedMailJob(node);
-					return true;
+					transport.sendMessage(msg, recipients);
+				} finally {
+					transport.close();
 				}
-				return true;
+			} else {
+				log.warn("  --> No recepients, removing " + mail.getId());
 			}
-			updateFailedMailJob(node);
-			return true;
+		} catch (MessagingException ex) {
+			log.error("Message could not be send: " + mail.getId(), ex);
+			updateFailedMailJob(mail, ex);
+			return;
 		} finally {
 			if (debugPrintOut != null) {
 				log.info(debugPrintOut.toString());
 			}
-
-			if (resourceResolver != null)
-				resourceResolver.close();
 		}
-	}
 
-	public boolean deleteMail(Session session, String path) throws RepositoryException, Exception {
-		ResourceResolver resourceResolver = null;
 		try {
-			log.info("Removing email: " + path);
-
-			Map<String, Object> authInfo = new HashMap<String, Object>();
-			authInfo.put(JcrResourceConstants.AUTHENTICATION_INFO_SESSION, session);
-			try {
-				resourceResolver = resourceResolverFactory.getResourceResolver(authInfo);
-			} catch (LoginException e) {
-				log.error("Authentication error");
-				throw new RepositoryException();
-			}
-
-			Resource res = resourceResolver.getResource(path);
-			Node node = null;
-			if (res != null) {
-				node = res.adaptTo(Node.class);
-			}
-			if (node != null) {
-				// Removing node
-				node.remove();
-			}
-			return true;
-
-		} catch (RepositoryException e) {
-			log.error("Email remove", e);
-			throw e;
-		} finally {
-			if (resourceResolver != null)
-				resourceResolver.close();
+			spoolStore.ack(mail.getId());
+		} catch (Exception ex) {
+			log.error("Could not remove mail from spool: " + mail.getId(), ex);
 		}
 	}
 
@@ -525,43 +370,29 @@ public class EmailSendJobEventHandler implements JobProcessor, EventHandler, Run
 	}
 
 	/*
-	 * Checking the spool folder for mails have not been sent yet,
+	 * Checking the spool store for mails have not been sent yet,
+	 * the due mails are claimed in the order of priority.
 	 * 
 	 * @see java.lang.Runnable#run()
 	 */
 	public void run() {
-		Session session = null;
 		try {
-			
-			// Searcing in spool for mails
-			session = repository.loginAdministrative(null);
-			QueryManager queryManager = session.getWorkspace().getQueryManager();
-			Query query = queryManager.createQuery("/jcr:root/"+spoolFolder+"*[@jcr:primaryType='email:email' and @nextTry<"+System.currentTimeMillis()+"]", Query.XPATH);
-			QueryResult res = query.execute();
-			RowIterator iter = res.getRows();
-			while (iter.hasNext()) {
-				Row row = iter.nextRow();
-				String path =row.getPath();
-				try {
-					log.info("Retry send email: "+path);
-	
-					final Dictionary<String, Object> props = new Hashtable<String, Object>();
-			        props.put(JobUtil.PROPERTY_JOB_TOPIC, EmailResourceChangeListener.EMAIL_SEND_TOPIC);
-			        props.put("resourcePath", path);
-			        props.put(EmailResourceChangeListener.PARAM_NODE_TYPE, nodeType);
-			        //props.put(EmailResourceChangeListener.PARAM_PROPERTY_NAME, propertyName);
-			        org.osgi.service.event.Event emailSendJob = new org.osgi.service.event.Event(JobUtil.TOPIC_JOB, props);
-			        eventAdmin.sendEvent(emailSendJob);
-				} catch (Exception e) {
-					log.error("Could not send email: "+path,e);
+			// The claimed mails are leased, so the batches are claimed until the due mails run out. Stores without
+			// observation (segment store) are delivered only by this run.
+			List<SpooledMail> mails;
+			do {
+				mails = spoolStore.claim(claimBatchSize);
+				for (SpooledMail mail : mails) {
+					log.info("Send email: "+mail.getId());
+					try {
+						sendMail(mail);
+					} catch (Exception e) {
+						log.error("Could not send email: "+mail.getId(),e);
+					}
 				}
-			}
+			} while (claimBatchSize > 0 && mails.size() >= claimBatchSize);
 		} catch (Exception e2) {
 			log.error("Error on periodical run: ", e2);
-		} finally {
-			if (session != null && session.isLive()) {
-				session.logout();
-			}
 		}
 	}	
 }
@@ -18,6 +18,7 @@ package org.liveSense.service.email;
 
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Map;
 
 import javax.jcr.Node;
 import javax.jcr.Session;
@@ -25,17 +26,29 @@ import javax.mail.internet.MimeMessage;
 
 /**
  * Email service.
+ *
+ * The mails are composed by the builder of {@link #prepareEmail()}. The sendEmailFromTemplate* and
+ * sendEmailFromRFC822Template* overloads of every combination of template, resource, session and variables
+ * are deprecated. They are kept, because other bundles call them through the service interface and removing
+ * them would break those bundles.
  */
 public interface EmailService {
 
 	/**
-	 * Extract plain text from HTML with boilerpipe
+	 * Extract plain text from HTML with the current {@link HtmlToTextConverter}
 	 * @param html The HTML source
 	 * @return  The text representation of HTML
 	 * @throws Exception
 	 */
 	public String extractTextFromHtml(String html) throws Exception;
 
+	/**
+	 * The converter used to create the plain text alternative of HTML mails. It's the registered
+	 * HtmlToTextConverter service if there is any, otherwise the configured built-in converter.
+	 * @return The HTML to text converter
+	 */
+	public HtmlToTextConverter getHtmlToTextConverter();
+
 	/**
 	 * Send a mime message as administrator user. 
 	 * @param message - The mimeMessage
@@ -51,6 +64,73 @@ public interface EmailService {
 	 */
 	public void sendEmail(Session session, MimeMessage message) throws Exception;
 
+	/**
+	 * Create a builder of an email which is prepared once and sent many times.
+	 * @return The builder
+	 */
+	public PreparedEmail.Builder prepareEmail();
+
+	/**
+	 * Send a prepared email as administrator user.
+	 * @param email - The prepared email
+	 * @param variables - The variables of this send, they override the variables of the prepared email
+	 * @throws Exception
+	 */
+	public void sendEmail(PreparedEmail email, Map<String, Object> variables) throws Exception;
+
+	/**
+	 * Send a prepared email.
+	 * @param session - JCR Session - If the session is not presented it uses Administrator session
+	 * @param email - The prepared email
+	 * @param variables - The variables of this send, they override the variables of the prepared email
+	 * @throws Exception
+	 */
+	public void sendEmail(Session session, PreparedEmail email, Map<String, Object> variables) throws Exception;
+
+	/**
+	 * Send a HTML template to many recipients as administrator user. See {@link #sendBulk(PreparedEmail, Iterable)}.
+	 * @param template - The HTML template
+	 * @param recipients - The variables of the recipients
+	 * @return The progress of the send
+	 * @throws Exception
+	 */
+	public BulkSendProgress sendBulk(String template, Iterable<? extends Map<String, Object>> recipients) throws Exception;
+
+	/**
+	 * Send a prepared email to many recipients as administrator user. The method returns immediately, the recipients are
+	 * read in the background and rendered in parallel, the messages are saved to the spool in batches.
+	 * The variables of a recipient contain its addresses (to, cc, bcc) unless the prepared email has them.
+	 * The &lt;@shared key="..."&gt; blocks of the template are rendered once for all recipients, see {@link SharedFragmentDirective}.
+	 * The MIME structure and the attachments are serialised once as well, see {@link MessageSkeleton}.
+	 * @param email - The prepared email
+	 * @param recipients - The variables of the recipients. It can be a lazy source, it's read only once.
+	 * @return The progress of the send
+	 */
+	public BulkSendProgress sendBulk(PreparedEmail email, Iterable<? extends Map<String, Object>> recipients);
+
+	/**
+	 * Send a HTML template for every node of a query result as administrator user. See {@link #sendBulkFromQuery(PreparedEmail, String, String)}.
+	 * @param template - The HTML template
+	 * @param query - The query statement
+	 * @param language - The query language (javax.jcr.query.Query.JCR_SQL2, XPATH...)
+	 * @return The progress of the send
+	 * @throws Exception
+	 */
+	public BulkSendProgress sendBulkFromQuery(String template, String query, String language) throws Exception;
+
+	/**
+	 * Send a prepared email for every node of a query result as administrator user. The nodes are the resources
+	 * of the messages (bound as "node" to the template), so the addresses and the subject are usually taken from them.
+	 * The method returns immediately, the result is read lazily in the background and rendered in parallel,
+	 * the messages are saved to the spool in batches.
+	 * The &lt;@shared key="..."&gt; blocks of the template are rendered for every node, because the node differs for every message.
+	 * @param email - The prepared email
+	 * @param query - The query statement
+	 * @param language - The query language (javax.jcr.query.Query.JCR_SQL2, XPATH...)
+	 * @return The progress of the send
+	 */
+	public BulkSendProgress sendBulkFromQuery(PreparedEmail email, String query, String language);
+
 	
 	/**
 	 * Send a mime message as administrator user.
@@ -144,7 +224,9 @@ public interface EmailService {
 	 * @param template- The FreeMarker template
 	 * @param resource - The Node is used as resource for template
 	 * @throws Exception
+	 * @deprecated Use {@link #prepareEmail()} with rfc822(true)
 	 */
+	@Deprecated
 	public void sendEmailFromRFC822TemplateString(String template, Node resource) throws Exception;
 
 	/**
@@ -166,7 +248,9 @@ public interface EmailService {
 	 * @param template- The FreeMarker template
 	 * @param resource - The Node is used as resource for template
 	 * @throws Exception
+	 * @deprecated Use {@link #prepareEmail()} with rfc822(true)
 	 */
+	@Deprecated
 	public void sendEmailFromRFC822TemplateString(String template, String resource) throws Exception;
 
 	/**
@@ -188,7 +272,9 @@ public interface EmailService {
 	 * @param template- The FreeMarker template
 	 * @param variables - Additional template variables
 	 * @throws Exception
+	 * @deprecated Use {@link #prepareEmail()} with rfc822(true)
 	 */
+	@Deprecated
 	public void sendEmailFromRFC822TemplateString(String template, HashMap<String, Object> variables) throws Exception;
 
 	/**
@@ -211,7 +297,9 @@ public interface EmailService {
 	 * @param resource - The Node is used as resource for template
 	 * @param variables - Additional template variables
 	 * @throws Exception
+	 * @deprecated Use {@link #prepareEmail()} with rfc822(true)
 	 */
+	@Deprecated
 	public void sendEmailFromRFC822TemplateString(String template, Node resource, HashMap<String, Object> variables) throws Exception;
 
 	/**
@@ -234,7 +322,9 @@ public interface EmailService {
 	 * @param resource - The Node is used as resource for template
 	 * @param variables - Additional template variables
 	 * @throws Exception
+	 * @deprecated Use {@link #prepareEmail()} with rfc822(true)
 	 */
+	@Deprecated
 	public void sendEmailFromRFC822TemplateString(String template, String resource, HashMap<String, Object> variables) throws Exception;
 
 	/**
@@ -257,7 +347,9 @@ public interface EmailService {
 	 * @param template- The FreeMarker template
 	 * @param resource - The Node is used as resource for template
 	 * @throws Exception
+	 * @deprecated Use {@link #prepareEmail()} with rfc822(true)
 	 */
+	@Deprecated
 	public void sendEmailFromRFC822TemplateString(Session session, String template, Node resource) throws Exception;
 
 	/**
@@ -280,7 +372,9 @@ public interface EmailService {
 	 * @param template- The FreeMarker template
 	 * @param resource - The Node is used as resource for template
 	 * @throws Exception
+	 * @deprecated Use {@link #prepareEmail()} with rfc822(true)
 	 */
+	@Deprecated
 	public void sendEmailFromRFC822TemplateString(Session session, String template, String resource) throws Exception;
 
 	/**
@@ -303,7 +397,9 @@ public interface EmailService {
 	 * @param template- The FreeMarker template
 	 * @param variables - Additional template variables
 	 * @throws Exception
+	 * @deprecated Use {@link #prepareEmail()} with rfc822(true)
 	 */
+	@Deprecated
 	public void sendEmailFromRFC822TemplateString(Session session, String template, HashMap<String, Object> variables) throws Exception;
 
 	/**
@@ -327,7 +423,9 @@ public interface EmailService {
 	 * @param resource - The Node is used as resource for template
 	 * @param variables - Additional template variables
 	 * @throws Exception
+	 * @deprecated Use {@link #prepareEmail()} with rfc822(true)
 	 */
+	@Deprecated
 	public void sendEmailFromRFC822TemplateString(Session session, String template, Node resource, HashMap<String, Object> variables) throws Exception;
 
 	/**
@@ -351,7 +449,9 @@ public interface EmailService {
 	 * @param resource - The Node is used as resource for template
 	 * @param variables - Additional template variables
 	 * @throws Exception
+	 * @deprecated Use {@link #prepareEmail()} with rfc822(true)
 	 */
+	@Deprecated
 	public void sendEmailFromRFC822TemplateString(Session session, String template, String resource, HashMap<String, Object> variables) throws Exception;
 
 	/**
@@ -373,7 +473,9 @@ public interface EmailService {
 	 * @param template - The template node
 	 * @param resource - The node is used for template as resource
 	 * @throws Exception
+	 * @deprecated Use {@link #prepareEmail()} with rfc822(true)
 	 */
+	@Deprecated
 	public void sendEmailFromRFC822TemplateNode(String template, String resource) throws Exception;
 
 	/**
@@ -395,7 +497,9 @@ public interface EmailService {
 	 * @param template - The template node
 	 * @param resource - The node is used for template as resource
 	 * @throws Exception
+	 * @deprecated Use {@link #prepareEmail()} with rfc822(true)
 	 */
+	@Deprecated
 	public void sendEmailFromRFC822TemplateNode(Node template, String resource) throws Exception;
 
 	/**
@@ -417,7 +521,9 @@ public interface EmailService {
 	 * @param template - The template node
 	 * @param resource - The node is used for template as resource
 	 * @throws Exception
+	 * @deprecated Use {@link #prepareEmail()} with rfc822(true)
 	 */
+	@Deprecated
 	public void sendEmailFromRFC822TemplateNode(String template, Node resource) throws Exception;
 
 	/**
@@ -439,7 +545,9 @@ public interface EmailService {
 	 * @param template - The template node
 	 * @param resource - The node is used for template as resource
 	 * @throws Exception
+	 * @deprecated Use {@link #prepareEmail()} with rfc822(true)
 	 */
+	@Deprecated
 	public void sendEmailFromRFC822TemplateNode(Node template, Node resource) throws Exception;
 
 	/**
@@ -462,7 +570,9 @@ public interface EmailService {
 	 * @param resource - The node is used for template as resource
 	 * @param variables - Additional template variables
 	 * @throws Exception
+	 * @deprecated Use {@link #prepareEmail()} with rfc822(true)
 	 */
+	@Deprecated
 	public void sendEmailFromRFC822TemplateNode(Node template, String resource, HashMap<String, Object> variables) throws Exception;
 
 	/**
@@ -485,7 +595,9 @@ public interface EmailService {
 	 * @param resource - The node is used for template as resource
 	 * @param variables - Additional template variables
 	 * @throws Exception
+	 * @deprecated Use {@link #prepareEmail()} with rfc822(true)
 	 */
+	@Deprecated
 	public void sendEmailFromRFC822TemplateNode(Node template, Node resource, HashMap<String, Object> variables) throws Exception;
 
 	/**
@@ -508,7 +620,9 @@ public interface EmailService {
 	 * @param resource - The node is used for template as resource
 	 * @param variables - Additional template variables
 	 * @throws Exception
+	 * @deprecated Use {@link #prepareEmail()} with rfc822(true)
 	 */
+	@Deprecated
 	public void sendEmailFromRFC822TemplateNode(String template, String resource, HashMap<String, Object> variables) throws Exception;
 
 	/**
@@ -531,7 +645,9 @@ public interface EmailService {
 	 * @param resource - The node is used for template as resource
 	 * @param variables - Additional template variables
 	 * @throws Exception
+	 * @deprecated Use {@link #prepareEmail()} with rfc822(true)
 	 */
+	@Deprecated
 	public void sendEmailFromRFC822TemplateNode(String template, Node resource, HashMap<String, Object> variables) throws Exception;
 
 	
@@ -555,7 +671,9 @@ public interface EmailService {
 	 * @param template - The template node
 	 * @param resource - The node is used for template as resource
 	 * @throws Exception
+	 * @deprecated Use {@link #prepareEmail()} with rfc822(true)
 	 */
+	@Deprecated
 	public void sendEmailFromRFC822TemplateNode(Session session, String template, String resource) throws Exception;
 
 	/**
@@ -578,7 +696,9 @@ public interface EmailService {
 	 * @param template - The template node
 	 * @param resource - The node is used for template as resource
 	 * @throws Exception
+	 * @deprecated Use {@link #prepareEmail()} with rfc822(true)
 	 */
+	@Deprecated
 	public void sendEmailFromRFC822TemplateNode(Session session, Node template, String resource) throws Exception;
 
 	/**
@@ -601,7 +721,9 @@ public interface EmailService {
 	 * @param template - The template node
 	 * @param resource - The node is used for template as resource
 	 * @throws Exception
+	 * @deprecated Use {@link #prepareEmail()} with rfc822(true)
 	 */
+	@Deprecated
 	public void sendEmailFromRFC822TemplateNode(Session session, String template, Node resource) throws Exception;
 
 	/**
@@ -624,7 +746,9 @@ public interface EmailService {
 	 * @param template - The template node
 	 * @param resource - The node is used for template as resource
 	 * @throws Exception
+	 * @deprecated Use {@link #prepareEmail()} with rfc822(true)
 	 */
+	@Deprecated
 	public void sendEmailFromRFC822TemplateNode(Session session, Node template, Node resource) throws Exception;
 
 	/**
@@ -648,7 +772,9 @@ public interface EmailService {
 	 * @param resource - The node is used for template as resource
 	 * @param variables - Additional template variables
 	 * @throws Exception
+	 * @deprecated Use {@link #prepareEmail()} with rfc822(true)
 	 */
+	@Deprecated
 	public void sendEmailFromRFC822TemplateNode(Session session, Node template, String resource, HashMap<String, Object> variables) throws Exception;
 
 	/**
@@ -672,7 +798,9 @@ public interface EmailService {
 	 * @param resource - The node is used for template as resource
 	 * @param variables - Additional template variables
 	 * @throws Exception
+	 * @deprecated Use {@link #prepareEmail()} with rfc822(true)
 	 */
+	@Deprecated
 	public void sendEmailFromRFC822TemplateNode(Session session, Node template, Node resource, HashMap<String, Object> variables) throws Exception;
 
 	/**
@@ -696,7 +824,9 @@ public interface EmailService {
 	 * @param resource - The node is used for template as resource
 	 * @param variables - Additional template variables
 	 * @throws Exception
+	 * @deprecated Use {@link #prepareEmail()} with rfc822(true)
 	 */
+	@Deprecated
 	public void sendEmailFromRFC822TemplateNode(Session session, String template, String resource, HashMap<String, Object> variables) throws Exception;
 
 	/**
@@ -720,7 +850,9 @@ public interface EmailService {
 	 * @param resource - The node is used for template as resource
 	 * @param variables - Additional template variables
 	 * @throws Exception
+	 * @deprecated Use {@link #prepareEmail()} with rfc822(true)
 	 */
+	@Deprecated
 	public void sendEmailFromRFC822TemplateNode(Session session, String template, Node resource, HashMap<String, Object> variables) throws Exception;
 
 	
@@ -732,7 +864,9 @@ public interface EmailService {
 	 * @param cc - List of CC. If it's null tries the resource node's "cc" property
 	 * @param bcc - List of BCC. If it's null tries the resource node's "bcc" property
 	 * @throws Exception
+	 * @deprecated Use {@link #prepareEmail()} with the template
 	 */
+	@Deprecated
 	public void sendEmailFromTemplateString(String template, String resource, Object[] to, Object[] cc, Object[] bcc) throws Exception;
 
 	/**
@@ -743,7 +877,9 @@ public interface EmailService {
 	 * @param cc - List of CC. If it's null tries the resource node's "cc" property
 	 * @param bcc - List of BCC. If it's null tries the resource node's "bcc" property
 	 * @throws Exception
+	 * @deprecated Use {@link #prepareEmail()} with the template
 	 */
+	@Deprecated
 	public void sendEmailFromTemplateString(String template, Node resource, Object[] to, Object[] cc, Object[] bcc) throws Exception;
 
 
@@ -759,7 +895,9 @@ public interface EmailService {
 	 * @param bcc - The bcc recepients
 	 * @param variables - Template variables
 	 * @throws Exception
+	 * @deprecated Use {@link #prepareEmail()} with the template
 	 */
+	@Deprecated
 	public void sendEmailFromTemplateString(String template, String subject, Object replyTo, Object from, Date date, Object[] to, Object[] cc, Object[] bcc, HashMap<String, Object> variables) throws Exception;
 
 	/**
@@ -775,7 +913,9 @@ public interface EmailService {
 	 * @param bcc - The bcc recepients
 	 * @param variables - Template variables
 	 * @throws Exception
+	 * @deprecated Use {@link #prepareEmail()} with the template
 	 */
+	@Deprecated
 	public void sendEmailFromTemplateString(String template, String resource, String subject, Object replyTo, Object from, Date date, Object[] to, Object[] cc, Object[] bcc, HashMap<String, Object> variables) throws Exception;
 
 	/**
@@ -791,7 +931,9 @@ public interface EmailService {
 	 * @param bcc - The bcc recepients
 	 * @param variables - Template variables
 	 * @throws Exception
+	 * @deprecated Use {@link #prepareEmail()} with the template
 	 */
+	@Deprecated
 	public void sendEmailFromTemplateString(String template, Node resource, String subject, Object replyTo, Object from, Date date, Object[] to, Object[] cc, Object[] bcc, HashMap<String, Object> variables) throws Exception;
 
 	/**
@@ -803,7 +945,9 @@ public interface EmailService {
 	 * @param cc - List of CC. If it's null tries the resource node's "cc" property
 	 * @param bcc - List of BCC. If it's null tries the resource node's "bcc" property
 	 * @throws Exception
+	 * @deprecated Use {@link #prepareEmail()} with the template
 	 */
+	@Deprecated
 	public void sendEmailFromTemplateString(Session session, String template, String resource, Object[] to, Object[] cc, Object[] bcc) throws Exception;
 
 	/**
@@ -815,7 +959,9 @@ public interface EmailService {
 	 * @param cc - List of CC. If it's null tries the resource node's "cc" property
 	 * @param bcc - List of BCC. If it's null tries the resource node's "bcc" property
 	 * @throws Exception
+	 * @deprecated Use {@link #prepareEmail()} with the template
 	 */
+	@Deprecated
 	public void sendEmailFromTemplateString(Session session, String template, Node resource, Object[] to, Object[] cc, Object[] bcc) throws Exception;
 
 	/**
@@ -831,7 +977,9 @@ public interface EmailService {
 	 * @param bcc - The bcc recepients
 	 * @param variables - Template variables
 	 * @throws Exception
+	 * @deprecated Use {@link #prepareEmail()} with the template
 	 */
+	@Deprecated
 	public void sendEmailFromTemplateString(Session session, String template, String subject, Object replyTo, Object from, Date date, Object[] to, Object[] cc, Object[] bcc, HashMap<String, Object> variables) throws Exception;
 
 	/**
@@ -848,7 +996,9 @@ public interface EmailService {
 	 * @param bcc - The bcc recepients
 	 * @param variables - Template variables
 	 * @throws Exception
+	 * @deprecated Use {@link #prepareEmail()} with the template
 	 */
+	@Deprecated
 	public void sendEmailFromTemplateString(Session session, String template, String resource, String subject, Object replyTo, Object from, Date date, Object[] to, Object[] cc, Object[] bcc, HashMap<String, Object> variables) throws Exception;
 
 	
@@ -866,7 +1016,9 @@ public interface EmailService {
 	 * @param bcc - The bcc recepients
 	 * @param variables - Template variables
 	 * @throws Exception
+	 * @deprecated Use {@link #prepareEmail()} with the template
 	 */
+	@Deprecated
 	public void sendEmailFromTemplateString(Session session, String template, Node resource, String subject, Object replyTo, Object from, Date date, Object[] to, Object[] cc, Object[] bcc, HashMap<String, Object> variables) throws Exception;
 
 	/**
@@ -877,7 +1029,9 @@ public interface EmailService {
 	 * @param cc - List of CC. If it's null tries the resource node's "cc" property
 	 * @param bcc - List of BCC. If it's null tries the resource node's "bcc" property
 	 * @throws Exception
+	 * @deprecated Use {@link #prepareEmail()} with the template
 	 */
+	@Deprecated
 	public void sendEmailFromTemplateNode(String template, String resource, Object[] to, Object[] cc, Object[] bcc) throws Exception;
 
 
@@ -889,7 +1043,9 @@ public interface EmailService {
 	 * @param cc - List of CC. If it's null tries the resource node's "cc" property
 	 * @param bcc - List of BCC. If it's null tries the resource node's "bcc" property
 	 * @throws Exception
+	 * @deprecated Use {@link #prepareEmail()} with the template
 	 */
+	@Deprecated
 	public void sendEmailFromTemplateNode(String template, Node resource, Object[] to, Object[] cc, Object[] bcc) throws Exception;
 
 	/**
@@ -900,7 +1056,9 @@ public interface EmailService {
 	 * @param cc - List of CC. If it's null tries the resource node's "cc" property
 	 * @param bcc - List of BCC. If it's null tries the resource node's "bcc" property
 	 * @throws Exception
+	 * @deprecated Use {@link #prepareEmail()} with the template
 	 */
+	@Deprecated
 	public void sendEmailFromTemplateNode(Node template, Node resource, Object[] to, Object[] cc, Object[] bcc) throws Exception;
 
 	/**
@@ -912,7 +1070,9 @@ public interface EmailService {
 	 * @param bcc - List of BCC. If it's null tries the resource node's "bcc" property
 	 * @param variables - Additional template variables
 	 * @throws Exception
+	 * @deprecated Use {@link #prepareEmail()} with the template
 	 */
+	@Deprecated
 	public void sendEmailFromTemplateNode(Node template, String resource, Object[] to, Object[] cc, Object[] bcc, HashMap<String, Object> variables) throws Exception;
 
 
@@ -925,7 +1085,9 @@ public interface EmailService {
 	 * @param bcc - List of BCC. If it's null tries the resource node's "bcc" property
 	 * @param variables - Additional template variables
 	 * @throws Exception
+	 * @deprecated Use {@link #prepareEmail()} with the template
 	 */
+	@Deprecated
 	public void sendEmailFromTemplateNode(Node template, Node resource, Object[] to, Object[] cc, Object[] bcc, HashMap<String, Object> variables) throws Exception;
 
 	/**
@@ -940,7 +1102,9 @@ public interface EmailService {
 	 * @param bcc - The bcc recepients
 	 * @param variables - Template variables
 	 * @throws Exception
+	 * @deprecated Use {@link #prepareEmail()} with the template
 	 */
+	@Deprecated
 	public void sendEmailFromTemplateNode(String template, String subject, Object replyTo, Object from, Date date, Object[] to, Object[] cc, Object[] bcc, HashMap<String, Object> variables) throws Exception;
 
 	/**
@@ -955,7 +1119,9 @@ public interface EmailService {
 	 * @param bcc - The bcc recepients
 	 * @param variables - Template variables
 	 * @throws Exception
+	 * @deprecated Use {@link #prepareEmail()} with the template
 	 */
+	@Deprecated
 	public void sendEmailFromTemplateNode(Node template, String subject, Object replyTo, Object from, Date date, Object[] to, Object[] cc, Object[] bcc, HashMap<String, Object> variables) throws Exception;
 
 	/**
@@ -971,7 +1137,9 @@ public interface EmailService {
 	 * @param bcc - The bcc recepients
 	 * @param variables - Template variables
 	 * @throws Exception
+	 * @deprecated Use {@link #prepareEmail()} with the template
 	 */
+	@Deprecated
 	public void sendEmailFromTemplateNode(String template, String resource, String subject, Object replyTo, Object from, Date date, Object[] to, Object[] cc, Object[] bcc, HashMap<String, Object> variables) throws Exception;
 
 	/**
@@ -987,7 +1155,9 @@ public interface EmailService {
 	 * @param bcc - The bcc recepients
 	 * @param variables - Template variables
 	 * @throws Exception
+	 * @deprecated Use {@link #prepareEmail()} with the template
 	 */
+	@Deprecated
 	public void sendEmailFromTemplateNode(Node template, String resource, String subject, Object replyTo, Object from, Date date, Object[] to, Object[] cc, Object[] bcc, HashMap<String, Object> variables) throws Exception;
 
 	/**
@@ -1003,7 +1173,9 @@ public interface EmailService {
 	 * @param bcc - The bcc recepients
 	 * @param variables - Template variables
 	 * @throws Exception
+	 * @deprecated Use {@link #prepareEmail()} with the template
 	 */
+	@Deprecated
 	public void sendEmailFromTemplateNode(String template, Node resource, String subject, Object replyTo, Object from, Date date, Object[] to, Object[] cc, Object[] bcc, HashMap<String, Object> variables) throws Exception;
 
 	/**
@@ -1019,7 +1191,9 @@ public interface EmailService {
 	 * @param bcc - The bcc recepients
 	 * @param variables - Template variables
 	 * @throws Exception
+	 * @deprecated Use {@link #prepareEmail()} with the template
 	 */
+	@Deprecated
 	public void sendEmailFromTemplateNode(Node template, Node resource, String subject, Object replyTo, Object from, Date date, Object[] to, Object[] cc, Object[] bcc, HashMap<String, Object> variables) throws Exception;
 
 
@@ -1032,7 +1206,9 @@ public interface EmailService {
 	 * @param cc - List of CC. If it's null tries the resource node's "cc" property
 	 * @param bcc - List of BCC. If it's null tries the resource node's "bcc" property
 	 * @throws Exception
+	 * @deprecated Use {@link #prepareEmail()} with the template
 	 */
+	@Deprecated
 	public void sendEmailFromTemplateNode(Session session, String template, String resource, Object[] to, Object[] cc, Object[] bcc) throws Exception;
 
 
@@ -1045,7 +1221,9 @@ public interface EmailService {
 	 * @param cc - List of CC. If it's null tries the resource node's "cc" property
 	 * @param bcc - List of BCC. If it's null tries the resource node's "bcc" property
 	 * @throws Exception
+	 * @deprecated Use {@link #prepareEmail()} with the template
 	 */
+	@Deprecated
 	public void sendEmailFromTemplateNode(Session session, String template, Node resource, Object[] to, Object[] cc, Object[] bcc) throws Exception;
 
 	/**
@@ -1057,7 +1235,9 @@ public interface EmailService {
 	 * @param cc - List of CC. If it's null tries the resource node's "cc" property
 	 * @param bcc - List of BCC. If it's null tries the resource node's "bcc" property
 	 * @throws Exception
+	 * @deprecated Use {@link #prepareEmail()} with the template
 	 */
+	@Deprecated
 	public void sendEmailFromTemplateNode(Session session, Node template, Node resource, Object[] to, Object[] cc, Object[] bcc) throws Exception;
 
 	/**
@@ -1070,7 +1250,9 @@ public interface EmailService {
 	 * @param bcc - List of BCC. If it's null tries the resource node's "bcc" property
 	 * @param variables - Additional template variables
 	 * @throws Exception
+	 * @deprecated Use {@link #prepareEmail()} with the template
 	 */
+	@Deprecated
 	public void sendEmailFromTemplateNode(Session session, Node template, String resource, Object[] to, Object[] cc, Object[] bcc, HashMap<String, Object> variables) throws Exception;
 
 
@@ -1084,7 +1266,9 @@ public interface EmailService {
 	 * @param bcc - List of BCC. If it's null tries the resource node's "bcc" property
 	 * @param variables - Additional template variables
 	 * @throws Exception
+	 * @deprecated Use {@link #prepareEmail()} with the template
 	 */
+	@Deprecated
 	public void sendEmailFromTemplateNode(Session session, Node template, Node resource, Object[] to, Object[] cc, Object[] bcc, HashMap<String, Object> variables) throws Exception;
 
 	/**
@@ -1100,7 +1284,9 @@ public interface EmailService {
 	 * @param bcc - The bcc recepients
 	 * @param variables - Template variables
 	 * @throws Exception
+	 * @deprecated Use {@link #prepareEmail()} with the template
 	 */
+	@Deprecated
 	public void sendEmailFromTemplateNode(Session session, String template, String subject, Object replyTo, Object from, Date date, Object[] to, Object[] cc, Object[] bcc, HashMap<String, Object> variables) throws Exception;
 
 	/**
@@ -1116,7 +1302,9 @@ public interface EmailService {
 	 * @param bcc - The bcc recepients
 	 * @param variables - Template variables
 	 * @throws Exception
+	 * @deprecated Use {@link #prepareEmail()} with the template
 	 */
+	@Deprecated
 	public void sendEmailFromTemplateNode(Session session, Node template, String subject, Object replyTo, Object from, Date date, Object[] to, Object[] cc, Object[] bcc, HashMap<String, Object> variables) throws Exception;
 
 	/**
@@ -1133,7 +1321,9 @@ public interface EmailService {
 	 * @param bcc - The bcc recepients
 	 * @param variables - Template variables
 	 * @throws Exception
+	 * @deprecated Use {@link #prepareEmail()} with the template
 	 */
+	@Deprecated
 	public void sendEmailFromTemplateNode(Session session, String template, String resource, String subject, Object replyTo, Object from, Date date, Object[] to, Object[] cc, Object[] bcc, HashMap<String, Object> variables) throws Exception;
 
 	/**
@@ -1150,7 +1340,9 @@ public interface EmailService {
 	 * @param bcc - The bcc recepients
 	 * @param variables - Template variables
 	 * @throws Exception
+	 * @deprecated Use {@link #prepareEmail()} with the template
 	 */
+	@Deprecated
 	public void sendEmailFromTemplateNode(Session session, Node template, String resource, String subject, Object replyTo, Object from, Date date, Object[] to, Object[] cc, Object[] bcc, HashMap<String, Object> variables) throws Exception;
 
 	/**
@@ -1167,7 +1359,9 @@ public interface EmailService {
 	 * @param bcc - The bcc recepients
 	 * @param variables - Template variables
 	 * @throws Exception
+	 * @deprecated Use {@link #prepareEmail()} with the template
 	 */
+	@Deprecated
 	public void sendEmailFromTemplateNode(Session session, String template, Node resource, String subject, Object replyTo, Object from, Date date, Object[] to, Object[] cc, Object[] bcc, HashMap<String, Object> variables) throws Exception;
 
 	/**
@@ -1184,7 +1378,9 @@ public interface EmailService {
 	 * @param bcc - The bcc recepients
 	 * @param variables - Template variables
 	 * @throws Exception
+	 * @deprecated Use {@link #prepareEmail()} with the template
 	 */
+	@Deprecated
 	public void sendEmailFromTemplateNode(Session session, Node template, Node resource, String subject, Object replyTo, Object from, Date date, Object[] to, Object[] cc, Object[] bcc, HashMap<String, Object> variables) throws Exception;
 
 }
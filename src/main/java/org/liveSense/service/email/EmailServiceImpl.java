@@ -16,24 +16,35 @@
  */
 package org.liveSense.service.email;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
+import java.io.OutputStreamWriter;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
-import java.util.ArrayList;
-import java.util.Calendar;
+import java.io.Writer;
 import java.util.Date;
 import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.activation.DataHandler;
 import javax.activation.DataSource;
+import javax.jcr.Binary;
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
 import javax.jcr.PathNotFoundException;
@@ -41,27 +52,25 @@ import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.Value;
 import javax.jcr.ValueFormatException;
-import javax.mail.BodyPart;
+import javax.mail.Address;
 import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.internet.AddressException;
 import javax.mail.internet.InternetAddress;
+import javax.mail.internet.InternetHeaders;
 import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
-import javax.mail.internet.MimeMultipart;
-import javax.mail.internet.MimeUtility;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.PropertyOption;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.ReferenceCardinality;
 import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.Service;
-import org.apache.jackrabbit.value.BinaryValue;
 import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
@@ -71,26 +80,35 @@ import org.apache.sling.jcr.api.SlingRepository;
 import org.apache.sling.jcr.resource.JcrResourceConstants;
 import org.liveSense.core.Configurator;
 import org.liveSense.core.Md5Encrypter;
-import org.liveSense.template.freemarker.wrapper.NodeModel;
+import org.liveSense.template.freemarker.wrapper.JcrObjectWrapper;
 import org.osgi.service.component.ComponentContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import de.l3s.boilerpipe.extractors.ArticleExtractor;
 import freemarker.template.Configuration;
 import freemarker.template.Template;
 import freemarker.template.TemplateException;
 
 /**
- * Default implementation of EmailService. The generated mails created under the spoolFolder with nodeType type.
- * When a node is created under the spool folder the EmailSendJobEventHandler catch it and tries to deliver.
+ * Default implementation of EmailService. The generated mails are enqueued to the configured {@link SpoolStore},
+ * the EmailSendJobEventHandler claims them from the store and tries to deliver.
  */
 @Component(label = "%email.service.name", description = "%email.service.description", immediate = true, metatype = true)
 @Service(value = EmailService.class)
 @Properties(value = { 
-		@Property(name = EmailServiceImpl.PARAM_NODE_TYPE, label = "%nodeType.label", description = "%nodeType.description", value = { EmailServiceImpl.DEFAULT_NODE_TYPE }),
-		@Property(name = EmailServiceImpl.PARAM_PROPERTY_NAME, label = "%propertyName.label", description = "%propertyName.description", value = EmailServiceImpl.DEFAULT_PROPERTY_NAME),
-		@Property(name = EmailServiceImpl.PARAM_SPOOL_FOLDER, label = "%spoolFolder.name", description = "%spoolFolder.description", value = EmailServiceImpl.DEFAULT_SPOOL_FOLDER) })
+		@Property(name = EmailServiceImpl.PARAM_SPOOL_STORE_TARGET, label = "%spoolStore.target.name", description = "%spoolStore.target.description", value = EmailServiceImpl.DEFAULT_SPOOL_STORE_TARGET),
+		@Property(name = EmailServiceImpl.PARAM_TEMPLATE_ROOTS, label = "%templateRoots.name", description = "%templateRoots.description", value = {"/apps", "/libs", "/etc"}),
+		@Property(name = EmailServiceImpl.PARAM_TEMPLATE_CACHE_SIZE, label = "%templateCacheSize.name", description = "%templateCacheSize.description", longValue = EmailServiceImpl.DEFAULT_TEMPLATE_CACHE_SIZE),
+		@Property(name = EmailServiceImpl.PARAM_SPOOL_BUFFER_THRESHOLD, label = "%spoolBufferThreshold.name", description = "%spoolBufferThreshold.description", intValue = EmailServiceImpl.DEFAULT_SPOOL_BUFFER_THRESHOLD),
+		@Property(name = EmailServiceImpl.PARAM_ATTACHMENT_CACHE_SIZE, label = "%attachmentCacheSize.name", description = "%attachmentCacheSize.description", longValue = EmailServiceImpl.DEFAULT_ATTACHMENT_CACHE_SIZE),
+		@Property(name = EmailServiceImpl.PARAM_HTML_TO_TEXT_CONVERTER, label = "%htmlToTextConverter.name", description = "%htmlToTextConverter.description", value = EmailServiceImpl.DEFAULT_HTML_TO_TEXT_CONVERTER, options = {
+				@PropertyOption(name = TokenizingHtmlToTextConverter.NAME, value = "Tokenizer"),
+				@PropertyOption(name = BoilerpipeHtmlToTextConverter.NAME, value = "Boilerpipe article extractor") }),
+		@Property(name = EmailServiceImpl.PARAM_TEXT_CACHE_SIZE, label = "%textCacheSize.name", description = "%textCacheSize.description", longValue = EmailServiceImpl.DEFAULT_TEXT_CACHE_SIZE),
+		@Property(name = EmailServiceImpl.PARAM_ALLOW_8BIT_MIME, label = "%allow8bitMime.name", description = "%allow8bitMime.description", boolValue = EmailServiceImpl.DEFAULT_ALLOW_8BIT_MIME),
+		@Property(name = EmailServiceImpl.PARAM_ADDRESS_CACHE_SIZE, label = "%addressCacheSize.name", description = "%addressCacheSize.description", longValue = EmailServiceImpl.DEFAULT_ADDRESS_CACHE_SIZE),
+		@Property(name = EmailServiceImpl.PARAM_BULK_THREADS, label = "%bulkThreads.name", description = "%bulkThreads.description", intValue = EmailServiceImpl.DEFAULT_BULK_THREADS),
+		@Property(name = EmailServiceImpl.PARAM_BULK_BATCH_SIZE, label = "%bulkBatchSize.name", description = "%bulkBatchSize.description", intValue = EmailServiceImpl.DEFAULT_BULK_BATCH_SIZE) })
 public class EmailServiceImpl implements EmailService {
 
 	/**
@@ -98,18 +116,66 @@ public class EmailServiceImpl implements EmailService {
 	 */
 	private final Logger log = LoggerFactory.getLogger(EmailServiceImpl.class);
 
-	public final static String PARAM_SPOOL_FOLDER = EmailSendJobEventHandler.PARAM_SPOOL_FOLDER;
-	public final static String DEFAULT_SPOOL_FOLDER = EmailSendJobEventHandler.DEFAULT_SPOOL_FOLDER;
+	/**
+	 * Target filter of the spool store reference, the store is selected by its name
+	 */
+	public static final String PARAM_SPOOL_STORE_TARGET = "spoolStore.target";
+	public static final String DEFAULT_SPOOL_STORE_TARGET = "(" + SpoolStore.STORE_NAME + "=" + JcrSpoolStore.NAME + ")";
+
+	/**
+	 * Paths of the repository templates. Only these paths are observed to invalidate the changed templates.
+	 */
+	public static final String PARAM_TEMPLATE_ROOTS = "templateRoots";
+	public static final String[] DEFAULT_TEMPLATE_ROOTS = {"/apps", "/libs", "/etc"};
+
+	public static final String PARAM_TEMPLATE_CACHE_SIZE = "templateCacheSize";
+	public static final long DEFAULT_TEMPLATE_CACHE_SIZE = 4 * 1024 * 1024;
+
+	public static final String PARAM_SPOOL_BUFFER_THRESHOLD = "spoolBufferThreshold";
+	public static final int DEFAULT_SPOOL_BUFFER_THRESHOLD = 256 * 1024;
+
+	public static final String PARAM_ATTACHMENT_CACHE_SIZE = "attachmentCacheSize";
+	public static final long DEFAULT_ATTACHMENT_CACHE_SIZE = 16 * 1024 * 1024;
+
+	public static final String PARAM_HTML_TO_TEXT_CONVERTER = "htmlToTextConverter";
+	public static final String DEFAULT_HTML_TO_TEXT_CONVERTER = TokenizingHtmlToTextConverter.NAME;
+
+	public static final String PARAM_TEXT_CACHE_SIZE = "textCacheSize";
+	public static final long DEFAULT_TEXT_CACHE_SIZE = 2 * 1024 * 1024;
+
+	public static final String PARAM_ALLOW_8BIT_MIME = "allow8bitMime";
+	public static final boolean DEFAULT_ALLOW_8BIT_MIME = false;
 
-	public static final String PARAM_NODE_TYPE = EmailResourceChangeListener.PARAM_NODE_TYPE;
-	public static final String DEFAULT_NODE_TYPE = EmailResourceChangeListener.NODE_TYPE_EMAIL;
+	public static final String PARAM_ADDRESS_CACHE_SIZE = "addressCacheSize";
+	public static final long DEFAULT_ADDRESS_CACHE_SIZE = 10000;
 
-	public static final String PARAM_PROPERTY_NAME = EmailResourceChangeListener.PARAM_PROPERTY_NAME;
-	public static final String DEFAULT_PROPERTY_NAME = EmailResourceChangeListener.PROPERTY_NAME;
+	/**
+	 * Number of bulk send threads, 0 means the number of processors
+	 */
+	public static final String PARAM_BULK_THREADS = "bulkThreads";
+	public static final int DEFAULT_BULK_THREADS = 0;
 
-	private String nodeType = DEFAULT_NODE_TYPE;
-	private String propertyName = DEFAULT_PROPERTY_NAME;
-	private String spoolFolder = DEFAULT_SPOOL_FOLDER;
+	/**
+	 * Number of messages saved at once by a bulk send
+	 */
+	public static final String PARAM_BULK_BATCH_SIZE = "bulkBatchSize";
+	public static final int DEFAULT_BULK_BATCH_SIZE = 100;
+
+	private long templateCacheSize = DEFAULT_TEMPLATE_CACHE_SIZE;
+	private int spoolBufferThreshold = DEFAULT_SPOOL_BUFFER_THRESHOLD;
+	private long attachmentCacheSize = DEFAULT_ATTACHMENT_CACHE_SIZE;
+	private long textCacheSize = DEFAULT_TEXT_CACHE_SIZE;
+	private boolean allow8bitMime = DEFAULT_ALLOW_8BIT_MIME;
+	private long addressCacheSize = DEFAULT_ADDRESS_CACHE_SIZE;
+	private int bulkThreads = DEFAULT_BULK_THREADS;
+	private int bulkBatchSize = DEFAULT_BULK_BATCH_SIZE;
+
+	private ThreadPoolExecutor bulkExecutor;
+
+	/**
+	 * Threads reading the recipient sources of bulk sends, stopped on deactivation
+	 */
+	private ExecutorService bulkReaderExecutor;
 
 	@Reference(cardinality=ReferenceCardinality.MANDATORY_UNARY, policy=ReferencePolicy.DYNAMIC)
 	private Configurator configurator;
@@ -120,12 +186,45 @@ public class EmailServiceImpl implements EmailService {
 	@Reference(cardinality=ReferenceCardinality.MANDATORY_UNARY, policy=ReferencePolicy.DYNAMIC)
 	ResourceResolverFactory resourceResolverFactory;
 
+	@Reference(name = "spoolStore", cardinality=ReferenceCardinality.MANDATORY_UNARY, policy=ReferencePolicy.DYNAMIC, target = EmailServiceImpl.DEFAULT_SPOOL_STORE_TARGET)
+	private volatile SpoolStore spoolStore;
+
+	/**
+	 * Custom converter. If it's presented it is used instead of the configured built-in converter.
+	 */
+	@Reference(cardinality=ReferenceCardinality.OPTIONAL_UNARY, policy=ReferencePolicy.DYNAMIC)
+	private volatile HtmlToTextConverter customHtmlToTextConverter;
+
+	private HtmlToTextConverter htmlToTextConverter = new TokenizingHtmlToTextConverter();
+
 	protected SlingRepository getRepository() {
 		return repository;
 	}
 
 	private Configuration templateConfig;
 
+	private JcrTemplateLoader templateLoader;
+
+	/**
+	 * Compiled templates by the MD5 hash of template source. The weight of an entry is the length of the source.
+	 */
+	private LruCache<String, Template> templateCache = new LruCache<String, Template>(DEFAULT_TEMPLATE_CACHE_SIZE);
+
+	/**
+	 * Base64 encoded attachments by node identifier and last modification. The weight of an entry is the encoded size.
+	 */
+	private LruCache<String, byte[]> attachmentCache = new LruCache<String, byte[]>(DEFAULT_ATTACHMENT_CACHE_SIZE);
+
+	/**
+	 * Plain text alternatives by the converter and the MD5 hash of HTML. The weight of an entry is the length of the text.
+	 */
+	private LruCache<String, String> textCache = new LruCache<String, String>(DEFAULT_TEXT_CACHE_SIZE);
+
+	/**
+	 * Parsed addresses by the address string.
+	 */
+	private AddressNormalizer addressNormalizer = new AddressNormalizer("UTF-8", DEFAULT_ADDRESS_CACHE_SIZE);
+
 	/**
 	 * Activates this component.
 	 * 
@@ -135,39 +234,96 @@ public class EmailServiceImpl implements EmailService {
 	@Activate
 	protected void activate(ComponentContext componentContext) throws RepositoryException {
 		Dictionary<?, ?> props = componentContext.getProperties();
-		nodeType = PropertiesUtil.toString(props.get(PARAM_NODE_TYPE), DEFAULT_NODE_TYPE);
-		propertyName = PropertiesUtil.toString(props.get(DEFAULT_PROPERTY_NAME), DEFAULT_PROPERTY_NAME);
-		spoolFolder = PropertiesUtil.toString(props.get(PARAM_SPOOL_FOLDER), DEFAULT_SPOOL_FOLDER);
-
-		if (spoolFolder.startsWith("/"))
-			spoolFolder = spoolFolder.substring(1);
-		if (spoolFolder.endsWith("/"))
-			spoolFolder = spoolFolder.substring(0, spoolFolder.length() - 1);
-
-		Session admin = repository.loginAdministrative(null);
-		String spoolFolders[] = spoolFolder.split("/");
-		Node n = admin.getRootNode();
-		for (int i = 0; i < spoolFolders.length; i++) {
-			if (!n.hasNode(spoolFolders[i])) {
-				n = n.addNode(spoolFolders[i]);
-			} else {
-				n = n.getNode(spoolFolders[i]);
+		templateCacheSize = PropertiesUtil.toLong(props.get(PARAM_TEMPLATE_CACHE_SIZE), DEFAULT_TEMPLATE_CACHE_SIZE);
+		spoolBufferThreshold = PropertiesUtil.toInteger(props.get(PARAM_SPOOL_BUFFER_THRESHOLD), DEFAULT_SPOOL_BUFFER_THRESHOLD);
+		attachmentCacheSize = PropertiesUtil.toLong(props.get(PARAM_ATTACHMENT_CACHE_SIZE), DEFAULT_ATTACHMENT_CACHE_SIZE);
+		textCacheSize = PropertiesUtil.toLong(props.get(PARAM_TEXT_CACHE_SIZE), DEFAULT_TEXT_CACHE_SIZE);
+		allow8bitMime = PropertiesUtil.toBoolean(props.get(PARAM_ALLOW_8BIT_MIME), DEFAULT_ALLOW_8BIT_MIME);
+		addressCacheSize = PropertiesUtil.toLong(props.get(PARAM_ADDRESS_CACHE_SIZE), DEFAULT_ADDRESS_CACHE_SIZE);
+		bulkThreads = PropertiesUtil.toInteger(props.get(PARAM_BULK_THREADS), DEFAULT_BULK_THREADS);
+		if (bulkThreads <= 0)
+			bulkThreads = Runtime.getRuntime().availableProcessors();
+		bulkBatchSize = Math.max(1, PropertiesUtil.toInteger(props.get(PARAM_BULK_BATCH_SIZE), DEFAULT_BULK_BATCH_SIZE));
+		String converterName = PropertiesUtil.toString(props.get(PARAM_HTML_TO_TEXT_CONVERTER), DEFAULT_HTML_TO_TEXT_CONVERTER);
+		if (BoilerpipeHtmlToTextConverter.NAME.equals(converterName)) {
+			htmlToTextConverter = new BoilerpipeHtmlToTextConverter();
+		} else {
+			if (!TokenizingHtmlToTextConverter.NAME.equals(converterName)) {
+				log.warn("Unknown HTML to text converter: " + converterName + ", using " + TokenizingHtmlToTextConverter.NAME);
 			}
+			htmlToTextConverter = new TokenizingHtmlToTextConverter();
 		}
-		admin.save();
-		admin.logout();
+
+		templateLoader = new JcrTemplateLoader(repository, PropertiesUtil.toStringArray(props.get(PARAM_TEMPLATE_ROOTS), DEFAULT_TEMPLATE_ROOTS));
+		templateLoader.start();
 
 		templateConfig = new Configuration();
+		templateConfig.setTemplateLoader(templateLoader);
+		templateConfig.setLocalizedLookup(false);
+		// The loader is invalidated by observation, so it's cheap to check it on every lookup
+		templateConfig.setTemplateUpdateDelay(0);
+		templateConfig.setDefaultEncoding(configurator.getEncoding());
+		templateCache = new LruCache<String, Template>(templateCacheSize);
+		attachmentCache = new LruCache<String, byte[]>(attachmentCacheSize);
+		textCache = new LruCache<String, String>(textCacheSize);
+		addressNormalizer = new AddressNormalizer(configurator.getEncoding(), addressCacheSize);
+
+		// The queue is bounded, when it's full the submitting thread renders the chunk itself
+		bulkExecutor = new ThreadPoolExecutor(bulkThreads, bulkThreads, 60L, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(bulkThreads * 2),
+				createThreadFactory("liveSense-mail-bulk-"), new BulkRejectionHandler());
+		bulkExecutor.allowCoreThreadTimeOut(true);
+		bulkReaderExecutor = Executors.newCachedThreadPool(createThreadFactory("liveSense-mail-bulk-reader-"));
+	}
+
+	private static ThreadFactory createThreadFactory(final String prefix) {
+		return new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, prefix + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
 	}
 
-	@Deactivate
-	public void deactivate(ComponentContext componentContext) throws RepositoryException {
+	/**
+	 * Runs the rejected chunk in the submitting thread while the executor is running (its queue is full).
+	 * The chunks rejected after shutdown are counted as skipped, so their bulk send is finished.
+	 */
+	private static class BulkRejectionHandler implements RejectedExecutionHandler {
+		public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+			if (!executor.isShutdown()) {
+				r.run();
+			} else if (r instanceof BulkChunk) {
+				((BulkChunk) r).skip();
+			}
+		}
 	}
 
-	private String getNodeContentAsString(Node node) throws ValueFormatException, PathNotFoundException, IOException, RepositoryException {
-		if (node == null)
-			return null;
-		return IOUtils.toString(node.getNode("jcr:content").getProperty("jcr:data").getBinary().getStream(), configurator.getEncoding());
+	@Deactivate
+	public void deactivate(ComponentContext componentContext) throws RepositoryException {
+		// The readers are interrupted, the chunks submitted after shutdown are skipped
+		if (bulkReaderExecutor != null) {
+			bulkReaderExecutor.shutdownNow();
+			bulkReaderExecutor = null;
+		}
+		if (bulkExecutor != null) {
+			bulkExecutor.shutdown();
+			bulkExecutor = null;
+		}
+		log.info("Template cache statistics - " + templateCache);
+		templateCache.clear();
+		log.info("Attachment cache statistics - " + attachmentCache);
+		attachmentCache.clear();
+		log.info("Plain text cache statistics - " + textCache);
+		textCache.clear();
+		log.info("Address cache statistics - " + addressNormalizer);
+		addressNormalizer.clear();
+		if (templateLoader != null) {
+			templateLoader.stop();
+			templateLoader = null;
+		}
 	}
 
 	private Node getNodeFromPath(Session session, String path) throws RepositoryException {
@@ -198,6 +354,30 @@ public class EmailServiceImpl implements EmailService {
 		return node;
 	}
 
+	private Template getTemplateFromNode(Node node) throws RepositoryException, IOException {
+		if (node == null)
+			return null;
+		return templateConfig.getTemplate(node.getPath());
+	}
+
+	private Template getTemplateFromPath(Session session, String path) throws RepositoryException, IOException {
+		if (session == null || path == null)
+			return null;
+		// The template loader reads with its own session, so the access of the caller is checked here
+		if (!session.nodeExists(path))
+			return null;
+		return templateConfig.getTemplate(path);
+	}
+
+	private Template getCompiledTemplate(String name, String template) throws IOException {
+		Template tmpl = templateCache.get(name);
+		if (tmpl == null) {
+			tmpl = new Template(name, new StringReader(template), templateConfig);
+			templateCache.put(name, tmpl, template.length());
+		}
+		return tmpl;
+	}
+
 	private String templateNode(String name, Node resource, String template, HashMap<String, Object> bindings) throws ValueFormatException, PathNotFoundException, IOException, RepositoryException, TemplateException {
 		if (template == null)
 			return null;
@@ -207,37 +387,48 @@ public class EmailServiceImpl implements EmailService {
 			if (bindings == null)
 				bindings = new HashMap<String, Object>();
 
-			Template tmpl = new Template(name, new StringReader(template), templateConfig);
-			if (resource != null)
-				bindings.put("node", new NodeModel(resource));
-
-			StringWriter tmplWriter = new StringWriter(32768);
-			tmpl.process(bindings, tmplWriter);
-			return tmplWriter.toString();
+			return templateNode(getCompiledTemplate(name, template), resource, bindings);
 		}
 	}
 
+	private String templateNode(Template tmpl, Node resource, HashMap<String, Object> bindings) throws IOException, RepositoryException, TemplateException {
+		StringWriter tmplWriter = new StringWriter(32768);
+		templateNode(tmpl, resource, bindings, tmplWriter);
+		return tmplWriter.toString();
+	}
+
+	private void templateNode(Template tmpl, Node resource, HashMap<String, Object> bindings, Writer out) throws IOException, RepositoryException, TemplateException {
+		if (bindings == null)
+			bindings = new HashMap<String, Object>();
+		// The wrapper memoises the node and property models for this render
+		JcrObjectWrapper wrapper = new JcrObjectWrapper();
+		if (resource != null)
+			bindings.put("node", wrapper.wrapNode(resource));
+		// Fragments are shared only by the messages of a bulk send
+		if (!bindings.containsKey(SharedFragmentDirective.NAME))
+			bindings.put(SharedFragmentDirective.NAME, new SharedFragmentDirective());
+
+		tmpl.process(bindings, out, wrapper);
+	}
+
+	private Writer createSpoolWriter(SpoolBuffer buffer) throws UnsupportedEncodingException {
+		return new BufferedWriter(new OutputStreamWriter(buffer, configurator.getEncoding()));
+	}
+
 	private InternetAddress[] convertToInternetAddress(Object address) throws AddressException, UnsupportedEncodingException {
-		if (address == null) return new InternetAddress[]{};
-		if (address instanceof InternetAddress)
-			return new InternetAddress[] {(InternetAddress)address};
-		else if (address instanceof String) {
-			return new InternetAddress[] {new InternetAddress(MimeUtility.encodeText((String)address, configurator.getEncoding(), "Q"))};
-		} else if (address instanceof InternetAddress[]) {
-			return (InternetAddress[]) address;
-		} else if (address instanceof List<?>) {
-			return convertToInternetAddress(((List) address).toArray());
-		} else if (address instanceof Object[]) {
-			List<InternetAddress> list = new ArrayList<InternetAddress>();
-			for (Object o : (Object[])address) {
-				for (InternetAddress addr : convertToInternetAddress(o)) {
-					list.add(addr);
-				}
-				return list.toArray(new InternetAddress[list.size()]);
-			}
-		}
-		return new InternetAddress[] {new InternetAddress(MimeUtility.encodeText(address.toString(), configurator.getEncoding(), "Q"))};
+		return addressNormalizer.normalize(address);
+	}
 
+	private String[] getStrings(javax.jcr.Property property) throws RepositoryException {
+		if (!property.isMultiple()) {
+			return new String[] {property.getString()};
+		}
+		Value[] values = property.getValues();
+		String[] strings = new String[values.length];
+		for (int i = 0; i < values.length; i++) {
+			strings[i] = values[i].getString();
+		}
+		return strings;
 	}
 	
 	private MimeMessage prepareMimeMessage(MimeMessage mimeMessage, Node node, String template, String subject, Object replyTo, Object from, Date date, Object[] to, Object[] cc, Object[] bcc, HashMap<String, Object> variables) throws AddressException, MessagingException, ValueFormatException, PathNotFoundException,
@@ -266,12 +457,12 @@ public class EmailServiceImpl implements EmailService {
 		}
 
 		if (subject != null) {
-			mimeMessage.setSubject(MimeUtility.encodeText(subject, configurator.getEncoding(), "Q"));
+			mimeMessage.setSubject(TransferEncodingSelector.encodeHeader(subject, configurator.getEncoding()));
 		} else {
 			if (node != null && node.hasProperty("subject")) {
-				mimeMessage.setSubject(MimeUtility.encodeText(node.getProperty("subject").getString(), configurator.getEncoding(), "Q"));
+				mimeMessage.setSubject(TransferEncodingSelector.encodeHeader(node.getProperty("subject").getString(), configurator.getEncoding()));
 			} else if (variables != null && variables.containsKey("subject")) {
-				mimeMessage.setSubject(MimeUtility.encodeText((String)variables.get("subject"), configurator.getEncoding(), "Q"));
+				mimeMessage.setSubject(TransferEncodingSelector.encodeHeader((String)variables.get("subject"), configurator.getEncoding()));
 			}
 		}
 
@@ -289,14 +480,8 @@ public class EmailServiceImpl implements EmailService {
 			mimeMessage.addRecipients(Message.RecipientType.TO, convertToInternetAddress(to));
 		} else {
 			if (node != null && node.hasProperty("to")) {
-				if (node.getProperty("to").isMultiple()) {
-					Value[] values = node.getProperty("to").getValues();
-					for (int i = 0; i < values.length; i++) {
-						mimeMessage.addRecipients(Message.RecipientType.TO, convertToInternetAddress(values[i].getString()));
-					}
-				} else {
-					mimeMessage.addRecipients(Message.RecipientType.TO, convertToInternetAddress(node.getProperty("to").getString()));
-				}
+				// All values are added at once, every addRecipients call parses the header again
+				mimeMessage.addRecipients(Message.RecipientType.TO, convertToInternetAddress(getStrings(node.getProperty("to"))));
 			}	else if (variables != null && variables.containsKey("to")) {
 				mimeMessage.addRecipients(Message.RecipientType.TO, convertToInternetAddress(variables.get("to")));
 			}
@@ -307,14 +492,8 @@ public class EmailServiceImpl implements EmailService {
 			mimeMessage.addRecipients(Message.RecipientType.CC, convertToInternetAddress(cc));
 		} else {
 			if (node != null && node.hasProperty("cc")) {
-				if (node.getProperty("cc").isMultiple()) {
-					Value[] values = node.getProperty("cc").getValues();
-					for (int i = 0; i < values.length; i++) {
-						mimeMessage.addRecipients(Message.RecipientType.CC, convertToInternetAddress(values[i].getString()));
-					}
-				} else {
-					mimeMessage.addRecipients(Message.RecipientType.CC, convertToInternetAddress(node.getProperty("cc").getString()));
-				}
+				// All values are added at once, every addRecipients call parses the header again
+				mimeMessage.addRecipients(Message.RecipientType.CC, convertToInternetAddress(getStrings(node.getProperty("cc"))));
 			} else if (variables != null && variables.containsKey("cc")) {
 				mimeMessage.addRecipients(Message.RecipientType.CC, convertToInternetAddress(variables.get("cc")));
 			}
@@ -324,14 +503,8 @@ public class EmailServiceImpl implements EmailService {
 			mimeMessage.addRecipients(Message.RecipientType.BCC, convertToInternetAddress(bcc));
 		} else {
 			if (node != null && node.hasProperty("bcc")) {
-				if (node.getProperty("bcc").isMultiple()) {
-					Value[] values = node.getProperty("bcc").getValues();
-					for (int i = 0; i < values.length; i++) {
-						mimeMessage.addRecipients(Message.RecipientType.BCC, convertToInternetAddress(values[i].getString()));
-					}
-				} else {
-					mimeMessage.addRecipients(Message.RecipientType.BCC, convertToInternetAddress(node.getProperty("bcc").getString()));
-				}
+				// All values are added at once, every addRecipients call parses the header again
+				mimeMessage.addRecipients(Message.RecipientType.BCC, convertToInternetAddress(getStrings(node.getProperty("bcc"))));
 			}  else if (variables != null && variables.containsKey("bcc")) {
 				mimeMessage.addRecipients(Message.RecipientType.BCC, convertToInternetAddress(variables.get("bcc")));
 			}
@@ -344,7 +517,29 @@ public class EmailServiceImpl implements EmailService {
 	 */
 	@Override
 	public String extractTextFromHtml(String html) throws Exception {
-		return ArticleExtractor.getInstance().getText(html);
+		HtmlToTextConverter converter = getHtmlToTextConverter();
+		if (html == null || textCache.getCapacity() == 0) {
+			return converter.convert(html);
+		}
+		// The same HTML can give different text with another converter
+		String key = converter.getClass().getName() + "@" + Md5Encrypter.encrypt(html);
+		String text = textCache.get(key);
+		if (text == null) {
+			text = converter.convert(html);
+			if (text != null) {
+				textCache.put(key, text, text.length());
+			}
+		}
+		return text;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public HtmlToTextConverter getHtmlToTextConverter() {
+		HtmlToTextConverter converter = customHtmlToTextConverter;
+		return converter != null ? converter : htmlToTextConverter;
 	}
 
 	/**
@@ -359,7 +554,7 @@ public class EmailServiceImpl implements EmailService {
 	 * {@inheritDoc}
 	 */
 	@Override
-	public void sendEmail(Session session, final MimeMessage message) throws Exception {
+	public void sendEmail(Session session, MimeMessage message) throws Exception {
 		boolean haveSession = false;
 
 		try {
@@ -369,36 +564,14 @@ public class EmailServiceImpl implements EmailService {
 				session = repository.loginAdministrative(null);
 			}
 
-			// Store mail to Spool folder
-			Node mailNode = session.getRootNode().getNode(spoolFolder).addNode(UUID.randomUUID().toString(), nodeType);
-			mailNode = mailNode.addNode(propertyName, "nt:resource");
-
-			PipedInputStream in = new PipedInputStream();
-			final PipedOutputStream out = new PipedOutputStream(in);
-			new Thread(new Runnable() {
-				@Override
-				public void run() {
-					try {
-						message.writeTo(out);
-						out.close();
-					} catch (IOException e) {
-						log.error("Could not write mail message stream", e);
-					} catch (MessagingException e) {
-						log.error("Could not write mail message stream", e);
-					}
-				}
-			}).start();
-			BinaryValue bv = null;
+			// The message is written in the calling thread, large messages are spilled to disk by the buffer
+			SpoolBuffer buffer = new SpoolBuffer(spoolBufferThreshold);
 			try {
-				bv = new BinaryValue(in);
-			} catch (IllegalArgumentException e) {
-				// The jackrabbit closes the PipedInputStream, thats incorrect
+				message.writeTo(buffer);
+				storeMessage(session, buffer);
+			} finally {
+				buffer.dispose();
 			}
-			if (bv != null) {
-				mailNode.setProperty("jcr:data", bv);
-			}
-			mailNode.setProperty("jcr:lastModified", Calendar.getInstance());
-			mailNode.setProperty("jcr:mimeType", "message/rfc822");
 
 		} catch (Exception ex) {
 			log.error("Cannot create mail: ", ex);
@@ -415,12 +588,414 @@ public class EmailServiceImpl implements EmailService {
 		}
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public PreparedEmail.Builder prepareEmail() {
+		return new PreparedEmail.Builder(this);
+	}
+
+	PreparedEmail prepare(PreparedEmail.Builder builder) throws Exception {
+		Session session = builder.session;
+		boolean haveSession = false;
+		try {
+			if (session != null && session.isLive()) {
+				haveSession = true;
+			} else {
+				session = repository.loginAdministrative(null);
+			}
+
+			Template template;
+			if (builder.templateSource != null) {
+				template = getCompiledTemplate(Md5Encrypter.encrypt(builder.templateSource), builder.templateSource);
+			} else if (builder.templateNode != null) {
+				template = getTemplateFromNode(builder.templateNode);
+			} else {
+				template = getTemplateFromPath(session, builder.templatePath);
+			}
+			if (template == null)
+				throw new RepositoryException("Template is null");
+
+			Node resource = builder.resource != null ? builder.resource : getNodeFromPath(session, builder.resourcePath);
+
+			List<PreparedAttachment> attachments = new ArrayList<PreparedAttachment>();
+			if (!builder.rfc822) {
+				if (builder.attachResourceFiles && resource != null && resource.hasNodes()) {
+					NodeIterator iter = resource.getNodes();
+					while (iter.hasNext()) {
+						Node n = iter.nextNode();
+						if (n.getPrimaryNodeType().isNodeType("nt:file")) {
+							attachments.add(prepareAttachment(n));
+						}
+					}
+				}
+				for (Node file : builder.attachmentNodes) {
+					attachments.add(prepareAttachment(file));
+				}
+				attachments.addAll(builder.attachments);
+			}
+
+			return new PreparedEmail(template, builder.rfc822, resource != null ? resource.getPath() : null, builder.attachResourceFiles,
+					TransferEncodingSelector.encodeHeader(builder.subject, configurator.getEncoding()),
+					builder.from != null ? convertToInternetAddress(builder.from)[0] : null,
+					builder.replyTo != null ? convertToInternetAddress(builder.replyTo) : null,
+					builder.to.isEmpty() ? null : convertToInternetAddress(builder.to),
+					builder.cc.isEmpty() ? null : convertToInternetAddress(builder.cc),
+					builder.bcc.isEmpty() ? null : convertToInternetAddress(builder.bcc),
+					builder.date, builder.variables, attachments);
+		} finally {
+			if (!haveSession && session != null) {
+				session.logout();
+			}
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void sendEmail(PreparedEmail email, Map<String, Object> variables) throws Exception {
+		sendEmail(null, email, variables);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void sendEmail(Session session, PreparedEmail email, Map<String, Object> variables) throws Exception {
+		boolean haveSession = false;
+		try {
+			if (session != null && session.isLive()) {
+				haveSession = true;
+			} else {
+				session = repository.loginAdministrative(null);
+			}
+			spoolPreparedEmail(session, email, getNodeFromPath(session, email.getResourcePath()), false, variables, null);
+		} finally {
+			if (!haveSession && session != null) {
+				if (session.hasPendingChanges()) {
+					try {
+						session.save();
+					} catch (Throwable th) {
+					}
+				}
+				session.logout();
+			}
+		}
+	}
+
+	/**
+	 * Spool a prepared email. The messages of a bulk send are streamed from the skeleton of the job unless
+	 * they have resource attachments, which are not part of the skeleton.
+	 * @param attachResourceFiles - The nt:file children of resource are attached to this message besides the attachments of the prepared email
+	 * @param job - The bulk send, or null
+	 */
+	private void spoolPreparedEmail(Session session, PreparedEmail email, Node resource, boolean attachResourceFiles, Map<String, Object> variables, BulkJob job) throws Exception {
+		HashMap<String, Object> bindings = new HashMap<String, Object>(email.getVariables());
+		if (variables != null)
+			bindings.putAll(variables);
+		if (job != null && job.shared != null)
+			bindings.put(SharedFragmentDirective.NAME, job.shared);
+
+		if (email.isRfc822()) {
+			spoolTemplate(session, email.getTemplate(), resource, bindings);
+		} else if (job != null && !attachResourceFiles) {
+			String html = templateNode(email.getTemplate(), resource, bindings);
+			spoolFromSkeleton(session, job.skeleton, html, resource, email, bindings);
+		} else {
+			String html = templateNode(email.getTemplate(), resource, bindings);
+			sendEmailFromHtml(session, html, resource, email.getAttachments(), attachResourceFiles, email.getSubject(), email.getReplyTo(), email.getFrom(), email.getDate(),
+					email.getTo(), email.getCc(), email.getBcc(), bindings);
+		}
+	}
+
+	/**
+	 * Spool a message by the compiled skeleton of a bulk send. Only the headers are set on a MimeMessage,
+	 * the content is streamed from the skeleton, so no multipart object graph is built per recipient.
+	 */
+	private void spoolFromSkeleton(Session session, MessageSkeleton skeleton, String html, Node resource, PreparedEmail email, HashMap<String, Object> bindings) throws Exception {
+		MimeMessage headers = new MimeMessage((javax.mail.Session) null);
+		prepareMimeMessage(headers, resource, null, email.getSubject(), email.getReplyTo(), email.getFrom(), email.getDate(),
+				email.getTo(), email.getCc(), email.getBcc(), bindings);
+		headers.setHeader("Message-ID", createMessageId(headers));
+
+		SpoolBuffer buffer = new SpoolBuffer(spoolBufferThreshold);
+		try {
+			Enumeration<?> lines = headers.getNonMatchingHeaderLines(new String[] {"MIME-Version", "Content-Type", "Content-Transfer-Encoding"});
+			while (lines.hasMoreElements()) {
+				buffer.write((lines.nextElement() + "\r\n").getBytes("ISO-8859-1"));
+			}
+			skeleton.writeTo(buffer, extractTextFromHtml(html), html);
+			storeMessage(session, buffer);
+		} finally {
+			buffer.dispose();
+		}
+	}
+
+	private String createMessageId(MimeMessage message) throws MessagingException {
+		String domain = "localhost";
+		Address[] from = message.getFrom();
+		if (from != null && from.length > 0 && from[0] instanceof InternetAddress) {
+			String fromDomain = AddressNormalizer.getDomain((InternetAddress) from[0]);
+			if (fromDomain.length() > 0)
+				domain = fromDomain;
+		}
+		return "<" + UUID.randomUUID().toString() + "." + System.currentTimeMillis() + "@" + domain + ">";
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public BulkSendProgress sendBulk(String template, Iterable<? extends Map<String, Object>> recipients) throws Exception {
+		return sendBulk(prepareEmail().template(template).build(), recipients);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public BulkSendProgress sendBulk(final PreparedEmail email, final Iterable<? extends Map<String, Object>> recipients) {
+		final ThreadPoolExecutor executor = bulkExecutor;
+		final BulkJob job = new BulkJob(email, true);
+		final BulkSendProgress progress = job.progress;
+		// The recipients are read in a separate thread, so lazy recipient sources are not read in the caller
+		startBulkReader(executor, new Runnable() {
+			public void run() {
+				try {
+					List<Map<String, Object>> chunk = new ArrayList<Map<String, Object>>(bulkBatchSize);
+					for (Map<String, Object> variables : recipients) {
+						if (progress.isCancelled() || isBulkReaderStopped(progress))
+							break;
+						chunk.add(variables);
+						if (chunk.size() >= bulkBatchSize) {
+							submitBulkChunk(executor, new RecipientChunk(job, chunk));
+							chunk = new ArrayList<Map<String, Object>>(bulkBatchSize);
+						}
+					}
+					if (!chunk.isEmpty() && !progress.isCancelled()) {
+						submitBulkChunk(executor, new RecipientChunk(job, chunk));
+					}
+				} catch (Throwable th) {
+					log.error("Cannot read bulk mail recipients", th);
+					progress.error(th);
+				} finally {
+					progress.submitFinished();
+				}
+			}
+		});
+		return progress;
+	}
+
+	private void startBulkReader(ThreadPoolExecutor executor, Runnable reader) {
+		ExecutorService readers = bulkReaderExecutor;
+		if (executor == null || executor.isShutdown() || readers == null)
+			throw new IllegalStateException("Email service is not active");
+		try {
+			readers.execute(reader);
+		} catch (RejectedExecutionException e) {
+			throw new IllegalStateException("Email service is not active");
+		}
+	}
+
+	/**
+	 * @return true if the reader thread is interrupted by deactivation. The error of progress is set.
+	 */
+	private boolean isBulkReaderStopped(BulkSendProgress progress) {
+		if (!Thread.currentThread().isInterrupted())
+			return false;
+		progress.error(new InterruptedException("Bulk send is stopped by the deactivation of email service"));
+		return true;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public BulkSendProgress sendBulkFromQuery(String template, String query, String language) throws Exception {
+		return sendBulkFromQuery(prepareEmail().template(template).build(), query, language);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public BulkSendProgress sendBulkFromQuery(final PreparedEmail email, final String query, final String language) {
+		final ThreadPoolExecutor executor = bulkExecutor;
+		// The node differs for every message, so the fragments are not shared
+		final BulkJob job = new BulkJob(email, false);
+		final BulkSendProgress progress = job.progress;
+		// Only the paths of a chunk are kept, the result is read lazily while the chunks are rendered
+		startBulkReader(executor, new Runnable() {
+			public void run() {
+				Session session = null;
+				try {
+					session = repository.loginAdministrative(null);
+					NodeIterator nodes = session.getWorkspace().getQueryManager().createQuery(query, language).execute().getNodes();
+					List<String> chunk = new ArrayList<String>(bulkBatchSize);
+					while (nodes.hasNext() && !progress.isCancelled() && !isBulkReaderStopped(progress)) {
+						chunk.add(nodes.nextNode().getPath());
+						if (chunk.size() >= bulkBatchSize) {
+							submitBulkChunk(executor, new ResourceChunk(job, chunk));
+							chunk = new ArrayList<String>(bulkBatchSize);
+						}
+					}
+					if (!chunk.isEmpty() && !progress.isCancelled()) {
+						submitBulkChunk(executor, new ResourceChunk(job, chunk));
+					}
+				} catch (Throwable th) {
+					log.error("Cannot read bulk mail query result: " + query, th);
+					progress.error(th);
+				} finally {
+					if (session != null)
+						session.logout();
+					progress.submitFinished();
+				}
+			}
+		});
+		return progress;
+	}
+
+	/**
+	 * State shared by the chunks of a bulk send
+	 */
+	private class BulkJob {
+		final PreparedEmail email;
+		final BulkSendProgress progress = new BulkSendProgress();
+		/**
+		 * The fragments shared by the messages, null if every message renders its own
+		 */
+		final SharedFragmentDirective shared;
+		final MessageSkeleton skeleton;
+
+		BulkJob(PreparedEmail email, boolean shareFragments) {
+			this.email = email;
+			this.shared = shareFragments ? new SharedFragmentDirective() : null;
+			this.skeleton = new MessageSkeleton(email.getAttachments(), configurator.getEncoding(), allow8bitMime);
+		}
+	}
+
+	/**
+	 * Submit a chunk. After shutdown the chunk is skipped by the rejection handler.
+	 */
+	private void submitBulkChunk(ThreadPoolExecutor executor, BulkChunk chunk) {
+		chunk.progress.submitted(chunk.size());
+		executor.execute(chunk);
+	}
+
+	/**
+	 * Chunk of a bulk send. The messages of a chunk are rendered and spooled in one session with one save.
+	 */
+	private abstract class BulkChunk implements Runnable {
+		final BulkJob job;
+		final PreparedEmail email;
+		final BulkSendProgress progress;
+
+		BulkChunk(BulkJob job) {
+			this.job = job;
+			this.email = job.email;
+			this.progress = job.progress;
+		}
+
+		abstract int size();
+
+		abstract void send(Session session, int index) throws Exception;
+
+		/**
+		 * Count the chunk as skipped without running it
+		 */
+		void skip() {
+			progress.skipped(size());
+		}
+
+		public void run() {
+			Session session = null;
+			int rendered = 0;
+			// The items counted as failed or skipped one by one
+			int counted = 0;
+			try {
+				session = repository.loginAdministrative(null);
+				for (int i = 0; i < size(); i++) {
+					if (progress.isCancelled()) {
+						progress.skipped(size() - i);
+						counted += size() - i;
+						break;
+					}
+					try {
+						send(session, i);
+						rendered++;
+					} catch (Exception e) {
+						log.error("Cannot create bulk mail: ", e);
+						progress.failed(1);
+						counted++;
+					}
+				}
+				session.save();
+				progress.sent(rendered);
+			} catch (Throwable th) {
+				// The rendered items are not saved and the rest are not rendered
+				log.error("Cannot save bulk mails: ", th);
+				progress.failed(size() - counted);
+			} finally {
+				if (session != null)
+					session.logout();
+			}
+		}
+	}
+
+	/**
+	 * Chunk of recipient variables
+	 */
+	private class RecipientChunk extends BulkChunk {
+		private final List<Map<String, Object>> recipients;
+
+		RecipientChunk(BulkJob job, List<Map<String, Object>> recipients) {
+			super(job);
+			this.recipients = recipients;
+		}
+
+		@Override
+		int size() {
+			return recipients.size();
+		}
+
+		@Override
+		void send(Session session, int index) throws Exception {
+			spoolPreparedEmail(session, email, getNodeFromPath(session, email.getResourcePath()), false, recipients.get(index), job);
+		}
+	}
+
+	/**
+	 * Chunk of resource nodes, every node is the resource of one message
+	 */
+	private class ResourceChunk extends BulkChunk {
+		private final List<String> paths;
+
+		ResourceChunk(BulkJob job, List<String> paths) {
+			super(job);
+			this.paths = paths;
+		}
+
+		@Override
+		int size() {
+			return paths.size();
+		}
+
+		@Override
+		void send(Session session, int index) throws Exception {
+			Node resource = session.getNode(paths.get(index));
+			// The files of the node are added like single sends do, the large ones are streamed
+			spoolPreparedEmail(session, email, resource, email.isAttachResourceFiles() && hasFiles(resource), null, job);
+		}
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
 	@Override
 	public void sendEmail(String content, String subject, Object replyTo, Object from, Date date, Object[] to, Object[] cc, Object[] bcc) throws Exception {
-		sendEmailFromTemplateString(null, content, (Node)null, null, null, null, null, to, cc, bcc, null);
+		sendEmailFromTemplateString(null, content, (Node)null, subject, replyTo, from, date, to, cc, bcc, null);
 	}
 
 	/**
@@ -428,7 +1003,7 @@ public class EmailServiceImpl implements EmailService {
 	 */
 	@Override
 	public void sendEmail(Session session, String content, String subject, Object replyTo, Object from, Date date, Object[] to, Object[] cc, Object[] bcc) throws Exception {
-		sendEmailFromTemplateString(session, content, (Node)null, null, null, null, null, to, cc, bcc, null);
+		sendEmailFromTemplateString(session, content, (Node)null, subject, replyTo, from, date, to, cc, bcc, null);
 	}
 
 	/**
@@ -436,7 +1011,7 @@ public class EmailServiceImpl implements EmailService {
 	 */
 	@Override
 	public void sendEmailFromRFC822String(String content) throws Exception {
-		sendEmailFromRFC822TemplateString(null, null, (Node) null, (HashMap<String, Object>) null);
+		sendEmailFromRFC822TemplateString(null, content, (Node) null, (HashMap<String, Object>) null);
 	}
 
 	/**
@@ -444,7 +1019,7 @@ public class EmailServiceImpl implements EmailService {
 	 */
 	@Override
 	public void sendEmailFromRFC822String(Session session, String content) throws Exception {
-		sendEmailFromRFC822TemplateString(session, null, (Node) null, (HashMap<String, Object>) null);
+		sendEmailFromRFC822TemplateString(session, content, (Node) null, (HashMap<String, Object>) null);
 	}
 
 	/**
@@ -460,19 +1035,7 @@ public class EmailServiceImpl implements EmailService {
 	 */
 	@Override
 	public void sendEmailFromRFC822TemplateString(String template, String resource) throws Exception {
-		Session session = null;
-		try {
-			session = repository.loginAdministrative(null);
-			sendEmailFromRFC822TemplateString(session, template, getNodeFromPath(session, resource), null);
-		} finally {
-			if (session != null)
-				if (session.hasPendingChanges())
-					try {
-						session.save();
-					} catch (Throwable th) {
-					}
-			session.logout();
-		}
+		sendEmailFromRFC822TemplateString(null, template, resource, (HashMap<String, Object>) null);
 	}
 
 	/**
@@ -480,7 +1043,7 @@ public class EmailServiceImpl implements EmailService {
 	 */
 	@Override
 	public void sendEmailFromRFC822TemplateString(String template, HashMap<String, Object> variables) throws Exception {
-		sendEmailFromRFC822TemplateString(null, template, (Node) null, (HashMap<String, Object>) null);
+		sendEmailFromRFC822TemplateString(null, template, (Node) null, variables);
 	}
 
 	/**
@@ -488,7 +1051,7 @@ public class EmailServiceImpl implements EmailService {
 	 */
 	@Override
 	public void sendEmailFromRFC822TemplateString(String template, Node resource, HashMap<String, Object> variables) throws Exception {
-		sendEmailFromRFC822TemplateString(null, template, resource, (HashMap<String, Object>) null);
+		sendEmailFromRFC822TemplateString(null, template, resource, variables);
 	}
 
 	/**
@@ -496,7 +1059,7 @@ public class EmailServiceImpl implements EmailService {
 	 */
 	@Override
 	public void sendEmailFromRFC822TemplateString(String template, String resource, HashMap<String, Object> variables) throws Exception {
-		sendEmailFromRFC822TemplateString(null, template, resource, (HashMap<String, Object>) null);
+		sendEmailFromRFC822TemplateString(null, template, resource, variables);
 	}
 
 	/**
@@ -553,17 +1116,47 @@ public class EmailServiceImpl implements EmailService {
 			} else {
 				session = repository.loginAdministrative(null);
 			}
-			String html = templateNode(Md5Encrypter.encrypt(template), resource, template, variables);
-			if (html == null)
+			if (template == null)
 				throw new RepositoryException("Template is empty");
 
-			// Store mail to Spool folder
-			Node mailNode = session.getRootNode().getNode(spoolFolder).addNode(UUID.randomUUID().toString(), nodeType);
+			// The message is rendered straight into the spool buffer
+			SpoolBuffer buffer = new SpoolBuffer(spoolBufferThreshold);
+			try {
+				Writer writer = createSpoolWriter(buffer);
+				if (resource == null && variables == null) {
+					writer.write(template);
+				} else {
+					templateNode(getCompiledTemplate(Md5Encrypter.encrypt(template), template), resource, variables, writer);
+				}
+				writer.close();
+				storeMessage(session, buffer);
+			} finally {
+				buffer.dispose();
+			}
+		} catch (Exception ex) {
+			log.error("Cannot create mail: ", ex);
+		} finally {
+			if (!haveSession && session != null) {
+				if (session.hasPendingChanges()) {
+					try {
+						session.save();
+					} catch (Throwable th) {
+					}
+				}
+				session.logout();
+			}
+		}
+	}
 
-			mailNode = mailNode.addNode(propertyName, "nt:resource");
-			mailNode.setProperty("jcr:data", new BinaryValue(html.getBytes(configurator.getEncoding())));
-			mailNode.setProperty("jcr:lastModified", Calendar.getInstance());
-			mailNode.setProperty("jcr:mimeType", "message/rfc822");
+	private void sendEmailFromRFC822Template(Session session, Template template, Node resource, HashMap<String, Object> variables) throws Exception {
+		boolean haveSession = false;
+		try {
+			if (session != null && session.isLive()) {
+				haveSession = true;
+			} else {
+				session = repository.loginAdministrative(null);
+			}
+			spoolTemplate(session, template, resource, variables);
 		} catch (Exception ex) {
 			log.error("Cannot create mail: ", ex);
 		} finally {
@@ -579,6 +1172,48 @@ public class EmailServiceImpl implements EmailService {
 		}
 	}
 
+	/**
+	 * Render an RFC822 template straight into the spool.
+	 */
+	private void spoolTemplate(Session session, Template template, Node resource, HashMap<String, Object> variables) throws Exception {
+		if (template == null)
+			throw new RepositoryException("Template is null");
+
+		SpoolBuffer buffer = new SpoolBuffer(spoolBufferThreshold);
+		try {
+			Writer writer = createSpoolWriter(buffer);
+			templateNode(template, resource, variables, writer);
+			writer.close();
+			storeMessage(session, buffer);
+		} finally {
+			buffer.dispose();
+		}
+	}
+
+	private void storeMessage(Session session, SpoolBuffer buffer) throws Exception {
+		// Only the headers are read for the envelope, the body is not parsed
+		MessageEnvelope envelope;
+		InputStream in = buffer.getInputStream();
+		try {
+			envelope = MessageEnvelope.fromHeaders(new InternetHeaders(in), buffer.getSize());
+		} finally {
+			in.close();
+		}
+
+		SpoolStore store = spoolStore;
+		in = buffer.getInputStream();
+		try {
+			if (store instanceof SessionSpoolStore) {
+				// The mails are saved with the changes of caller
+				((SessionSpoolStore) store).enqueue(session, in, envelope);
+			} else {
+				store.enqueue(in, envelope);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -591,7 +1226,7 @@ public class EmailServiceImpl implements EmailService {
 			} else {
 				session = repository.loginAdministrative(null);
 			}
-			sendEmailFromRFC822TemplateNode(session, template, getNodeFromPath(session, resource), variables);
+			sendEmailFromRFC822TemplateString(session, template, getNodeFromPath(session, resource), variables);
 		} finally {
 			if (!haveSession && session != null) {
 				if (session.hasPendingChanges()) {
@@ -642,7 +1277,7 @@ public class EmailServiceImpl implements EmailService {
 	 */
 	@Override
 	public void sendEmailFromRFC822TemplateNode(Node template, String resource, HashMap<String, Object> variables) throws Exception {
-		sendEmailFromRFC822TemplateNode(null, template, resource, null);
+		sendEmailFromRFC822TemplateNode(null, template, resource, variables);
 	}
 
 	/**
@@ -650,7 +1285,7 @@ public class EmailServiceImpl implements EmailService {
 	 */
 	@Override
 	public void sendEmailFromRFC822TemplateNode(Node template, Node resource, HashMap<String, Object> variables) throws Exception {
-		sendEmailFromRFC822TemplateNode(null, template, resource, null);
+		sendEmailFromRFC822TemplateNode(null, template, resource, variables);
 	}
 
 	/**
@@ -658,7 +1293,7 @@ public class EmailServiceImpl implements EmailService {
 	 */
 	@Override
 	public void sendEmailFromRFC822TemplateNode(String template, String resource, HashMap<String, Object> variables) throws Exception {
-		sendEmailFromRFC822TemplateNode(null, template, resource, null);
+		sendEmailFromRFC822TemplateNode(null, template, resource, variables);
 	}
 
 	/**
@@ -666,7 +1301,7 @@ public class EmailServiceImpl implements EmailService {
 	 */
 	@Override
 	public void sendEmailFromRFC822TemplateNode(String template, Node resource, HashMap<String, Object> variables) throws Exception {
-		sendEmailFromRFC822TemplateNode(null, template, resource, null);
+		sendEmailFromRFC822TemplateNode(null, template, resource, variables);
 	}
 
 	/**
@@ -706,7 +1341,25 @@ public class EmailServiceImpl implements EmailService {
 	 */
 	@Override
 	public void sendEmailFromRFC822TemplateNode(Session session, Node template, String resource, HashMap<String, Object> variables) throws Exception {
-		sendEmailFromRFC822TemplateString(session, getNodeContentAsString(template), resource, variables);
+		boolean haveSession = false;
+		try {
+			if (session != null && session.isLive()) {
+				haveSession = true;
+			} else {
+				session = repository.loginAdministrative(null);
+			}
+			sendEmailFromRFC822Template(session, getTemplateFromNode(template), getNodeFromPath(session, resource), variables);
+		} finally {
+			if (!haveSession && session != null) {
+				if (session.hasPendingChanges()) {
+					try {
+						session.save();
+					} catch (Throwable th) {
+					}
+				}
+				session.logout();
+			}
+		}
 	}
 
 	/**
@@ -714,7 +1367,7 @@ public class EmailServiceImpl implements EmailService {
 	 */
 	@Override
 	public void sendEmailFromRFC822TemplateNode(Session session, Node template, Node resource, HashMap<String, Object> variables) throws Exception {
-		sendEmailFromRFC822TemplateString(session, getNodeContentAsString(template), resource, variables);
+		sendEmailFromRFC822Template(session, getTemplateFromNode(template), resource, variables);
 	}
 
 	/**
@@ -756,7 +1409,7 @@ public class EmailServiceImpl implements EmailService {
 			} else {
 				session = repository.loginAdministrative(null);
 			}
-			sendEmailFromRFC822TemplateString(session, getNodeContentAsString(getNodeFromPath(session, template)), resource, variables);
+			sendEmailFromRFC822Template(session, getTemplateFromPath(session, template), resource, variables);
 		} finally {
 			if (!haveSession && session != null) {
 				if (session.hasPendingChanges()) {
@@ -775,7 +1428,7 @@ public class EmailServiceImpl implements EmailService {
 	 */
 	@Override
 	public void sendEmailFromTemplateString(String template, String resource, Object[] to, Object[] cc, Object[] bcc) throws Exception {
-		sendEmailFromTemplateNode(null, template, resource, null, null, null, null, to, cc, bcc, null);
+		sendEmailFromTemplateString(null, template, resource, null, null, null, null, to, cc, bcc, null);
 	}
 
 	/**
@@ -783,7 +1436,7 @@ public class EmailServiceImpl implements EmailService {
 	 */
 	@Override
 	public void sendEmailFromTemplateString(String template, Node resource, Object[] to, Object[] cc, Object[] bcc) throws Exception {
-		sendEmailFromTemplateNode(null, template, resource, null, null, null, null, to, cc, bcc, null);
+		sendEmailFromTemplateString(null, template, resource, null, null, null, null, to, cc, bcc, null);
 	}
 
 	/**
@@ -791,7 +1444,7 @@ public class EmailServiceImpl implements EmailService {
 	 */
 	@Override
 	public void sendEmailFromTemplateString(String template, String subject, Object replyTo, Object from, Date date, Object[] to, Object[] cc, Object[] bcc, HashMap<String, Object> variables) throws Exception {
-		sendEmailFromTemplateNode(null, template, (Node)null, subject, replyTo, from, date, to, cc, bcc, variables);
+		sendEmailFromTemplateString(null, template, (Node)null, subject, replyTo, from, date, to, cc, bcc, variables);
 	}
 
 	/**
@@ -799,7 +1452,7 @@ public class EmailServiceImpl implements EmailService {
 	 */
 	@Override
 	public void sendEmailFromTemplateString(Session session, String template, String resource, Object[] to, Object[] cc, Object[] bcc) throws Exception {
-		sendEmailFromTemplateNode(null, template, resource, null, null, null, null, to, cc, bcc, null);
+		sendEmailFromTemplateString(session, template, resource, null, null, null, null, to, cc, bcc, null);
 	}
 
 	/**
@@ -807,7 +1460,7 @@ public class EmailServiceImpl implements EmailService {
 	 */
 	@Override
 	public void sendEmailFromTemplateString(Session session, String template, Node resource, Object[] to, Object[] cc, Object[] bcc) throws Exception {
-		sendEmailFromTemplateNode(null, template, resource, null, null, null, null, to, cc, bcc, null);
+		sendEmailFromTemplateString(session, template, resource, null, null, null, null, to, cc, bcc, null);
 	}
 
 	/**
@@ -815,7 +1468,7 @@ public class EmailServiceImpl implements EmailService {
 	 */
 	@Override
 	public void sendEmailFromTemplateString(Session session, String template, String subject, Object replyTo, Object from, Date date, Object[] to, Object[] cc, Object[] bcc, HashMap<String, Object> variables) throws Exception {
-		sendEmailFromTemplateNode(null, template, (Node)null, null, null, null, null, to, cc, bcc, null);
+		sendEmailFromTemplateString(session, template, (Node)null, subject, replyTo, from, date, to, cc, bcc, variables);
 	}
 
 	/**
@@ -863,7 +1516,7 @@ public class EmailServiceImpl implements EmailService {
 	 */
 	@Override
 	public void sendEmailFromTemplateNode(String template, String subject, Object replyTo, Object from, Date date, Object[] to, Object[] cc, Object[] bcc, HashMap<String, Object> variables) throws Exception {
-		sendEmailFromTemplateNode(null, template, (Node)null, null, null, null, null, to, cc, bcc, variables);
+		sendEmailFromTemplateNode(null, template, (Node)null, subject, replyTo, from, date, to, cc, bcc, variables);
 	}
 
 	/**
@@ -871,7 +1524,7 @@ public class EmailServiceImpl implements EmailService {
 	 */
 	@Override
 	public void sendEmailFromTemplateNode(Node template, String subject, Object replyTo, Object from, Date date, Object[] to, Object[] cc, Object[] bcc, HashMap<String, Object> variables) throws Exception {
-		sendEmailFromTemplateNode(null, template, (Node)null, null, null, null, null, to, cc, bcc, variables);
+		sendEmailFromTemplateNode(null, template, (Node)null, subject, replyTo, from, date, to, cc, bcc, variables);
 	}
 
 	/**
@@ -911,7 +1564,7 @@ public class EmailServiceImpl implements EmailService {
 	 */
 	@Override
 	public void sendEmailFromTemplateNode(Session session, Node template, Node resource, Object[] to, Object[] cc, Object[] bcc, HashMap<String, Object> variables) throws Exception {
-		sendEmailFromTemplateString(session, getNodeContentAsString(template), (Node)null, null, null, null, null, to, cc, bcc, variables);
+		sendEmailFromTemplate(session, getTemplateFromNode(template), resource, null, null, null, null, to, cc, bcc, variables);
 	}
 
 	/**
@@ -926,7 +1579,7 @@ public class EmailServiceImpl implements EmailService {
 			} else {
 				session = repository.loginAdministrative(null);
 			}
-			sendEmailFromTemplateString(session, getNodeContentAsString(getNodeFromPath(session, template)), (Node)null, subject, replyTo, from, date, to, cc, bcc, variables);
+			sendEmailFromTemplate(session, getTemplateFromPath(session, template), (Node)null, subject, replyTo, from, date, to, cc, bcc, variables);
 		} finally {
 			if (!haveSession && session != null) {
 				if (session.hasPendingChanges()) {
@@ -945,7 +1598,7 @@ public class EmailServiceImpl implements EmailService {
 	 */
 	@Override
 	public void sendEmailFromTemplateNode(Session session, Node template, String subject, Object replyTo, Object from, Date date, Object[] to, Object[] cc, Object[] bcc, HashMap<String, Object> variables) throws Exception {
-		sendEmailFromTemplateString(session, getNodeContentAsString(template), (Node)null, subject, replyTo, from, date, to, cc, bcc, variables);
+		sendEmailFromTemplate(session, getTemplateFromNode(template), (Node)null, subject, replyTo, from, date, to, cc, bcc, variables);
 	}
 
 	/**
@@ -960,7 +1613,7 @@ public class EmailServiceImpl implements EmailService {
 			} else {
 				session = repository.loginAdministrative(null);
 			}
-			sendEmailFromTemplateString(session, getNodeContentAsString(getNodeFromPath(session, template)), getNodeFromPath(session, resource), subject, replyTo, from, date, to, cc, bcc, variables);
+			sendEmailFromTemplate(session, getTemplateFromPath(session, template), getNodeFromPath(session, resource), subject, replyTo, from, date, to, cc, bcc, variables);
 		} finally {
 			if (!haveSession && session != null) {
 				if (session.hasPendingChanges()) {
@@ -986,7 +1639,7 @@ public class EmailServiceImpl implements EmailService {
 			} else {
 				session = repository.loginAdministrative(null);
 			}
-			sendEmailFromTemplateString(session, getNodeContentAsString(template), getNodeFromPath(session, resource), subject, replyTo, from, date, to, cc, bcc, variables);
+			sendEmailFromTemplate(session, getTemplateFromNode(template), getNodeFromPath(session, resource), subject, replyTo, from, date, to, cc, bcc, variables);
 		} finally {
 			if (!haveSession && session != null) {
 				if (session.hasPendingChanges()) {
@@ -1012,7 +1665,7 @@ public class EmailServiceImpl implements EmailService {
 			} else {
 				session = repository.loginAdministrative(null);
 			}
-			sendEmailFromTemplateString(session, getNodeContentAsString(getNodeFromPath(session, template)), resource, subject, replyTo, from, date, to, cc, bcc, variables);
+			sendEmailFromTemplate(session, getTemplateFromPath(session, template), resource, subject, replyTo, from, date, to, cc, bcc, variables);
 		} finally {
 			if (!haveSession && session != null) {
 				if (session.hasPendingChanges()) {
@@ -1031,7 +1684,7 @@ public class EmailServiceImpl implements EmailService {
 	 */
 	@Override
 	public void sendEmailFromTemplateNode(Session session, Node template, Node resource, String subject, Object replyTo, Object from, Date date, Object[] to, Object[] cc, Object[] bcc, HashMap<String, Object> variables) throws Exception {
-		sendEmailFromTemplateString(session, getNodeContentAsString(template), resource, subject, replyTo, from, date, to, cc, bcc, variables);
+		sendEmailFromTemplate(session, getTemplateFromNode(template), resource, subject, replyTo, from, date, to, cc, bcc, variables);
 	}
 
 	/**
@@ -1042,7 +1695,7 @@ public class EmailServiceImpl implements EmailService {
 		Session session = null;
 		try {
 			session = repository.loginAdministrative(null);
-			sendEmailFromTemplateString(session, getNodeContentAsString(getNodeFromPath(session, template)), resource, subject, replyTo, from, date, to, cc, bcc, variables);
+			sendEmailFromTemplate(session, getTemplateFromPath(session, template), getNodeFromPath(session, resource), subject, replyTo, from, date, to, cc, bcc, variables);
 		} finally {
 			if (session != null) {
 				if (session.hasPendingChanges())
@@ -1077,7 +1730,7 @@ public class EmailServiceImpl implements EmailService {
 	 */
 	@Override
 	public void sendEmailFromTemplateNode(Node template, Node resource, String subject, Object replyTo, Object from, Date date, Object[] to, Object[] cc, Object[] bcc, HashMap<String, Object> variables) throws Exception {
-		sendEmailFromTemplateString(getNodeContentAsString(template), resource, subject, replyTo, from, date, to, cc, bcc, variables);
+		sendEmailFromTemplate(null, getTemplateFromNode(template), resource, subject, replyTo, from, date, to, cc, bcc, variables);
 	}
 
 	/**
@@ -1085,7 +1738,7 @@ public class EmailServiceImpl implements EmailService {
 	 */
 	@Override
 	public void sendEmailFromTemplateString(String template, String resource, String subject, Object replyTo, Object from, Date date, Object[] to, Object[] cc, Object[] bcc, HashMap<String, Object> variables) throws Exception {
-		sendEmailFromTemplateString(template, resource, subject, replyTo, from, date, to, cc, bcc, variables);
+		sendEmailFromTemplateString(null, template, resource, subject, replyTo, from, date, to, cc, bcc, variables);
 	}
 
 	/**
@@ -1093,7 +1746,7 @@ public class EmailServiceImpl implements EmailService {
 	 */
 	@Override
 	public void sendEmailFromTemplateString(String template, Node resource, String subject, Object replyTo, Object from, Date date, Object[] to, Object[] cc, Object[] bcc, HashMap<String, Object> variables) throws Exception {
-		sendEmailFromTemplateString(template, resource, subject, replyTo, from, date, to, cc, bcc, variables);
+		sendEmailFromTemplateString(null, template, resource, subject, replyTo, from, date, to, cc, bcc, variables);
 	}
 
 	/**
@@ -1108,7 +1761,7 @@ public class EmailServiceImpl implements EmailService {
 			} else {
 				session = repository.loginAdministrative(null);
 			}
-			sendEmailFromTemplateString(template, getNodeFromPath(session, resource), subject, replyTo, from, date, to, cc, bcc, variables);
+			sendEmailFromTemplateString(session, template, getNodeFromPath(session, resource), subject, replyTo, from, date, to, cc, bcc, variables);
 		} finally {
 			if (!haveSession && session != null) {
 				if (session.hasPendingChanges()) {
@@ -1127,6 +1780,93 @@ public class EmailServiceImpl implements EmailService {
 	 */
 	@Override
 	public void sendEmailFromTemplateString(Session session, String template, Node resource, String subject, Object replyTo, Object from, Date date, Object[] to, Object[] cc, Object[] bcc, HashMap<String, Object> variables) throws Exception {
+		if (template == null) {
+			throw new RepositoryException("Template is null");
+		}
+		String html = templateNode(Md5Encrypter.encrypt(template), resource, template, variables);
+		if (html == null)
+			throw new RepositoryException("Template is empty");
+		sendEmailFromHtml(session, html, resource, null, true, subject, replyTo, from, date, to, cc, bcc, variables);
+	}
+
+	private void sendEmailFromTemplate(Session session, Template template, Node resource, String subject, Object replyTo, Object from, Date date, Object[] to, Object[] cc, Object[] bcc, HashMap<String, Object> variables) throws Exception {
+		if (template == null) {
+			throw new RepositoryException("Template is null");
+		}
+		sendEmailFromHtml(session, templateNode(template, resource, variables), resource, null, true, subject, replyTo, from, date, to, cc, bcc, variables);
+	}
+
+	/**
+	 * Create the body part of an nt:file attachment. Inline parts are referenced by the file name (cid:name). The base64 encoded content of the files having jcr:lastModified
+	 * is cached by node identifier and modification, so an attachment sent with many mails is encoded only once.
+	 * Files without modification date or larger than the cache are streamed from the repository.
+	 */
+	private MimeBodyPart createAttachmentPart(Node file, boolean inline) throws RepositoryException, MessagingException, IOException {
+		Node content = file.getNode("jcr:content");
+		Binary fileData = content.getProperty("jcr:data").getBinary();
+		String mimeType = content.getProperty("jcr:mimeType").getString();
+		String fileName = file.getName();
+
+		if (content.hasProperty("jcr:lastModified") && PreparedAttachment.getEncodedSize(fileData.getSize()) <= attachmentCache.getCapacity()) {
+			return prepareAttachment(file).createPart(inline);
+		}
+
+		// The binary is streamed when the message is written to the spool
+		DataSource source = new BinaryDataSource(fileData, fileName, mimeType);
+		MimeBodyPart attachmentBodyPart = new MimeBodyPart();
+		attachmentBodyPart.setDataHandler(new DataHandler(source));
+		// Without explicit encoding JavaMail reads the whole binary to choose one
+		attachmentBodyPart.setHeader("Content-Transfer-Encoding", TransferEncodingSelector.ENCODING_BASE64);
+		attachmentBodyPart.setFileName(fileName);
+		if (inline) {
+			attachmentBodyPart.setDisposition(MimeBodyPart.INLINE);
+			attachmentBodyPart.setContentID("<" + fileName + ">");
+		} else {
+			attachmentBodyPart.setDisposition(MimeBodyPart.ATTACHMENT);
+		}
+		return attachmentBodyPart;
+	}
+
+	/**
+	 * Encode an nt:file node. The encoded content of files having jcr:lastModified is cached by node identifier and modification.
+	 */
+	private PreparedAttachment prepareAttachment(Node file) throws RepositoryException, MessagingException, IOException {
+		Node content = file.getNode("jcr:content");
+		Binary fileData = content.getProperty("jcr:data").getBinary();
+		String mimeType = content.hasProperty("jcr:mimeType") ? content.getProperty("jcr:mimeType").getString() : null;
+
+		String key = null;
+		if (content.hasProperty("jcr:lastModified")) {
+			key = file.getIdentifier() + "@" + content.getProperty("jcr:lastModified").getDate().getTimeInMillis();
+		}
+		byte[] encoded = key != null ? attachmentCache.get(key) : null;
+		if (encoded == null) {
+			encoded = PreparedAttachment.encode(fileData.getStream(), fileData.getSize());
+			// An attachment larger than the cache would evict every other one
+			if (key != null && encoded.length <= attachmentCache.getCapacity()) {
+				attachmentCache.put(key, encoded, encoded.length);
+			}
+		}
+		return new PreparedAttachment(file.getName(), mimeType, encoded);
+	}
+
+	/**
+	 * @return true if the node has nt:file children
+	 */
+	private static boolean hasFiles(Node resource) throws RepositoryException {
+		NodeIterator iter = resource.getNodes();
+		while (iter.hasNext()) {
+			if (iter.nextNode().getPrimaryNodeType().isNodeType("nt:file"))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @param attachments - The prepared attachments or null
+	 * @param attachResourceFiles - The nt:file children of resource are attached, the ones larger than the attachment cache are streamed
+	 */
+	private void sendEmailFromHtml(Session session, String html, Node resource, List<PreparedAttachment> attachments, boolean attachResourceFiles, String subject, Object replyTo, Object from, Date date, Object[] to, Object[] cc, Object[] bcc, HashMap<String, Object> variables) throws Exception {
 		boolean haveSession = false;
 
 		try {
@@ -1136,72 +1876,39 @@ public class EmailServiceImpl implements EmailService {
 				session = repository.loginAdministrative(null);
 			}
 
-			if (template == null) {
-				throw new RepositoryException("Template is null");
-			}
-			String html = templateNode(Md5Encrypter.encrypt(template), resource, template, variables);
-			if (html == null)
-				throw new RepositoryException("Template is empty");
-
 			// create the messge.
 			MimeMessage mimeMessage = new MimeMessage((javax.mail.Session) null);
 
-			MimeMultipart rootMixedMultipart = new MimeMultipart("mixed");
-			mimeMessage.setContent(rootMixedMultipart);
+			MimeContentBuilder content = new MimeContentBuilder(configurator.getEncoding(), allow8bitMime);
+			content.setHtml(html);
+			content.setText(extractTextFromHtml(html));
 
-			MimeMultipart nestedRelatedMultipart = new MimeMultipart("related");
-			MimeBodyPart relatedBodyPart = new MimeBodyPart();
-			relatedBodyPart.setContent(nestedRelatedMultipart);
-			rootMixedMultipart.addBodyPart(relatedBodyPart);
-
-			MimeMultipart messageBody = new MimeMultipart("alternative");
-			MimeBodyPart bodyPart = null;
-			for (int i = 0; i < nestedRelatedMultipart.getCount(); i++) {
-				BodyPart bp = nestedRelatedMultipart.getBodyPart(i);
-				if (bp.getFileName() == null) {
-					bodyPart = (MimeBodyPart) bp;
+			if (attachments != null) {
+				for (PreparedAttachment attachment : attachments) {
+					if (content.isReferenced(attachment.getFileName())) {
+						content.addInline(attachment.createPart(true));
+					} else {
+						content.addAttachment(attachment.createPart(false));
+					}
 				}
 			}
-			if (bodyPart == null) {
-				MimeBodyPart mimeBodyPart = new MimeBodyPart();
-				nestedRelatedMultipart.addBodyPart(mimeBodyPart);
-				bodyPart = mimeBodyPart;
-			}
-			bodyPart.setContent(messageBody, "text/alternative");
-
-			// Create the plain text part of the message.
-			MimeBodyPart plainTextPart = new MimeBodyPart();
-			plainTextPart.setText(extractTextFromHtml(html), configurator.getEncoding());
-			messageBody.addBodyPart(plainTextPart);
-
-			// Create the HTML text part of the message.
-			MimeBodyPart htmlTextPart = new MimeBodyPart();
-			htmlTextPart.setContent(html, "text/html;charset=" + configurator.getEncoding()); // ;charset=UTF-8
-			messageBody.addBodyPart(htmlTextPart);
-
-			// Check if resource have nt:file childs adds as attachment
-			if (resource != null && resource.hasNodes()) {
+			if (attachResourceFiles && resource != null && resource.hasNodes()) {
+				// Check if resource have nt:file childs adds as inline part if the HTML refers it, otherwise as attachment
 				NodeIterator iter = resource.getNodes();
 				while (iter.hasNext()) {
 					Node n = iter.nextNode();
 					if (n.getPrimaryNodeType().isNodeType("nt:file")) {
-						// Part two is attachment
-						MimeBodyPart attachmentBodyPart = new MimeBodyPart();
-						InputStream fileData = n.getNode("jcr:content").getProperty("jcr:data").getBinary().getStream();
-						String mimeType = n.getNode("jcr:content").getProperty("jcr:mimeType").getString();
-						String fileName = n.getName();
-						
-						DataSource source = new StreamDataSource(fileData, fileName, mimeType);
-						attachmentBodyPart.setDataHandler(new DataHandler(source));
-						attachmentBodyPart.setFileName(fileName);
-						attachmentBodyPart.setDisposition(MimeBodyPart.ATTACHMENT);
-						attachmentBodyPart.setContentID(fileName);
-						rootMixedMultipart.addBodyPart(attachmentBodyPart);
+						if (content.isReferenced(n.getName())) {
+							content.addInline(createAttachmentPart(n, true));
+						} else {
+							content.addAttachment(createAttachmentPart(n, false));
+						}
 					}
 				}
 			}
+			content.build(mimeMessage);
 
-			prepareMimeMessage(mimeMessage, resource, template, subject, replyTo, from, date, to, cc, bcc, variables);
+			prepareMimeMessage(mimeMessage, resource, null, subject, replyTo, from, date, to, cc, bcc, variables);
 			sendEmail(session, mimeMessage);
 			
 			//
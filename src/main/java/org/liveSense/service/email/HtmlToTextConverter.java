@@ -0,0 +1,33 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.liveSense.service.email;
+
+/**
+ * Converts HTML mail content to the text of the text/plain alternative part.
+ * Implementations registered as OSGi service are used by the email service instead of the built-in converters.
+ * Implementations have to be thread safe.
+ */
+public interface HtmlToTextConverter {
+
+	/**
+	 * Convert HTML to plain text.
+	 * @param html - The HTML source
+	 * @return The text representation of HTML
+	 * @throws Exception
+	 */
+	public String convert(String html) throws Exception;
+}
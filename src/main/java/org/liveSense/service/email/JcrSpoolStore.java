@@ -0,0 +1,479 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.liveSense.service.email;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Dictionary;
+import java.util.List;
+import java.util.UUID;
+
+import javax.activation.DataSource;
+import javax.jcr.Binary;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.query.Query;
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetHeaders;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.ConfigurationPolicy;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.osgi.service.cm.Configuration;
+import org.osgi.service.cm.ConfigurationAdmin;
+import org.osgi.service.component.ComponentContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Spool store of the mails in the repository. The mails are nodeType nodes with the message in the propertyName
+ * nt:resource child, stored in the buckets of {@link SpoolLayout} under the spool folder. The identifier of
+ * a mail is its path. A claim sets the nextTry of mail to the end of the claim, so the periodical claims and
+ * the other cluster nodes skip it. The arrival of mails is notified by {@link EmailResourceChangeListener}.
+ *
+ * The periodical run moves the mails of an old flat spool folder into the buckets and removes the empty buckets.
+ *
+ * The spool folder, node type and property name were configured on the email service and the send job handler
+ * before. While the store has the default value of a setting, the value of those configurations is used.
+ */
+@Component(label = "%jcrSpoolStore.name", description = "%jcrSpoolStore.description", immediate = true, metatype = true, policy = ConfigurationPolicy.OPTIONAL)
+@Service(value = {SpoolStore.class, JcrSpoolStore.class, java.lang.Runnable.class})
+@Properties(value = {
+		@Property(name = SpoolStore.STORE_NAME, value = JcrSpoolStore.NAME, propertyPrivate = true),
+		@Property(
+				name="scheduler.name", 
+				value="JcrSpoolStore"),
+		@Property(
+				name="scheduler.expression", 
+				value="30 * * ? * * "),
+		@Property(name = JcrSpoolStore.PARAM_SPOOL_FOLDER, label = "%spoolFolder.name", description = "%spoolFolder.description", value = JcrSpoolStore.DEFAULT_SPOOL_FOLDER),
+		@Property(name = JcrSpoolStore.PARAM_NODE_TYPE, label = "%nodeType.label", description = "%nodeType.description", value = JcrSpoolStore.DEFAULT_NODE_TYPE),
+		@Property(name = JcrSpoolStore.PARAM_PROPERTY_NAME, label = "%propertyName.label", description = "%propertyName.description", value = JcrSpoolStore.DEFAULT_PROPERTY_NAME),
+		@Property(name = JcrSpoolStore.PARAM_DEAD_LETTER_FOLDER, label = "%deadLetterFolder.name", description = "%deadLetterFolder.description", value = JcrSpoolStore.DEFAULT_DEAD_LETTER_FOLDER),
+		@Property(name = JcrSpoolStore.PARAM_CLAIM_TIMEOUT, label = "%claimTimeout.name", description = "%claimTimeout.description", longValue = JcrSpoolStore.DEFAULT_CLAIM_TIMEOUT) })
+public class JcrSpoolStore implements SessionSpoolStore, Runnable {
+
+	private static final Logger log = LoggerFactory.getLogger(JcrSpoolStore.class);
+
+	public static final String NAME = "jcr";
+
+	public static final String PARAM_SPOOL_FOLDER = "spoolFolder";
+	public static final String DEFAULT_SPOOL_FOLDER = "/var/spool/queue/mail/";
+
+	public static final String PARAM_NODE_TYPE = EmailResourceChangeListener.PARAM_NODE_TYPE;
+	public static final String DEFAULT_NODE_TYPE = EmailResourceChangeListener.NODE_TYPE_EMAIL;
+
+	public static final String PARAM_PROPERTY_NAME = EmailResourceChangeListener.PARAM_PROPERTY_NAME;
+	public static final String DEFAULT_PROPERTY_NAME = EmailResourceChangeListener.PROPERTY_NAME;
+
+	/**
+	 * Folder of the mails which could not be delivered
+	 */
+	public static final String PARAM_DEAD_LETTER_FOLDER = "deadLetterFolder";
+	public static final String DEFAULT_DEAD_LETTER_FOLDER = "/var/spool/dead/mail/";
+
+	/**
+	 * Mixin of the dead letters, the reason of failure is its property
+	 */
+	public static final String MIXIN_DEAD_LETTER = "email:deadLetter";
+	public static final String PROPERTY_DEAD_LETTER_REASON = "deadLetterReason";
+
+	/**
+	 * Time in milliseconds until a claimed mail is not returned by other claims
+	 */
+	public static final String PARAM_CLAIM_TIMEOUT = "claimTimeout";
+	public static final long DEFAULT_CLAIM_TIMEOUT = 10 * 60 * 1000;
+
+	/**
+	 * Maximum number of mails moved from a flat spool folder to the buckets in one periodical run
+	 */
+	private static final int MIGRATION_BATCH_SIZE = 1000;
+
+	/**
+	 * The configurations which had the spool settings before the store
+	 */
+	private static final String[] PREVIOUS_PIDS = {EmailServiceImpl.class.getName(), EmailSendJobEventHandler.class.getName()};
+
+	@Reference(cardinality=ReferenceCardinality.MANDATORY_UNARY, policy=ReferencePolicy.DYNAMIC)
+	private SlingRepository repository;
+
+	@Reference(cardinality=ReferenceCardinality.OPTIONAL_UNARY, policy=ReferencePolicy.STATIC)
+	private ConfigurationAdmin configurationAdmin;
+
+	private String nodeType = DEFAULT_NODE_TYPE;
+	private String propertyName = DEFAULT_PROPERTY_NAME;
+	private String deadLetterFolder = DEFAULT_DEAD_LETTER_FOLDER;
+	private long claimTimeout = DEFAULT_CLAIM_TIMEOUT;
+
+	private SpoolLayout spoolLayout;
+
+	/**
+	 * Activates this component.
+	 * 
+	 * @param componentContext
+	 *            The OSGi <code>ComponentContext</code> of this component.
+	 */
+	@Activate
+	protected void activate(ComponentContext componentContext) throws RepositoryException {
+		Dictionary<?, ?> props = componentContext.getProperties();
+		String spoolFolder = getSetting(props, PARAM_SPOOL_FOLDER, DEFAULT_SPOOL_FOLDER);
+		nodeType = getSetting(props, PARAM_NODE_TYPE, DEFAULT_NODE_TYPE);
+		propertyName = getSetting(props, PARAM_PROPERTY_NAME, DEFAULT_PROPERTY_NAME);
+		deadLetterFolder = PropertiesUtil.toString(props.get(PARAM_DEAD_LETTER_FOLDER), DEFAULT_DEAD_LETTER_FOLDER);
+		claimTimeout = PropertiesUtil.toLong(props.get(PARAM_CLAIM_TIMEOUT), DEFAULT_CLAIM_TIMEOUT);
+
+		spoolLayout = new SpoolLayout(repository, spoolFolder);
+		if (deadLetterFolder.startsWith("/"))
+			deadLetterFolder = deadLetterFolder.substring(1);
+		if (deadLetterFolder.endsWith("/"))
+			deadLetterFolder = deadLetterFolder.substring(0, deadLetterFolder.length() - 1);
+
+		Session admin = repository.loginAdministrative(null);
+		try {
+			createFolder(admin, spoolLayout.getSpoolFolder());
+			createFolder(admin, deadLetterFolder);
+			admin.save();
+		} finally {
+			admin.logout();
+		}
+	}
+
+	/**
+	 * @return The value of a spool setting. If the store has the default value, the value of the previous
+	 * configurations is used.
+	 */
+	private String getSetting(Dictionary<?, ?> props, String name, String defaultValue) {
+		String value = PropertiesUtil.toString(props.get(name), defaultValue);
+		if (!value.equals(defaultValue) || configurationAdmin == null)
+			return value;
+		for (String pid : PREVIOUS_PIDS) {
+			try {
+				Configuration[] configurations = configurationAdmin.listConfigurations("(service.pid=" + pid + ")");
+				if (configurations == null || configurations[0].getProperties() == null)
+					continue;
+				String previous = PropertiesUtil.toString(configurations[0].getProperties().get(name), defaultValue);
+				if (!previous.equals(defaultValue)) {
+					log.warn("The " + name + " of " + pid + " configuration is used: " + previous + ". Configure it on " + JcrSpoolStore.class.getName());
+					return previous;
+				}
+			} catch (Exception e) {
+				log.warn("Could not read the configuration: " + pid, e);
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * @return The path of the spool folder, with leading and without trailing slash
+	 */
+	public String getSpoolFolder() {
+		return "/" + spoolLayout.getSpoolFolder();
+	}
+
+	/**
+	 * @return The node type of mails
+	 */
+	public String getNodeType() {
+		return nodeType;
+	}
+
+	/**
+	 * @return The name of the child node of mails with the message
+	 */
+	public String getPropertyName() {
+		return propertyName;
+	}
+
+	private void createFolder(Session session, String path) throws RepositoryException {
+		Node n = session.getRootNode();
+		for (String name : path.split("/")) {
+			if (!n.hasNode(name)) {
+				n = n.addNode(name);
+			} else {
+				n = n.getNode(name);
+			}
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String enqueue(InputStream message, MessageEnvelope envelope) throws Exception {
+		Session session = repository.loginAdministrative(null);
+		try {
+			String id = enqueue(session, message, envelope);
+			session.save();
+			return id;
+		} finally {
+			session.logout();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String enqueue(Session session, InputStream message, MessageEnvelope envelope) throws RepositoryException {
+		// Store mail to its bucket in the spool folder
+		String name = UUID.randomUUID().toString();
+		Node mailNode = spoolLayout.getBucketNode(session, name).addNode(name, nodeType);
+		envelope.writeTo(mailNode);
+		// Due now, so the periodical claims deliver it even if the notification of its arrival is lost
+		mailNode.setProperty("nextTry", System.currentTimeMillis());
+
+		Node content = mailNode.addNode(propertyName, "nt:resource");
+		content.setProperty("jcr:data", session.getValueFactory().createBinary(message));
+		content.setProperty("jcr:lastModified", Calendar.getInstance());
+		content.setProperty("jcr:mimeType", "message/rfc822");
+		return mailNode.getPath();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public List<SpooledMail> claim(int max) throws Exception {
+		List<SpooledMail> mails = new ArrayList<SpooledMail>();
+		Session session = repository.loginAdministrative(null);
+		try {
+			Query query = session.getWorkspace().getQueryManager().createQuery("/jcr:root/" + spoolLayout.getSpoolFolder() + "//element(*, " + nodeType + ")[@nextTry<"
+					+ System.currentTimeMillis() + "] order by @priority", Query.XPATH);
+			query.setLimit(max);
+			NodeIterator iter = query.execute().getNodes();
+			while (iter.hasNext()) {
+				SpooledMail mail = claim(iter.nextNode());
+				if (mail != null)
+					mails.add(mail);
+			}
+			session.save();
+		} finally {
+			session.logout();
+		}
+		return mails;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public SpooledMail claim(String id) throws Exception {
+		Session session = repository.loginAdministrative(null);
+		try {
+			if (!session.nodeExists(id))
+				return null;
+			Node node = session.getNode(id);
+			if (!node.isNodeType(nodeType)) {
+				log.error("NodeTypeConflict - expected: " + nodeType + " actual: " + node.getPrimaryNodeType().getName());
+				return null;
+			}
+			// A mail claimed by another delivery or waiting for its retry is not claimed
+			if (node.hasProperty("nextTry") && node.getProperty("nextTry").getLong() > System.currentTimeMillis())
+				return null;
+			SpooledMail mail = claim(node);
+			session.save();
+			return mail;
+		} finally {
+			session.logout();
+		}
+	}
+
+	private SpooledMail claim(Node node) throws RepositoryException, IOException, MessagingException {
+		if (!node.hasNode(propertyName)) {
+			log.error("Path not found - maybe not a nt:file node?: " + node.getPath());
+			node.remove();
+			return null;
+		}
+		node.setProperty("nextTry", System.currentTimeMillis() + claimTimeout);
+
+		MessageEnvelope envelope = MessageEnvelope.readFrom(node);
+		if (envelope == null) {
+			// Spooled without envelope, only the headers are read
+			Binary binary = node.getNode(propertyName).getProperty("jcr:data").getBinary();
+			InputStream in = binary.getStream();
+			try {
+				envelope = MessageEnvelope.fromHeaders(new InternetHeaders(in), binary.getSize());
+			} finally {
+				in.close();
+			}
+		}
+		long retryCount = node.hasProperty("retryCount") ? node.getProperty("retryCount").getLong() : 0;
+		return new SpooledMail(node.getPath(), envelope, retryCount, new MailDataSource(node.getPath()));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void ack(String id) throws Exception {
+		Session session = repository.loginAdministrative(null);
+		try {
+			if (session.nodeExists(id)) {
+				session.getNode(id).remove();
+				session.save();
+			}
+		} finally {
+			session.logout();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void nack(String id, long delay) throws Exception {
+		Session session = repository.loginAdministrative(null);
+		try {
+			if (!session.nodeExists(id))
+				return;
+			Node node = session.getNode(id);
+			long retryCount = node.hasProperty("retryCount") ? node.getProperty("retryCount").getLong() : 0;
+			node.setProperty("retryCount", retryCount + 1);
+			node.setProperty("nextTry", System.currentTimeMillis() + delay);
+			session.save();
+		} finally {
+			session.logout();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void deadLetter(String id, String reason) throws Exception {
+		Session session = repository.loginAdministrative(null);
+		try {
+			if (!session.nodeExists(id))
+				return;
+			Node node = session.getNode(id);
+			// The mixin is registered on the installs which have the email:email of an earlier version
+			node.addMixin(MIXIN_DEAD_LETTER);
+			node.setProperty(PROPERTY_DEAD_LETTER_REASON, reason);
+			node.setProperty("nextTry", (String) null);
+			session.move(id, "/" + deadLetterFolder + "/" + node.getName());
+			session.save();
+		} finally {
+			session.logout();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long count() throws Exception {
+		Session session = repository.loginAdministrative(null);
+		try {
+			NodeIterator iter = session.getWorkspace().getQueryManager().createQuery("/jcr:root/" + spoolLayout.getSpoolFolder() + "//element(*, " + nodeType + ")", Query.XPATH)
+					.execute().getNodes();
+			long count = iter.getSize();
+			if (count < 0) {
+				count = 0;
+				while (iter.hasNext()) {
+					iter.nextNode();
+					count++;
+				}
+			}
+			return count;
+		} finally {
+			session.logout();
+		}
+	}
+
+	/*
+	 * Move the mails of a flat spool folder to the buckets, remove the empty buckets.
+	 * 
+	 * @see java.lang.Runnable#run()
+	 */
+	public void run() {
+		Session session = null;
+		try {
+			session = repository.loginAdministrative(null);
+			spoolLayout.migrate(session, nodeType, MIGRATION_BATCH_SIZE);
+			spoolLayout.prune(session);
+		} catch (Exception e) {
+			log.error("Error on periodical spool maintenance: ", e);
+		} finally {
+			if (session != null && session.isLive()) {
+				session.logout();
+			}
+		}
+	}
+
+	/**
+	 * Message of a spooled mail. Every stream is read in its own session, which is closed with the stream,
+	 * so the mail can be delivered after the claim.
+	 */
+	private class MailDataSource implements DataSource {
+		private final String path;
+
+		MailDataSource(String path) {
+			this.path = path;
+		}
+
+		public InputStream getInputStream() throws IOException {
+			final Session session;
+			try {
+				session = repository.loginAdministrative(null);
+			} catch (RepositoryException e) {
+				throw new IOException("Could not login to read mail: " + path + " - " + e.getMessage());
+			}
+			try {
+				InputStream in = session.getNode(path).getNode(propertyName).getProperty("jcr:data").getBinary().getStream();
+				return new FilterInputStream(in) {
+					@Override
+					public void close() throws IOException {
+						try {
+							super.close();
+						} finally {
+							session.logout();
+						}
+					}
+				};
+			} catch (RepositoryException e) {
+				session.logout();
+				throw new IOException("Could not read mail: " + path + " - " + e.getMessage());
+			}
+		}
+
+		public OutputStream getOutputStream() throws IOException {
+			throw new IOException("MailDataSource does not support getOutputStream()");
+		}
+
+		public String getContentType() {
+			return "message/rfc822";
+		}
+
+		public String getName() {
+			return path;
+		}
+	}
+}
@@ -0,0 +1,288 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.liveSense.service.email;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import javax.jcr.Node;
+import javax.jcr.Repository;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+import javax.jcr.observation.ObservationManager;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import freemarker.cache.TemplateLoader;
+
+/**
+ * FreeMarker template loader which reads nt:file templates from the repository. The template name is the
+ * absolute path of the file node, so &lt;#include&gt; and &lt;#import&gt; works between repository templates.
+ *
+ * The jcr:lastModified of the templates are remembered and used as the modification stamp. A JCR observation
+ * listener forgets the stamp when anything changes under a template, so the next lookup reads the new stamp
+ * from the repository and FreeMarker reloads the template. Until then a lookup does not touch the repository.
+ *
+ * Only the template roots are observed, so the writes elsewhere (spool, content) are not delivered to the loader.
+ * The stamps of templates outside the roots are not remembered, they are read from the repository on every lookup.
+ * The stamp of a template without jcr:lastModified is the checksum of its content, so it's reloaded only if it
+ * has changed.
+ */
+public class JcrTemplateLoader implements TemplateLoader, EventListener {
+
+	private static final Logger log = LoggerFactory.getLogger(JcrTemplateLoader.class);
+
+	private final SlingRepository repository;
+
+	private final String[] roots;
+
+	private final ConcurrentHashMap<String, Long> lastModifiedStamps = new ConcurrentHashMap<String, Long>();
+
+	/**
+	 * Increased by every observed change. A stamp read by a lookup is not remembered if there was a change
+	 * meanwhile, because the event of the change could have been handled before the stamp is remembered.
+	 */
+	private final AtomicLong generation = new AtomicLong();
+
+	private Session observationSession;
+	private ObservationManager observationManager;
+	private final List<EventListener> listeners = new ArrayList<EventListener>();
+
+	/**
+	 * The source object of a template. FreeMarker compares sources, so equals and hashCode are required.
+	 */
+	static class JcrTemplateSource {
+		final String path;
+		final long lastModified;
+
+		JcrTemplateSource(String path, long lastModified) {
+			this.path = path;
+			this.lastModified = lastModified;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof JcrTemplateSource)) return false;
+			JcrTemplateSource other = (JcrTemplateSource) obj;
+			return path.equals(other.path) && lastModified == other.lastModified;
+		}
+
+		@Override
+		public int hashCode() {
+			return path.hashCode() ^ (int) (lastModified ^ (lastModified >>> 32));
+		}
+
+		@Override
+		public String toString() {
+			return path;
+		}
+	}
+
+	/**
+	 * @param repository - The repository of templates
+	 * @param roots - The paths of template roots, the templates under them are observed and their stamps remembered
+	 */
+	public JcrTemplateLoader(SlingRepository repository, String[] roots) {
+		this.repository = repository;
+		this.roots = new String[roots.length];
+		for (int i = 0; i < roots.length; i++) {
+			String root = toPath(roots[i].trim());
+			this.roots[i] = root.length() > 1 && root.endsWith("/") ? root.substring(0, root.length() - 1) : root;
+		}
+	}
+
+	/**
+	 * Register the observation listeners of template roots which invalidate the changed templates.
+	 */
+	public void start() throws RepositoryException {
+		observationSession = repository.loginAdministrative(null);
+		if ("true".equals(repository.getDescriptor(Repository.OPTION_OBSERVATION_SUPPORTED))) {
+			observationManager = observationSession.getWorkspace().getObservationManager();
+			// A listener is registered once, so every root has its own
+			for (String root : roots) {
+				EventListener listener = new EventListener() {
+					public void onEvent(EventIterator events) {
+						JcrTemplateLoader.this.onEvent(events);
+					}
+				};
+				observationManager.addEventListener(listener, Event.PROPERTY_ADDED | Event.PROPERTY_CHANGED | Event.PROPERTY_REMOVED | Event.NODE_REMOVED, root, true, null, null, false);
+				listeners.add(listener);
+			}
+		} else {
+			log.warn("Observation is not supported, templates loaded from repository are not refreshed");
+		}
+	}
+
+	/**
+	 * Unregister the observation listener.
+	 */
+	public void stop() {
+		try {
+			if (observationManager != null) {
+				for (EventListener listener : listeners) {
+					observationManager.removeEventListener(listener);
+				}
+			}
+		} catch (RepositoryException e) {
+			log.error("Could not remove template observation listener", e);
+		} finally {
+			observationManager = null;
+			listeners.clear();
+			if (observationSession != null) {
+				observationSession.logout();
+				observationSession = null;
+			}
+			lastModifiedStamps.clear();
+		}
+	}
+
+	private static String toPath(String name) {
+		return name.startsWith("/") ? name : "/" + name;
+	}
+
+	/**
+	 * @return true if the changes of the path are observed, so its stamp can be remembered
+	 */
+	private boolean isObserved(String path) {
+		if (observationManager == null) return false;
+		for (String root : roots) {
+			if (root.equals("/") || path.equals(root) || path.startsWith(root + "/")) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Object findTemplateSource(String name) throws IOException {
+		String path = toPath(name);
+		Long lastModified = lastModifiedStamps.get(path);
+		if (lastModified != null) {
+			return new JcrTemplateSource(path, lastModified);
+		}
+
+		long readGeneration = generation.get();
+		Session session = null;
+		try {
+			session = repository.loginAdministrative(null);
+			if (!session.nodeExists(path)) return null;
+			Node node = session.getNode(path);
+			if (!node.hasNode("jcr:content")) return null;
+
+			Node content = node.getNode("jcr:content");
+			if (content.hasProperty("jcr:lastModified")) {
+				lastModified = content.getProperty("jcr:lastModified").getDate().getTimeInMillis();
+			} else {
+				// Without modification date the content tells if it's a new version
+				lastModified = checksum(content.getProperty("jcr:data").getBinary().getStream());
+			}
+			if (isObserved(path) && generation.get() == readGeneration) {
+				lastModifiedStamps.putIfAbsent(path, lastModified);
+				// An event handled since the check above removes the stamp too late, so it's checked again
+				if (generation.get() != readGeneration) {
+					lastModifiedStamps.remove(path);
+				}
+			}
+			return new JcrTemplateSource(path, lastModified);
+		} catch (RepositoryException e) {
+			throw new IOException("Could not find template: " + path + " - " + e.getMessage());
+		} finally {
+			if (session != null) session.logout();
+		}
+	}
+
+	private static long checksum(InputStream in) throws IOException {
+		try {
+			CRC32 crc = new CRC32();
+			byte[] buffer = new byte[8192];
+			for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+				crc.update(buffer, 0, n);
+			}
+			return crc.getValue();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long getLastModified(Object templateSource) {
+		return ((JcrTemplateSource) templateSource).lastModified;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Reader getReader(Object templateSource, String encoding) throws IOException {
+		String path = ((JcrTemplateSource) templateSource).path;
+		Session session = null;
+		try {
+			session = repository.loginAdministrative(null);
+			return new StringReader(IOUtils.toString(session.getNode(path).getNode("jcr:content").getProperty("jcr:data").getBinary().getStream(), encoding));
+		} catch (RepositoryException e) {
+			throw new IOException("Could not read template: " + path + " - " + e.getMessage());
+		} finally {
+			if (session != null) session.logout();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void closeTemplateSource(Object templateSource) throws IOException {
+	}
+
+	/**
+	 * Forget the modification stamp of every template on the path of the changed items.
+	 */
+	@Override
+	public void onEvent(EventIterator events) {
+		generation.incrementAndGet();
+		if (lastModifiedStamps.isEmpty()) return;
+		while (events.hasNext()) {
+			try {
+				String path = events.nextEvent().getPath();
+				while (path.length() > 1) {
+					if (lastModifiedStamps.remove(path) != null) {
+						log.debug("Template changed: " + path);
+					}
+					path = path.substring(0, Math.max(path.lastIndexOf('/'), 1));
+				}
+			} catch (RepositoryException e) {
+				log.error(e.getMessage(), e);
+			}
+		}
+	}
+}
@@ -0,0 +1,154 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.liveSense.service.email;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Thread safe, weight bounded LRU cache. Every entry has a weight (size in
+ * bytes, characters or simply 1) and the least recently used entries are
+ * evicted when the total weight exceeds the capacity.
+ */
+public class LruCache<K, V> {
+
+	private static class Entry<V> {
+		final V value;
+		final long weight;
+
+		Entry(V value, long weight) {
+			this.value = value;
+			this.weight = weight;
+		}
+	}
+
+	private final LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true);
+
+	private long capacity;
+	private long weight = 0;
+
+	private long hitCount = 0;
+	private long missCount = 0;
+	private long evictionCount = 0;
+
+	/**
+	 * @param capacity - The maximum total weight of the cached entries. 0 disables the cache.
+	 */
+	public LruCache(long capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Get a cached value and mark it as most recently used.
+	 * @param key - The key
+	 * @return The cached value or null if not cached
+	 */
+	public synchronized V get(K key) {
+		Entry<V> entry = entries.get(key);
+		if (entry == null) {
+			missCount++;
+			return null;
+		}
+		hitCount++;
+		return entry.value;
+	}
+
+	/**
+	 * Put a value with weight 1.
+	 */
+	public void put(K key, V value) {
+		put(key, value, 1);
+	}
+
+	/**
+	 * Put a value in the cache. Values heavier than the capacity are not cached.
+	 * @param key - The key
+	 * @param value - The value
+	 * @param weight - The weight of value
+	 */
+	public synchronized void put(K key, V value, long weight) {
+		remove(key);
+		if (weight > capacity) return;
+
+		entries.put(key, new Entry<V>(value, weight));
+		this.weight += weight;
+		evict();
+	}
+
+	/**
+	 * Remove an entry.
+	 * @return The removed value or null
+	 */
+	public synchronized V remove(K key) {
+		Entry<V> entry = entries.remove(key);
+		if (entry == null) return null;
+		weight -= entry.weight;
+		return entry.value;
+	}
+
+	/**
+	 * Remove all entries. Statistics are not reset.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		weight = 0;
+	}
+
+	private void evict() {
+		Iterator<Map.Entry<K, Entry<V>>> iter = entries.entrySet().iterator();
+		while (weight > capacity && iter.hasNext()) {
+			weight -= iter.next().getValue().weight;
+			iter.remove();
+			evictionCount++;
+		}
+	}
+
+	public synchronized long getCapacity() {
+		return capacity;
+	}
+
+	public synchronized void setCapacity(long capacity) {
+		this.capacity = capacity;
+		evict();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized long getWeight() {
+		return weight;
+	}
+
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+
+	public synchronized long getMissCount() {
+		return missCount;
+	}
+
+	public synchronized long getEvictionCount() {
+		return evictionCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "entries: " + entries.size() + " weight: " + weight + "/" + capacity + " hits: " + hitCount + " misses: " + missCount + " evictions: " + evictionCount;
+	}
+}
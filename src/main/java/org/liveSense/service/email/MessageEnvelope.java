@@ -0,0 +1,194 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.liveSense.service.email;
+
+import java.util.Calendar;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.InternetHeaders;
+
+/**
+ * Envelope and scheduling metadata of a spooled mail. It's read from the headers of the message when it's
+ * spooled and stored as properties of the mail node, so the delivery and the scheduling (by domain, size or
+ * priority) do not have to read and parse the message.
+ *
+ * The properties are defined by the email:envelope mixin, which is added to the mail node. The email:email
+ * node type of an existing install is not re-registered, so the properties are not part of it. The mails spooled
+ * before the upgrade have no envelope, they are read from the message headers on delivery.
+ */
+public class MessageEnvelope {
+
+	public static final String MIXIN_ENVELOPE = "email:envelope";
+
+	public static final String PROPERTY_ENVELOPE_FROM = "envelopeFrom";
+	public static final String PROPERTY_RECIPIENTS = "recipients";
+	public static final String PROPERTY_RECIPIENT_DOMAINS = "recipientDomains";
+	public static final String PROPERTY_SIZE = "size";
+	public static final String PROPERTY_PRIORITY = "priority";
+	public static final String PROPERTY_CREATED_AT = "createdAt";
+
+	/**
+	 * The priority of messages without X-Priority header
+	 */
+	public static final long DEFAULT_PRIORITY = 3;
+
+	private final String envelopeFrom;
+	private final String[] recipients;
+	private final long size;
+	private final long priority;
+
+	/**
+	 * @param envelopeFrom - The envelope sender address or null
+	 * @param recipients - The recipient addresses
+	 * @param size - The size of the message in bytes
+	 * @param priority - The priority of message from 1 (highest) to 5 (lowest)
+	 */
+	public MessageEnvelope(String envelopeFrom, String[] recipients, long size, long priority) {
+		this.envelopeFrom = envelopeFrom;
+		this.recipients = recipients.clone();
+		this.size = size;
+		this.priority = priority;
+	}
+
+	/**
+	 * Read the envelope from the message headers. The recipients are the addresses of To, Cc and Bcc headers,
+	 * the envelope sender is the Return-Path, Sender or From address.
+	 * @param headers - The headers of the message
+	 * @param size - The size of the message in bytes
+	 * @return The envelope
+	 * @throws AddressException
+	 */
+	public static MessageEnvelope fromHeaders(InternetHeaders headers, long size) throws AddressException {
+		Set<String> recipients = new LinkedHashSet<String>();
+		for (String name : new String[] {"To", "Cc", "Bcc"}) {
+			String value = headers.getHeader(name, ",");
+			if (value == null) continue;
+			for (InternetAddress address : InternetAddress.parseHeader(value, false)) {
+				if (address.getAddress() != null && address.getAddress().length() > 0)
+					recipients.add(address.getAddress());
+			}
+		}
+
+		String envelopeFrom = null;
+		for (String name : new String[] {"Return-Path", "Sender", "From"}) {
+			String value = headers.getHeader(name, ",");
+			if (value == null) continue;
+			InternetAddress[] addresses = InternetAddress.parseHeader(value, false);
+			if (addresses.length > 0 && addresses[0].getAddress() != null && addresses[0].getAddress().length() > 0) {
+				envelopeFrom = addresses[0].getAddress();
+				break;
+			}
+		}
+
+		return new MessageEnvelope(envelopeFrom, recipients.toArray(new String[recipients.size()]), size, parsePriority(headers.getHeader("X-Priority", null)));
+	}
+
+	/**
+	 * @return The priority of an X-Priority header value, like "1 (Highest)"
+	 */
+	static long parsePriority(String value) {
+		if (value == null) return DEFAULT_PRIORITY;
+		value = value.trim();
+		int end = 0;
+		while (end < value.length() && Character.isDigit(value.charAt(end))) end++;
+		if (end == 0) return DEFAULT_PRIORITY;
+		long priority = Long.parseLong(value.substring(0, Math.min(end, 9)));
+		return Math.max(1, Math.min(5, priority));
+	}
+
+	/**
+	 * Read the envelope of a spooled mail.
+	 * @param mailNode - The mail node
+	 * @return The envelope or null if the mail was spooled without envelope
+	 * @throws RepositoryException
+	 */
+	public static MessageEnvelope readFrom(Node mailNode) throws RepositoryException {
+		if (!mailNode.hasProperty(PROPERTY_RECIPIENTS)) return null;
+		Value[] values = mailNode.getProperty(PROPERTY_RECIPIENTS).getValues();
+		String[] recipients = new String[values.length];
+		for (int i = 0; i < values.length; i++) {
+			recipients[i] = values[i].getString();
+		}
+		return new MessageEnvelope(
+				mailNode.hasProperty(PROPERTY_ENVELOPE_FROM) ? mailNode.getProperty(PROPERTY_ENVELOPE_FROM).getString() : null,
+				recipients,
+				mailNode.hasProperty(PROPERTY_SIZE) ? mailNode.getProperty(PROPERTY_SIZE).getLong() : -1,
+				mailNode.hasProperty(PROPERTY_PRIORITY) ? mailNode.getProperty(PROPERTY_PRIORITY).getLong() : DEFAULT_PRIORITY);
+	}
+
+	/**
+	 * Store the envelope as properties of the mail node. The email:envelope mixin is added to the node,
+	 * the createdAt is set to the current time.
+	 * @param mailNode - The mail node
+	 * @throws RepositoryException
+	 */
+	public void writeTo(Node mailNode) throws RepositoryException {
+		mailNode.addMixin(MIXIN_ENVELOPE);
+		if (envelopeFrom != null)
+			mailNode.setProperty(PROPERTY_ENVELOPE_FROM, envelopeFrom);
+		mailNode.setProperty(PROPERTY_RECIPIENTS, recipients);
+		mailNode.setProperty(PROPERTY_RECIPIENT_DOMAINS, getRecipientDomains());
+		mailNode.setProperty(PROPERTY_SIZE, size);
+		mailNode.setProperty(PROPERTY_PRIORITY, priority);
+		mailNode.setProperty(PROPERTY_CREATED_AT, Calendar.getInstance());
+	}
+
+	public String getEnvelopeFrom() {
+		return envelopeFrom;
+	}
+
+	public String[] getRecipients() {
+		return recipients.clone();
+	}
+
+	/**
+	 * @return The recipients as internet addresses
+	 * @throws AddressException
+	 */
+	public InternetAddress[] getRecipientAddresses() throws AddressException {
+		InternetAddress[] addresses = new InternetAddress[recipients.length];
+		for (int i = 0; i < recipients.length; i++) {
+			addresses[i] = new InternetAddress(recipients[i], false);
+		}
+		return addresses;
+	}
+
+	/**
+	 * @return The lower case domains of recipients, every domain once
+	 */
+	public String[] getRecipientDomains() {
+		Set<String> domains = new LinkedHashSet<String>();
+		for (String recipient : recipients) {
+			domains.add(AddressNormalizer.getDomain(recipient));
+		}
+		return domains.toArray(new String[domains.size()]);
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public long getPriority() {
+		return priority;
+	}
+}
@@ -0,0 +1,213 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.liveSense.service.email;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeUtility;
+
+import org.apache.commons.io.output.CloseShieldOutputStream;
+
+/**
+ * Compiled MIME structure of a mail sent many times. The boundaries, the multipart headers and the
+ * pre-encoded attachment and inline parts are serialised once into byte segments, a message is written
+ * by streaming the segments and splicing in the rendered text and HTML parts. No MimeMessage or
+ * MimeMultipart object graph is built per message.
+ *
+ * The structure depends on the rendered content (an empty text has no alternative part, only the
+ * attachments referenced by cid: are inline), so a skeleton is compiled for every shape on its first
+ * use. It follows the structure of {@link MimeContentBuilder}. Instances are thread safe.
+ */
+public class MessageSkeleton {
+
+	private static final String CRLF = "\r\n";
+	private static final String TEXT = "text/plain";
+	private static final String HTML = "text/html";
+
+	private final List<PreparedAttachment> attachments;
+	private final String charset;
+	private final boolean allow8bit;
+	private final String boundaryPrefix = "----=_Part_" + UUID.randomUUID().toString().replace("-", "") + "_";
+
+	private final ConcurrentHashMap<String, Object[]> skeletons = new ConcurrentHashMap<String, Object[]>();
+
+	/**
+	 * @param attachments - The attachments and inline parts of every message
+	 * @param charset - The charset of text and HTML parts
+	 * @param allow8bit - 8bit transfer encoding is allowed
+	 */
+	public MessageSkeleton(List<PreparedAttachment> attachments, String charset, boolean allow8bit) {
+		this.attachments = new ArrayList<PreparedAttachment>(attachments);
+		this.charset = charset;
+		this.allow8bit = allow8bit;
+	}
+
+	/**
+	 * Write the MIME-Version, the content headers and the body of a message. The message headers
+	 * (From, To, Subject etc.) have to be written before.
+	 * @param out - The output of message
+	 * @param text - The plain text content or null. Empty text is treated as null.
+	 * @param html - The HTML content
+	 * @throws IOException
+	 * @throws MessagingException
+	 */
+	public void writeTo(OutputStream out, String text, String html) throws IOException, MessagingException {
+		if (text != null && text.length() == 0)
+			text = null;
+
+		StringBuilder shape = new StringBuilder(attachments.size() + 1);
+		shape.append(text != null ? 'T' : '-');
+		for (PreparedAttachment attachment : attachments) {
+			shape.append(html.contains("cid:" + attachment.getFileName()) ? 'I' : 'A');
+		}
+		String key = shape.toString();
+		Object[] segments = skeletons.get(key);
+		if (segments == null) {
+			segments = compile(key);
+			Object[] other = skeletons.putIfAbsent(key, segments);
+			if (other != null)
+				segments = other;
+		}
+
+		for (Object segment : segments) {
+			if (segment == TEXT) {
+				writeTextPart(out, TEXT, text);
+			} else if (segment == HTML) {
+				writeTextPart(out, HTML, html);
+			} else {
+				out.write((byte[]) segment);
+			}
+		}
+	}
+
+	/**
+	 * @return The number of compiled shapes
+	 */
+	public int size() {
+		return skeletons.size();
+	}
+
+	private void writeTextPart(OutputStream out, String mimeType, String content) throws IOException, MessagingException {
+		String encoding = TransferEncodingSelector.selectEncoding(content, charset, allow8bit);
+		out.write(("Content-Type: " + mimeType + "; charset=" + charset + CRLF
+				+ "Content-Transfer-Encoding: " + encoding + CRLF + CRLF).getBytes("US-ASCII"));
+		byte[] bytes = content.getBytes(MimeUtility.javaCharset(charset));
+		if (TransferEncodingSelector.ENCODING_7BIT.equals(encoding) || TransferEncodingSelector.ENCODING_8BIT.equals(encoding)) {
+			out.write(bytes);
+		} else {
+			// The encoder is closed to flush its last line, the message output stays open
+			OutputStream encoder = MimeUtility.encode(new CloseShieldOutputStream(out), encoding);
+			encoder.write(bytes);
+			encoder.close();
+		}
+	}
+
+	private Object[] compile(String shape) throws IOException, MessagingException {
+		List<PreparedAttachment> inlines = new ArrayList<PreparedAttachment>();
+		List<PreparedAttachment> mixed = new ArrayList<PreparedAttachment>();
+		for (int i = 0; i < attachments.size(); i++) {
+			if (shape.charAt(i + 1) == 'I') {
+				inlines.add(attachments.get(i));
+			} else {
+				mixed.add(attachments.get(i));
+			}
+		}
+
+		Segments segments = new Segments();
+		segments.write("MIME-Version: 1.0" + CRLF);
+		if (mixed.isEmpty()) {
+			compileBody(segments, shape.charAt(0) == 'T', inlines);
+		} else {
+			String boundary = boundaryPrefix + "mixed";
+			segments.write("Content-Type: multipart/mixed; " + CRLF + "\tboundary=\"" + boundary + "\"" + CRLF + CRLF);
+			segments.write("--" + boundary + CRLF);
+			compileBody(segments, shape.charAt(0) == 'T', inlines);
+			for (PreparedAttachment attachment : mixed) {
+				segments.write(CRLF + "--" + boundary + CRLF);
+				attachment.createPart(false).writeTo(segments.buffer);
+			}
+			segments.write(CRLF + "--" + boundary + "--" + CRLF);
+		}
+		return segments.toArray();
+	}
+
+	private void compileBody(Segments segments, boolean hasText, List<PreparedAttachment> inlines) throws IOException, MessagingException {
+		if (!hasText) {
+			compileHtml(segments, inlines);
+			return;
+		}
+		String boundary = boundaryPrefix + "alternative";
+		segments.write("Content-Type: multipart/alternative; " + CRLF + "\tboundary=\"" + boundary + "\"" + CRLF + CRLF);
+		segments.write("--" + boundary + CRLF);
+		segments.add(TEXT);
+		segments.write(CRLF + "--" + boundary + CRLF);
+		compileHtml(segments, inlines);
+		segments.write(CRLF + "--" + boundary + "--" + CRLF);
+	}
+
+	private void compileHtml(Segments segments, List<PreparedAttachment> inlines) throws IOException, MessagingException {
+		if (inlines.isEmpty()) {
+			segments.add(HTML);
+			return;
+		}
+		String boundary = boundaryPrefix + "related";
+		segments.write("Content-Type: multipart/related; " + CRLF + "\tboundary=\"" + boundary + "\"" + CRLF + CRLF);
+		segments.write("--" + boundary + CRLF);
+		segments.add(HTML);
+		for (PreparedAttachment inline : inlines) {
+			segments.write(CRLF + "--" + boundary + CRLF);
+			inline.createPart(true).writeTo(segments.buffer);
+		}
+		segments.write(CRLF + "--" + boundary + "--" + CRLF);
+	}
+
+	/**
+	 * Static byte segments separated by the text and HTML placeholders
+	 */
+	private static class Segments {
+		final List<Object> segments = new ArrayList<Object>();
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+		void write(String s) throws IOException {
+			buffer.write(s.getBytes("US-ASCII"));
+		}
+
+		void add(String placeholder) {
+			flush();
+			segments.add(placeholder);
+		}
+
+		void flush() {
+			if (buffer.size() > 0) {
+				segments.add(buffer.toByteArray());
+				buffer = new ByteArrayOutputStream();
+			}
+		}
+
+		Object[] toArray() {
+			flush();
+			return segments.toArray();
+		}
+	}
+}
@@ -0,0 +1,152 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.liveSense.service.email;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.internet.MimePart;
+
+/**
+ * Builds the content of a mail with the minimal MIME structure:
+ * <ul>
+ * <li>a single text/plain or text/html part when there is only one representation,</li>
+ * <li>multipart/alternative when there are both text and HTML,</li>
+ * <li>multipart/related around the HTML only when there are inline parts,</li>
+ * <li>multipart/mixed around the body only when there are attachments.</li>
+ * </ul>
+ * The transfer encoding of text parts is selected by {@link TransferEncodingSelector}.
+ */
+public class MimeContentBuilder {
+
+	private final String charset;
+	private final boolean allow8bit;
+	private String text;
+	private String html;
+	private final List<MimeBodyPart> inlines = new ArrayList<MimeBodyPart>();
+	private final List<MimeBodyPart> attachments = new ArrayList<MimeBodyPart>();
+
+	/**
+	 * @param charset - The charset of text and HTML parts
+	 */
+	public MimeContentBuilder(String charset) {
+		this(charset, false);
+	}
+
+	/**
+	 * @param charset - The charset of text and HTML parts
+	 * @param allow8bit - 8bit transfer encoding is allowed
+	 */
+	public MimeContentBuilder(String charset, boolean allow8bit) {
+		this.charset = charset;
+		this.allow8bit = allow8bit;
+	}
+
+	/**
+	 * @param text - The plain text content or null. Empty text is treated as null.
+	 */
+	public MimeContentBuilder setText(String text) {
+		this.text = text != null && text.length() > 0 ? text : null;
+		return this;
+	}
+
+	/**
+	 * @param html - The HTML content or null
+	 */
+	public MimeContentBuilder setHtml(String html) {
+		this.html = html;
+		return this;
+	}
+
+	/**
+	 * Add a part referenced from the HTML by its Content-ID. The part is ignored if there is no HTML.
+	 */
+	public MimeContentBuilder addInline(MimeBodyPart part) {
+		inlines.add(part);
+		return this;
+	}
+
+	/**
+	 * Add an attachment.
+	 */
+	public MimeContentBuilder addAttachment(MimeBodyPart part) {
+		attachments.add(part);
+		return this;
+	}
+
+	/**
+	 * @return true if the HTML refers the content id with a cid: URL
+	 */
+	public boolean isReferenced(String contentId) {
+		return html != null && contentId != null && html.contains("cid:" + contentId);
+	}
+
+	/**
+	 * Set the content of the part (the message itself or a body part).
+	 */
+	public void build(MimePart target) throws MessagingException {
+		if (attachments.isEmpty()) {
+			setBody(target);
+			return;
+		}
+		MimeMultipart mixed = new MimeMultipart("mixed");
+		MimeBodyPart body = new MimeBodyPart();
+		setBody(body);
+		mixed.addBodyPart(body);
+		for (MimeBodyPart attachment : attachments) {
+			mixed.addBodyPart(attachment);
+		}
+		target.setContent(mixed);
+	}
+
+	private void setBody(MimePart target) throws MessagingException {
+		if (html == null) {
+			TransferEncodingSelector.setText(target, text != null ? text : "", charset, allow8bit);
+			return;
+		}
+		if (text == null) {
+			setHtml(target);
+			return;
+		}
+		MimeMultipart alternative = new MimeMultipart("alternative");
+		MimeBodyPart textPart = new MimeBodyPart();
+		TransferEncodingSelector.setText(textPart, text, charset, allow8bit);
+		alternative.addBodyPart(textPart);
+		MimeBodyPart htmlPart = new MimeBodyPart();
+		setHtml(htmlPart);
+		alternative.addBodyPart(htmlPart);
+		target.setContent(alternative);
+	}
+
+	private void setHtml(MimePart target) throws MessagingException {
+		if (inlines.isEmpty()) {
+			TransferEncodingSelector.setHtml(target, html, charset, allow8bit);
+			return;
+		}
+		MimeMultipart related = new MimeMultipart("related");
+		MimeBodyPart htmlPart = new MimeBodyPart();
+		TransferEncodingSelector.setHtml(htmlPart, html, charset, allow8bit);
+		related.addBodyPart(htmlPart);
+		for (MimeBodyPart inline : inlines) {
+			related.addBodyPart(inline);
+		}
+		target.setContent(related);
+	}
+}
@@ -0,0 +1,122 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.liveSense.service.email;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.activation.DataHandler;
+import javax.activation.MimetypesFileTypeMap;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeUtility;
+import javax.mail.internet.PreencodedMimeBodyPart;
+import javax.mail.util.ByteArrayDataSource;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Base64 encoded attachment. The content is encoded once, every {@link #createPart(boolean)} call
+ * creates a new body part over the same encoded bytes, so the attachment can be added to any number of messages.
+ * Instances are immutable.
+ */
+public class PreparedAttachment {
+
+	private final String fileName;
+	private final String contentType;
+	private final byte[] encoded;
+
+	/**
+	 * @param fileName - The file name, it's the content id of inline parts as well
+	 * @param mimeType - The mime type or null to guess it by the file name
+	 * @param encoded - The base64 encoded content
+	 */
+	public PreparedAttachment(String fileName, String mimeType, byte[] encoded) {
+		if (mimeType == null || mimeType.length() == 0)
+			mimeType = new MimetypesFileTypeMap().getContentType(fileName);
+		this.fileName = fileName;
+		this.contentType = mimeType + "; name=\"" + fileName + "\"";
+		this.encoded = encoded;
+	}
+
+	/**
+	 * Encode a content with base64.
+	 * @param in - The content, it's closed after reading
+	 * @param size - The size of content or -1 if it's unknown
+	 * @return The encoded content
+	 * @throws IOException
+	 * @throws MessagingException
+	 */
+	public static byte[] encode(InputStream in, long size) throws IOException, MessagingException {
+		// Base64 grows the content by 4/3, plus line breaks
+		ByteArrayOutputStream out = new ByteArrayOutputStream(size > 0 ? (int) getEncodedSize(size) : 4096);
+		OutputStream encoder = MimeUtility.encode(out, "base64");
+		try {
+			IOUtils.copy(in, encoder);
+		} finally {
+			in.close();
+		}
+		encoder.close();
+		return out.toByteArray();
+	}
+
+	/**
+	 * @return The estimated base64 encoded size of content
+	 */
+	public static long getEncodedSize(long size) {
+		return size / 57 * 78 + 78;
+	}
+
+	public String getFileName() {
+		return fileName;
+	}
+
+	public String getContentType() {
+		return contentType;
+	}
+
+	/**
+	 * @return The size of the encoded content
+	 */
+	public int getSize() {
+		return encoded.length;
+	}
+
+	/**
+	 * Create a body part of the attachment.
+	 * @param inline - The part is referenced from the HTML by cid:fileName
+	 * @return The new body part
+	 * @throws MessagingException
+	 */
+	public MimeBodyPart createPart(boolean inline) throws MessagingException {
+		MimeBodyPart part = new PreencodedMimeBodyPart("base64");
+		part.setDataHandler(new DataHandler(new ByteArrayDataSource(encoded, contentType)));
+		// The headers are set explicitly, so the part can be written without saving a message
+		part.setHeader("Content-Type", contentType);
+		part.setHeader("Content-Transfer-Encoding", "base64");
+		part.setFileName(fileName);
+		if (inline) {
+			part.setDisposition(MimeBodyPart.INLINE);
+			part.setContentID("<" + fileName + ">");
+		} else {
+			part.setDisposition(MimeBodyPart.ATTACHMENT);
+		}
+		return part;
+	}
+}
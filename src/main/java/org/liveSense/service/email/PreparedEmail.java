@@ -0,0 +1,325 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.liveSense.service.email;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+import javax.mail.internet.InternetAddress;
+
+import freemarker.template.Template;
+
+/**
+ * Email prepared for sending many times. The template is compiled, the addresses are parsed and the
+ * attachments are encoded when the email is built, so a send only renders the template with the variables
+ * of the send and spools the message. Instances are immutable and can be sent from many threads.
+ *
+ * <pre>
+ * PreparedEmail email = emailService.prepareEmail()
+ *     .template(source)
+ *     .subject("Newsletter")
+ *     .from("news@example.com")
+ *     .attach(brochureNode)
+ *     .build();
+ * for (...) {
+ *     emailService.sendEmail(email, variables);
+ * }
+ * </pre>
+ *
+ * Headers not given on the builder are taken from the resource node and the variables of the send,
+ * the same way as the sendEmailFrom* methods do.
+ */
+public class PreparedEmail {
+
+	private final Template template;
+	private final boolean rfc822;
+	private final String resourcePath;
+	private final boolean attachResourceFiles;
+	private final String subject;
+	private final InternetAddress from;
+	private final InternetAddress[] replyTo;
+	private final InternetAddress[] to;
+	private final InternetAddress[] cc;
+	private final InternetAddress[] bcc;
+	private final Date date;
+	private final Map<String, Object> variables;
+	private final List<PreparedAttachment> attachments;
+
+	PreparedEmail(Template template, boolean rfc822, String resourcePath, boolean attachResourceFiles, String subject, InternetAddress from, InternetAddress[] replyTo,
+			InternetAddress[] to, InternetAddress[] cc, InternetAddress[] bcc, Date date, Map<String, Object> variables, List<PreparedAttachment> attachments) {
+		this.template = template;
+		this.rfc822 = rfc822;
+		this.resourcePath = resourcePath;
+		this.attachResourceFiles = attachResourceFiles;
+		this.subject = subject;
+		this.from = from;
+		this.replyTo = replyTo;
+		this.to = to;
+		this.cc = cc;
+		this.bcc = bcc;
+		this.date = date != null ? new Date(date.getTime()) : null;
+		this.variables = Collections.unmodifiableMap(new HashMap<String, Object>(variables));
+		this.attachments = Collections.unmodifiableList(new ArrayList<PreparedAttachment>(attachments));
+	}
+
+	/**
+	 * @return The compiled template
+	 */
+	public Template getTemplate() {
+		return template;
+	}
+
+	/**
+	 * @return true if the template renders the whole RFC822 message, false if it renders the HTML body
+	 */
+	public boolean isRfc822() {
+		return rfc822;
+	}
+
+	/**
+	 * @return The path of resource node bound as "node" to the template or null
+	 */
+	public String getResourcePath() {
+		return resourcePath;
+	}
+
+	/**
+	 * @return true if the nt:file children of resource are attached
+	 */
+	public boolean isAttachResourceFiles() {
+		return attachResourceFiles;
+	}
+
+	/**
+	 * @return The RFC 2047 encoded subject or null
+	 */
+	public String getSubject() {
+		return subject;
+	}
+
+	public InternetAddress getFrom() {
+		return from;
+	}
+
+	public InternetAddress[] getReplyTo() {
+		return copy(replyTo);
+	}
+
+	public InternetAddress[] getTo() {
+		return copy(to);
+	}
+
+	public InternetAddress[] getCc() {
+		return copy(cc);
+	}
+
+	public InternetAddress[] getBcc() {
+		return copy(bcc);
+	}
+
+	public Date getDate() {
+		return date != null ? new Date(date.getTime()) : null;
+	}
+
+	/**
+	 * @return The variables of every send, the variables of a send override them
+	 */
+	public Map<String, Object> getVariables() {
+		return variables;
+	}
+
+	public List<PreparedAttachment> getAttachments() {
+		return attachments;
+	}
+
+	private static InternetAddress[] copy(InternetAddress[] addresses) {
+		return addresses != null ? addresses.clone() : null;
+	}
+
+	/**
+	 * Fluent builder of PreparedEmail. It can be created by {@link EmailService#prepareEmail()}.
+	 */
+	public static class Builder {
+
+		private final EmailServiceImpl service;
+
+		Session session;
+		String templateSource;
+		Node templateNode;
+		String templatePath;
+		boolean rfc822 = false;
+		Node resource;
+		String resourcePath;
+		boolean attachResourceFiles = true;
+		String subject;
+		Object from;
+		Object replyTo;
+		List<Object> to = new ArrayList<Object>();
+		List<Object> cc = new ArrayList<Object>();
+		List<Object> bcc = new ArrayList<Object>();
+		Date date;
+		Map<String, Object> variables = new HashMap<String, Object>();
+		List<Node> attachmentNodes = new ArrayList<Node>();
+		List<PreparedAttachment> attachments = new ArrayList<PreparedAttachment>();
+
+		Builder(EmailServiceImpl service) {
+			this.service = service;
+		}
+
+		/**
+		 * The session used to read template, resource and attachments. If it's not given the administrator session is used.
+		 */
+		public Builder session(Session session) {
+			this.session = session;
+			return this;
+		}
+
+		/**
+		 * HTML template source.
+		 */
+		public Builder template(String source) {
+			this.templateSource = source;
+			return this;
+		}
+
+		/**
+		 * HTML template stored as nt:file.
+		 */
+		public Builder templateNode(Node node) {
+			this.templateNode = node;
+			return this;
+		}
+
+		/**
+		 * Path of HTML template stored as nt:file.
+		 */
+		public Builder templatePath(String path) {
+			this.templatePath = path;
+			return this;
+		}
+
+		/**
+		 * The template renders the whole RFC822 message instead of the HTML body.
+		 * The headers and attachments of the builder are not used in this case.
+		 */
+		public Builder rfc822(boolean rfc822) {
+			this.rfc822 = rfc822;
+			return this;
+		}
+
+		/**
+		 * The resource node bound as "node" to the template. Its nt:file children are attached.
+		 */
+		public Builder resource(Node resource) {
+			this.resource = resource;
+			return this;
+		}
+
+		/**
+		 * The path of resource node bound as "node" to the template. Its nt:file children are attached.
+		 */
+		public Builder resourcePath(String path) {
+			this.resourcePath = path;
+			return this;
+		}
+
+		/**
+		 * Attach the nt:file children of resource. It's true by default.
+		 */
+		public Builder attachResourceFiles(boolean attach) {
+			this.attachResourceFiles = attach;
+			return this;
+		}
+
+		public Builder subject(String subject) {
+			this.subject = subject;
+			return this;
+		}
+
+		public Builder from(Object from) {
+			this.from = from;
+			return this;
+		}
+
+		public Builder replyTo(Object replyTo) {
+			this.replyTo = replyTo;
+			return this;
+		}
+
+		public Builder to(Object... to) {
+			Collections.addAll(this.to, to);
+			return this;
+		}
+
+		public Builder cc(Object... cc) {
+			Collections.addAll(this.cc, cc);
+			return this;
+		}
+
+		public Builder bcc(Object... bcc) {
+			Collections.addAll(this.bcc, bcc);
+			return this;
+		}
+
+		public Builder date(Date date) {
+			this.date = date;
+			return this;
+		}
+
+		public Builder variable(String name, Object value) {
+			this.variables.put(name, value);
+			return this;
+		}
+
+		public Builder variables(Map<String, Object> variables) {
+			if (variables != null)
+				this.variables.putAll(variables);
+			return this;
+		}
+
+		/**
+		 * Attach an nt:file node.
+		 */
+		public Builder attach(Node file) {
+			this.attachmentNodes.add(file);
+			return this;
+		}
+
+		/**
+		 * Attach an encoded attachment.
+		 */
+		public Builder attach(PreparedAttachment attachment) {
+			this.attachments.add(attachment);
+			return this;
+		}
+
+		/**
+		 * Compile the template, parse the addresses and encode the attachments.
+		 * @return The prepared email
+		 * @throws Exception
+		 */
+		public PreparedEmail build() throws Exception {
+			return service.prepare(this);
+		}
+	}
+}
@@ -0,0 +1,162 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.liveSense.service.email;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.activation.DataSource;
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Already rendered RFC822 message which is delivered verbatim. The message is not parsed, {@link #writeTo(OutputStream, String[])}
+ * streams the stored bytes, only the ignored header lines (the Bcc for SMTP) are left out. The envelope comes from the
+ * stored {@link MessageEnvelope}, {@link #getFrom()} returns the envelope sender, which is the MAIL FROM of SMTP transport.
+ *
+ * The message is read only, it has to be sent with Transport.sendMessage(message, recipients), the static
+ * Transport.send would call saveChanges, which is not supported.
+ */
+public class RawMimeMessage extends MimeMessage {
+
+	private static final byte[] CRLF = {'\r', '\n'};
+
+	private final DataSource source;
+	private final MessageEnvelope envelope;
+
+	/**
+	 * @param session - The mail session
+	 * @param source - The source of stored message, every getInputStream() has to return the message from the beginning
+	 * @param envelope - The envelope of message
+	 */
+	public RawMimeMessage(Session session, DataSource source, MessageEnvelope envelope) {
+		super(session);
+		this.source = source;
+		this.envelope = envelope;
+	}
+
+	/**
+	 * @return The envelope sender or null if it's unknown
+	 */
+	@Override
+	public Address[] getFrom() throws MessagingException {
+		if (envelope.getEnvelopeFrom() == null) return null;
+		try {
+			return new Address[] {new InternetAddress(envelope.getEnvelopeFrom(), false)};
+		} catch (AddressException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return The recipients of envelope
+	 */
+	@Override
+	public Address[] getAllRecipients() throws MessagingException {
+		return envelope.getRecipientAddresses();
+	}
+
+	@Override
+	public int getSize() throws MessagingException {
+		return envelope.getSize() > Integer.MAX_VALUE ? -1 : (int) envelope.getSize();
+	}
+
+	/**
+	 * The stored message is complete, it's never changed.
+	 */
+	@Override
+	public void saveChanges() throws MessagingException {
+		throw new MessagingException("Raw message is read only");
+	}
+
+	@Override
+	public void writeTo(OutputStream os) throws IOException, MessagingException {
+		writeTo(os, null);
+	}
+
+	/**
+	 * Stream the stored message. The header lines are copied one by one to leave out the ignored headers,
+	 * the body is copied as is.
+	 */
+	@Override
+	public void writeTo(OutputStream os, String[] ignoreList) throws IOException, MessagingException {
+		InputStream in = new BufferedInputStream(source.getInputStream());
+		try {
+			ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+			boolean ignored = false;
+			while (readLine(in, line)) {
+				byte[] bytes = line.toByteArray();
+				line.reset();
+				if (bytes.length == 0) {
+					// End of headers
+					os.write(CRLF);
+					IOUtils.copy(in, os);
+					break;
+				}
+				// Continuation lines belong to the previous header
+				if (bytes[0] != ' ' && bytes[0] != '\t')
+					ignored = isIgnored(bytes, ignoreList);
+				if (!ignored) {
+					os.write(bytes);
+					os.write(CRLF);
+				}
+			}
+			os.flush();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Read a line without the line terminator.
+	 * @return false at the end of stream
+	 */
+	private static boolean readLine(InputStream in, ByteArrayOutputStream line) throws IOException {
+		int c;
+		boolean read = false;
+		boolean cr = false;
+		while ((c = in.read()) != -1) {
+			read = true;
+			if (c == '\n') return true;
+			if (cr) line.write('\r');
+			cr = c == '\r';
+			if (!cr) line.write(c);
+		}
+		if (cr) line.write('\r');
+		return read;
+	}
+
+	private static boolean isIgnored(byte[] line, String[] ignoreList) throws IOException {
+		if (ignoreList == null) return false;
+		int colon = 0;
+		while (colon < line.length && line[colon] != ':') colon++;
+		String name = new String(line, 0, colon, "ISO-8859-1").trim();
+		for (String ignore : ignoreList) {
+			if (ignore.equalsIgnoreCase(name)) return true;
+		}
+		return false;
+	}
+}
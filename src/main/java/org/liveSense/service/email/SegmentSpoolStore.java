@@ -0,0 +1,1096 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.liveSense.service.email;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import javax.activation.DataSource;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.ConfigurationPolicy;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.osgi.service.component.ComponentContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Spool store of append-only segment files on the local filesystem, for nodes which enqueue more mails than the
+ * repository can store as nodes. It's selected by the <code>(spool.store.name=segment)</code> target of the users.
+ *
+ * <p>The messages are appended to the current segment file with positional FileChannel writes. The enqueuers wait
+ * for the fsync of their record, but a single fsync covers every record written before it, so the concurrent
+ * enqueuers share the fsyncs (group commit). A record is framed as magic, envelope length, message length, envelope,
+ * message and the CRC32 of envelope and message. At the recovery a torn tail of the last segment is cut, an invalid
+ * record elsewhere is skipped up to the next valid record and its bytes are copied to the corrupt directory.</p>
+ *
+ * <p>The acks, retries and dead letters are appended to a compact side index of fixed size entries. The segments are
+ * never changed after the write; a sealed segment is deleted by the periodical run when all of its records are acked,
+ * then the index is rewritten with the state of the remaining records. The messages are read for delivery from the
+ * sealed segments mapped to memory once, and through the file channel from the current segment.</p>
+ *
+ * <p>The store is only active with a configuration, so the segment directory is not created on the nodes which
+ * use the repository store.</p>
+ *
+ * <p>The state of the queue is kept in memory and it's rebuilt from the segments and the index at activation.
+ * Claims are not persisted, the claimed but not acked mails are delivered again after a restart.</p>
+ */
+@Component(label = "%segmentSpoolStore.name", description = "%segmentSpoolStore.description", immediate = true, metatype = true, policy = ConfigurationPolicy.REQUIRE)
+@Service(value = {SpoolStore.class, java.lang.Runnable.class})
+@Properties(value = {
+		@Property(name = SpoolStore.STORE_NAME, value = SegmentSpoolStore.NAME, propertyPrivate = true),
+		@Property(
+				name="scheduler.name", 
+				value="SegmentSpoolStore"),
+		@Property(
+				name="scheduler.expression", 
+				value="15 * * ? * * "),
+		@Property(name = SegmentSpoolStore.PARAM_DIRECTORY, label = "%directory.name", description = "%directory.description", value = SegmentSpoolStore.DEFAULT_DIRECTORY),
+		@Property(name = SegmentSpoolStore.PARAM_SEGMENT_SIZE, label = "%segmentSize.name", description = "%segmentSize.description", intValue = SegmentSpoolStore.DEFAULT_SEGMENT_SIZE),
+		@Property(name = SegmentSpoolStore.PARAM_CLAIM_TIMEOUT, label = "%claimTimeout.name", description = "%claimTimeout.description", longValue = SegmentSpoolStore.DEFAULT_CLAIM_TIMEOUT) })
+public class SegmentSpoolStore implements SpoolStore, Runnable {
+
+	private static final Logger log = LoggerFactory.getLogger(SegmentSpoolStore.class);
+
+	public static final String NAME = "segment";
+
+	/**
+	 * Directory of the segments. A relative directory is resolved against sling.home.
+	 */
+	public static final String PARAM_DIRECTORY = "directory";
+	public static final String DEFAULT_DIRECTORY = "var/spool/queue/mail";
+
+	/**
+	 * Size of a segment file in bytes. A larger message is stored alone in a segment.
+	 */
+	public static final String PARAM_SEGMENT_SIZE = "segmentSize";
+	public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+	public static final String PARAM_CLAIM_TIMEOUT = JcrSpoolStore.PARAM_CLAIM_TIMEOUT;
+	public static final long DEFAULT_CLAIM_TIMEOUT = JcrSpoolStore.DEFAULT_CLAIM_TIMEOUT;
+
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final String INDEX_FILE = "index.log";
+	private static final String DEAD_LETTER_DIRECTORY = "dead";
+	private static final String CORRUPT_DIRECTORY = "corrupt";
+
+	private static final int RECORD_MAGIC = 0x4d41494c;
+	private static final int HEADER_SIZE = 16;
+	private static final int TRAILER_SIZE = 8;
+
+	private static final byte OP_ACK = 1;
+	private static final byte OP_NACK = 2;
+	private static final byte OP_DEAD = 3;
+	private static final int INDEX_ENTRY_SIZE = 29;
+
+	/**
+	 * The index is rewritten when it's larger than twice of its live entries plus this size
+	 */
+	private static final long INDEX_REWRITE_SLACK = 1024 * 1024;
+
+	private static final int PRIORITIES = 5;
+
+	private File directory;
+	private File deadLetterDirectory;
+	private int segmentSize = DEFAULT_SEGMENT_SIZE;
+	private long claimTimeout = DEFAULT_CLAIM_TIMEOUT;
+
+	/**
+	 * Guards the current segment and the appends to it
+	 */
+	private final Object writeLock = new Object();
+	private Segment current;
+
+	/**
+	 * Guards the index and the appends to it. It can be held while taking the state lock, not the other way.
+	 */
+	private final Object indexLock = new Object();
+	private LogFile index;
+
+	/**
+	 * Guards the segments and the state of mails
+	 */
+	private final Object stateLock = new Object();
+	private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+	private final List<ArrayDeque<Entry>> ready = new ArrayList<ArrayDeque<Entry>>();
+	private final PriorityQueue<Delay> delayed = new PriorityQueue<Delay>();
+
+	/**
+	 * Activates this component.
+	 * 
+	 * @param componentContext
+	 *            The OSGi <code>ComponentContext</code> of this component.
+	 */
+	@Activate
+	protected void activate(ComponentContext componentContext) throws IOException {
+		Dictionary<?, ?> props = componentContext.getProperties();
+		String path = PropertiesUtil.toString(props.get(PARAM_DIRECTORY), DEFAULT_DIRECTORY);
+		int segmentSize = PropertiesUtil.toInteger(props.get(PARAM_SEGMENT_SIZE), DEFAULT_SEGMENT_SIZE);
+		long claimTimeout = PropertiesUtil.toLong(props.get(PARAM_CLAIM_TIMEOUT), DEFAULT_CLAIM_TIMEOUT);
+
+		File directory = new File(path);
+		String slingHome = componentContext.getBundleContext().getProperty("sling.home");
+		if (!directory.isAbsolute() && slingHome != null) {
+			directory = new File(slingHome, path);
+		}
+		open(directory, segmentSize, claimTimeout);
+	}
+
+	/**
+	 * Open the store in the directory and rebuild its state.
+	 * @param directory - The directory of the segments
+	 * @param segmentSize - The size of a segment file in bytes
+	 * @param claimTimeout - The time in milliseconds until a claimed mail is not returned by other claims
+	 * @throws IOException
+	 */
+	void open(File directory, int segmentSize, long claimTimeout) throws IOException {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.claimTimeout = claimTimeout;
+		deadLetterDirectory = new File(directory, DEAD_LETTER_DIRECTORY);
+		if (!deadLetterDirectory.isDirectory() && !deadLetterDirectory.mkdirs()) {
+			throw new IOException("Could not create spool directory: " + deadLetterDirectory);
+		}
+
+		ready.clear();
+		for (int i = 0; i < PRIORITIES; i++) {
+			ready.add(new ArrayDeque<Entry>());
+		}
+		recover();
+		log.info("Segment spool opened: " + directory + ", " + entries.size() + " mails in " + segments.size() + " segments");
+	}
+
+	@Deactivate
+	protected void deactivate(ComponentContext componentContext) {
+		close();
+	}
+
+	/**
+	 * Close the files of the store, the state is dropped.
+	 */
+	void close() {
+		synchronized (writeLock) {
+			synchronized (indexLock) {
+				synchronized (stateLock) {
+					for (Segment segment : segments.values()) {
+						segment.close();
+					}
+					segments.clear();
+					entries.clear();
+					delayed.clear();
+					ready.clear();
+					current = null;
+					if (index != null) {
+						index.close();
+						index = null;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Rebuild the state from the index and the segments.
+	 */
+	private void recover() throws IOException {
+		new File(directory, INDEX_FILE + ".tmp").delete();
+		index = new LogFile(new File(directory, INDEX_FILE));
+
+		// Replay the index, the last state of a record wins
+		Map<String, long[]> states = new HashMap<String, long[]>();
+		long indexSize = index.written - index.written % INDEX_ENTRY_SIZE;
+		ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+		for (long position = 0; position < indexSize; position += INDEX_ENTRY_SIZE) {
+			entry.clear();
+			index.read(entry, position);
+			entry.flip();
+			byte op = entry.get();
+			String id = getId(entry.getLong(), entry.getLong());
+			states.put(id, new long[] {op, entry.getLong(), entry.getInt()});
+		}
+		if (indexSize < index.written) {
+			index.truncate(indexSize);
+		}
+
+		File[] files = directory.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		Arrays.sort(files);
+		for (int i = 0; i < files.length; i++) {
+			String name = files[i].getName();
+			Segment segment = new Segment(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())), files[i]);
+			recover(segment, states, i == files.length - 1);
+			segment.sealed = true;
+			segments.put(segment.seq, segment);
+		}
+
+		if (!segments.isEmpty() && segments.lastEntry().getValue().written < segmentSize) {
+			current = segments.lastEntry().getValue();
+			current.sealed = false;
+		} else {
+			current = openSegment(segments.isEmpty() ? 1 : segments.lastKey() + 1);
+		}
+	}
+
+	/**
+	 * Read the records of a segment. An invalid record is skipped up to the next valid record and its bytes are
+	 * quarantined. Only the torn tail of the last segment, where the enqueue was interrupted, is cut; the sealed
+	 * segments are never changed. Only the records to deliver are verified by their checksum.
+	 */
+	private void recover(Segment segment, Map<String, long[]> states, boolean last) throws IOException {
+		long size = segment.written;
+		long position = 0;
+		long now = System.currentTimeMillis();
+		while (position < size) {
+			long end = recoverRecord(segment, position, size, states, now);
+			if (end >= 0) {
+				position = end;
+				continue;
+			}
+			long next = findRecord(segment, position + 1, size);
+			if (next < 0 && last) {
+				log.warn("Torn record in spool segment " + segment.file + " at " + position + ", the segment is truncated");
+				segment.truncate(position);
+				break;
+			}
+			if (next < 0)
+				next = size;
+			quarantine(segment, position, next);
+			position = next;
+		}
+	}
+
+	/**
+	 * Read a record and add it to the queue unless it's done.
+	 * @return The end of record or -1 if it's invalid
+	 */
+	private long recoverRecord(Segment segment, long position, long size, Map<String, long[]> states, long now) throws IOException {
+		long[] header = readHeader(segment, position, size);
+		if (header == null)
+			return -1;
+		int envelopeLength = (int) header[0];
+		long length = header[1];
+		long end = position + HEADER_SIZE + envelopeLength + length + TRAILER_SIZE;
+
+		long[] state = states.get(getId(segment.seq, position));
+		if (state != null && state[0] != OP_NACK) {
+			segment.done.add(position);
+			return end;
+		}
+		if (!verify(segment, position, envelopeLength, length))
+			return -1;
+		ByteBuffer envelope = ByteBuffer.allocate(envelopeLength);
+		segment.read(envelope, position + HEADER_SIZE);
+		Entry entry = new Entry(segment.seq, position, envelopeLength, length, decodeEnvelope(envelope.array()));
+		if (state != null) {
+			entry.nextTry = state[1];
+			entry.retryCount = state[2];
+		}
+		segment.live++;
+		add(entry, now);
+		return end;
+	}
+
+	/**
+	 * @return The envelope length and the message length of the record, or null if the header is invalid
+	 */
+	private long[] readHeader(Segment segment, long position, long size) throws IOException {
+		if (position + HEADER_SIZE + TRAILER_SIZE > size)
+			return null;
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		segment.read(header, position);
+		header.flip();
+		int magic = header.getInt();
+		int envelopeLength = header.getInt();
+		long length = header.getLong();
+		if (magic != RECORD_MAGIC || envelopeLength < 0 || length < 0 || envelopeLength > size || length > size
+				|| position + HEADER_SIZE + envelopeLength + length + TRAILER_SIZE > size)
+			return null;
+		return new long[] {envelopeLength, length};
+	}
+
+	/**
+	 * Find the next valid record after an invalid one. The magic can be part of a message, so a record is
+	 * accepted only by its checksum.
+	 * @return The position of record or -1 if there is no valid record
+	 */
+	private long findRecord(Segment segment, long from, long size) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+		long position = from;
+		while (position + HEADER_SIZE + TRAILER_SIZE <= size) {
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), size - position));
+			segment.read(buffer, position);
+			int i = 0;
+			for (; i + 4 <= buffer.limit(); i++) {
+				if (buffer.getInt(i) == RECORD_MAGIC) {
+					long[] header = readHeader(segment, position + i, size);
+					if (header != null && verify(segment, position + i, (int) header[0], header[1]))
+						return position + i;
+				}
+			}
+			// The magic can span the blocks
+			position += i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Copy the bytes of invalid records to the corrupt directory. The mails in them are not delivered.
+	 */
+	private void quarantine(Segment segment, long from, long to) throws IOException {
+		File corruptDirectory = new File(directory, CORRUPT_DIRECTORY);
+		if (!corruptDirectory.isDirectory() && !corruptDirectory.mkdirs()) {
+			throw new IOException("Could not create spool directory: " + corruptDirectory);
+		}
+		File file = new File(corruptDirectory, getId(segment.seq, from) + ".bin");
+		log.error("Invalid records in spool segment " + segment.file + " from " + from + " to " + to + ", they are skipped and copied to " + file);
+		OutputStream out = new FileOutputStream(file);
+		try {
+			IOUtils.copy(segment.open(from, to - from), out);
+		} finally {
+			IOUtils.closeQuietly(out);
+		}
+	}
+
+	private boolean verify(Segment segment, long position, int envelopeLength, long length) throws IOException {
+		CRC32 crc = new CRC32();
+		ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+		long start = position + HEADER_SIZE;
+		long end = start + envelopeLength + length;
+		for (long p = start; p < end; p += buffer.limit()) {
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), end - p));
+			segment.read(buffer, p);
+			crc.update(buffer.array(), 0, buffer.limit());
+		}
+		ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+		segment.read(trailer, end);
+		trailer.flip();
+		return trailer.getLong() == crc.getValue();
+	}
+
+	private Segment openSegment(long seq) throws IOException {
+		Segment segment = new Segment(seq, new File(directory, SEGMENT_PREFIX + String.format("%019d", seq) + SEGMENT_SUFFIX));
+		synchronized (stateLock) {
+			segments.put(seq, segment);
+		}
+		return segment;
+	}
+
+	private static String getId(long segment, long offset) {
+		return segment + "-" + offset;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String enqueue(InputStream message, MessageEnvelope envelope) throws Exception {
+		byte[] envelopeBytes = encodeEnvelope(envelope);
+		byte[] data = null;
+		long length = envelope.getSize();
+		if (length < 0) {
+			data = IOUtils.toByteArray(message);
+			length = data.length;
+		}
+
+		Segment segment;
+		long offset;
+		long end;
+		synchronized (writeLock) {
+			segment = current;
+			if (segment == null)
+				throw new IOException("Segment spool is not active");
+			if (segment.written > 0 && segment.written + HEADER_SIZE + envelopeBytes.length + length + TRAILER_SIZE > segmentSize) {
+				segment = roll();
+			}
+			offset = segment.written;
+			// The record is counted before it's written, so the segment is not compacted under it
+			synchronized (stateLock) {
+				segment.live++;
+			}
+			try {
+				CRC32 crc = new CRC32();
+				crc.update(envelopeBytes);
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + envelopeBytes.length);
+				header.putInt(RECORD_MAGIC).putInt(envelopeBytes.length).putLong(length).put(envelopeBytes).flip();
+				segment.write(header, offset);
+				long position = offset + header.limit();
+				if (data != null) {
+					crc.update(data);
+					segment.write(ByteBuffer.wrap(data), position);
+					position += data.length;
+				} else {
+					position = copy(message, segment, position, length, crc);
+				}
+				ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+				trailer.putLong(crc.getValue()).flip();
+				segment.write(trailer, position);
+				end = position + TRAILER_SIZE;
+			} catch (IOException e) {
+				// The next record overwrites the partial record
+				synchronized (stateLock) {
+					segment.live--;
+				}
+				throw e;
+			}
+			segment.written = end;
+		}
+
+		// The concurrent enqueuers wait for the same fsync
+		segment.sync(end);
+
+		Entry entry = new Entry(segment.seq, offset, envelopeBytes.length, length, envelope);
+		synchronized (stateLock) {
+			add(entry, System.currentTimeMillis());
+		}
+		return entry.id;
+	}
+
+	private long copy(InputStream in, Segment segment, long position, long length, CRC32 crc) throws IOException {
+		byte[] buffer = new byte[64 * 1024];
+		long remaining = length;
+		while (remaining > 0) {
+			int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+			if (n < 0)
+				throw new IOException("Message is shorter than its size: " + length);
+			crc.update(buffer, 0, n);
+			segment.write(ByteBuffer.wrap(buffer, 0, n), position);
+			position += n;
+			remaining -= n;
+		}
+		if (in.read() >= 0)
+			throw new IOException("Message is longer than its size: " + length);
+		return position;
+	}
+
+	/**
+	 * Seal the current segment and start a new one. Called with the write lock.
+	 */
+	private Segment roll() throws IOException {
+		Segment segment = openSegment(current.seq + 1);
+		current.sealed = true;
+		current = segment;
+		return segment;
+	}
+
+	/**
+	 * Add a mail to the ready or the delayed queue. Called with the state lock.
+	 */
+	private void add(Entry entry, long now) {
+		entries.put(entry.id, entry);
+		if (entry.nextTry > now) {
+			delay(entry, entry.nextTry);
+		} else {
+			entry.ready = true;
+			ready.get(entry.getPriorityIndex()).add(entry);
+		}
+	}
+
+	private void delay(Entry entry, long nextTry) {
+		entry.ready = false;
+		entry.nextTry = nextTry;
+		delayed.add(new Delay(entry, nextTry));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public List<SpooledMail> claim(int max) throws Exception {
+		List<SpooledMail> mails = new ArrayList<SpooledMail>();
+		long now = System.currentTimeMillis();
+		synchronized (stateLock) {
+			// The due mails are moved to the ready queues
+			while (!delayed.isEmpty() && delayed.peek().time <= now) {
+				Delay delay = delayed.poll();
+				Entry entry = delay.entry;
+				if (entry.done || entry.ready || entry.nextTry != delay.time)
+					continue;
+				entry.ready = true;
+				ready.get(entry.getPriorityIndex()).add(entry);
+			}
+			for (ArrayDeque<Entry> queue : ready) {
+				while (mails.size() < max && !queue.isEmpty()) {
+					Entry entry = queue.poll();
+					// The entries claimed by id or acked are left in the queue
+					if (entry.done || !entry.ready)
+						continue;
+					delay(entry, now + claimTimeout);
+					mails.add(toSpooledMail(entry));
+				}
+			}
+		}
+		return mails;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public SpooledMail claim(String id) throws Exception {
+		synchronized (stateLock) {
+			Entry entry = entries.get(id);
+			long now = System.currentTimeMillis();
+			// A mail claimed by another delivery or waiting for its retry is not claimed
+			if (entry == null || entry.done || entry.nextTry > now)
+				return null;
+			delay(entry, now + claimTimeout);
+			return toSpooledMail(entry);
+		}
+	}
+
+	private SpooledMail toSpooledMail(Entry entry) {
+		return new SpooledMail(entry.id, entry.envelope, entry.retryCount, new RecordDataSource(entry));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void ack(String id) throws Exception {
+		finish(id, OP_ACK);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void nack(String id, long delay) throws Exception {
+		LogFile indexLog;
+		long end;
+		synchronized (indexLock) {
+			Entry entry;
+			synchronized (stateLock) {
+				entry = entries.get(id);
+			}
+			if (entry == null || index == null)
+				return;
+			long nextTry = System.currentTimeMillis() + delay;
+			indexLog = index;
+			end = appendIndex(OP_NACK, entry, nextTry, entry.retryCount + 1);
+			synchronized (stateLock) {
+				if (!entry.done) {
+					entry.retryCount++;
+					delay(entry, nextTry);
+				}
+			}
+		}
+		indexLog.sync(end);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void deadLetter(String id, String reason) throws Exception {
+		Entry entry;
+		synchronized (stateLock) {
+			entry = entries.get(id);
+		}
+		if (entry == null)
+			return;
+
+		// The message is kept as a file, so the segment can be compacted
+		InputStream in = new RecordDataSource(entry).getInputStream();
+		OutputStream out = new FileOutputStream(new File(deadLetterDirectory, id + ".eml"));
+		try {
+			IOUtils.copy(in, out);
+		} finally {
+			IOUtils.closeQuietly(out);
+			in.close();
+		}
+		out = new FileOutputStream(new File(deadLetterDirectory, id + ".txt"));
+		try {
+			out.write(String.valueOf(reason).getBytes("UTF-8"));
+		} finally {
+			IOUtils.closeQuietly(out);
+		}
+		finish(id, OP_DEAD);
+	}
+
+	/**
+	 * Remove a mail from the queue by an ack or dead letter entry of index.
+	 */
+	private void finish(String id, byte op) throws IOException {
+		LogFile indexLog;
+		long end;
+		synchronized (indexLock) {
+			Entry entry;
+			synchronized (stateLock) {
+				entry = entries.get(id);
+			}
+			if (entry == null || index == null)
+				return;
+			indexLog = index;
+			end = appendIndex(op, entry, 0, entry.retryCount);
+			synchronized (stateLock) {
+				if (entries.remove(id) != null) {
+					entry.done = true;
+					Segment segment = segments.get(entry.segment);
+					if (segment != null) {
+						segment.live--;
+						segment.done.add(entry.offset);
+					}
+				}
+			}
+		}
+		indexLog.sync(end);
+	}
+
+	/**
+	 * Append an entry to the index. Called with the index lock.
+	 * @return The end of entry
+	 */
+	private long appendIndex(byte op, Entry entry, long nextTry, long retryCount) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+		buffer.put(op).putLong(entry.segment).putLong(entry.offset).putLong(nextTry).putInt((int) retryCount).flip();
+		long position = index.written;
+		index.write(buffer, position);
+		index.written = position + INDEX_ENTRY_SIZE;
+		return index.written;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long count() throws Exception {
+		synchronized (stateLock) {
+			return entries.size();
+		}
+	}
+
+	/*
+	 * Delete the sealed segments without live records, rewrite the index if it's mostly obsolete.
+	 * 
+	 * @see java.lang.Runnable#run()
+	 */
+	public void run() {
+		try {
+			compact();
+		} catch (Exception e) {
+			log.error("Error on periodical spool compaction: ", e);
+		}
+	}
+
+	private void compact() throws IOException {
+		List<Segment> removable = new ArrayList<Segment>();
+		long indexEntries = 0;
+		synchronized (stateLock) {
+			for (Segment segment : segments.values()) {
+				if (segment.sealed && segment.live == 0) {
+					removable.add(segment);
+				} else {
+					indexEntries += segment.done.size();
+				}
+			}
+			for (Segment segment : removable) {
+				segments.remove(segment.seq);
+			}
+			indexEntries += entries.size();
+		}
+		for (Segment segment : removable) {
+			segment.close();
+			if (!segment.file.delete()) {
+				log.warn("Could not delete spool segment: " + segment.file);
+			}
+		}
+		if (!removable.isEmpty()) {
+			log.info("Deleted " + removable.size() + " acked spool segments");
+		}
+
+		LogFile indexLog = index;
+		if (indexLog != null && indexLog.written > 2 * indexEntries * INDEX_ENTRY_SIZE + INDEX_REWRITE_SLACK) {
+			rewriteIndex();
+		}
+	}
+
+	/**
+	 * Write a new index with the state of the records of the remaining segments and replace the old one.
+	 */
+	private void rewriteIndex() throws IOException {
+		synchronized (indexLock) {
+			if (index == null)
+				return;
+			File file = new File(directory, INDEX_FILE);
+			File tmp = new File(directory, INDEX_FILE + ".tmp");
+			tmp.delete();
+			LogFile next = new LogFile(tmp);
+			try {
+				ByteBuffer buffer = ByteBuffer.allocate(INDEX_ENTRY_SIZE * 1024);
+				long position = 0;
+				synchronized (stateLock) {
+					for (Segment segment : segments.values()) {
+						for (Long offset : segment.done) {
+							position = appendIndex(next, buffer, position, OP_ACK, segment.seq, offset, 0, 0);
+						}
+					}
+					for (Entry entry : entries.values()) {
+						if (entry.retryCount > 0) {
+							position = appendIndex(next, buffer, position, OP_NACK, entry.segment, entry.offset, entry.nextTry, entry.retryCount);
+						}
+					}
+				}
+				buffer.flip();
+				next.write(buffer, position);
+				next.written = position + buffer.limit();
+				next.sync(next.written);
+			} finally {
+				next.close();
+			}
+
+			index.sync(index.written);
+			index.close();
+			if (!tmp.renameTo(file)) {
+				throw new IOException("Could not replace spool index: " + file);
+			}
+			index = new LogFile(file);
+		}
+	}
+
+	private long appendIndex(LogFile indexLog, ByteBuffer buffer, long position, byte op, long segment, long offset, long nextTry, long retryCount) throws IOException {
+		if (buffer.remaining() < INDEX_ENTRY_SIZE) {
+			buffer.flip();
+			int length = buffer.limit();
+			indexLog.write(buffer, position);
+			position += length;
+			buffer.clear();
+		}
+		buffer.put(op).putLong(segment).putLong(offset).putLong(nextTry).putInt((int) retryCount);
+		return position;
+	}
+
+	private static byte[] encodeEnvelope(MessageEnvelope envelope) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeBoolean(envelope.getEnvelopeFrom() != null);
+		if (envelope.getEnvelopeFrom() != null)
+			out.writeUTF(envelope.getEnvelopeFrom());
+		String[] recipients = envelope.getRecipients();
+		out.writeInt(recipients.length);
+		for (String recipient : recipients) {
+			out.writeUTF(recipient);
+		}
+		out.writeLong(envelope.getSize());
+		out.writeLong(envelope.getPriority());
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private static MessageEnvelope decodeEnvelope(byte[] bytes) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+		String envelopeFrom = in.readBoolean() ? in.readUTF() : null;
+		String[] recipients = new String[in.readInt()];
+		for (int i = 0; i < recipients.length; i++) {
+			recipients[i] = in.readUTF();
+		}
+		return new MessageEnvelope(envelopeFrom, recipients, in.readLong(), in.readLong());
+	}
+
+	/**
+	 * Append-only file with group commit
+	 */
+	static class LogFile {
+		final File file;
+		final RandomAccessFile raf;
+		final FileChannel channel;
+		/**
+		 * The end of the completely written content, it's set after the write
+		 */
+		volatile long written;
+		private long synced;
+		/**
+		 * The number of forces, guarded by the sync lock
+		 */
+		private long syncs;
+		private final Object syncLock = new Object();
+
+		LogFile(File file) throws IOException {
+			this.file = file;
+			this.raf = new RandomAccessFile(file, "rw");
+			this.channel = raf.getChannel();
+			this.written = channel.size();
+			this.synced = written;
+		}
+
+		void write(ByteBuffer buffer, long position) throws IOException {
+			while (buffer.hasRemaining()) {
+				position += channel.write(buffer, position);
+			}
+		}
+
+		void read(ByteBuffer buffer, long position) throws IOException {
+			while (buffer.hasRemaining()) {
+				int n = channel.read(buffer, position);
+				if (n < 0)
+					throw new IOException("Unexpected end of " + file);
+				position += n;
+			}
+		}
+
+		void truncate(long size) throws IOException {
+			channel.truncate(size);
+			written = size;
+			synced = size;
+		}
+
+		/**
+		 * Wait until the content is durable up to the given position. The caller which finds no running sync
+		 * syncs everything written so far, the callers waiting meanwhile are usually covered by that sync.
+		 */
+		void sync(long end) throws IOException {
+			synchronized (syncLock) {
+				if (synced >= end)
+					return;
+				long target = written;
+				channel.force(false);
+				synced = target;
+				syncs++;
+			}
+		}
+
+		long getSyncs() {
+			synchronized (syncLock) {
+				return syncs;
+			}
+		}
+
+		void close() {
+			try {
+				raf.close();
+			} catch (IOException e) {
+				log.warn("Could not close " + file, e);
+			}
+		}
+	}
+
+	/**
+	 * Segment file. The live count and the done offsets are guarded by the state lock.
+	 */
+	private static class Segment extends LogFile {
+		final long seq;
+		int live;
+		final Set<Long> done = new HashSet<Long>();
+		volatile boolean sealed;
+		private MappedByteBuffer mapped;
+
+		Segment(long seq, File file) throws IOException {
+			super(file);
+			this.seq = seq;
+		}
+
+		/**
+		 * @return A stream of the content. Sealed segments are mapped once as a whole, the current segment
+		 * is read through the channel, it's not mapped while it grows.
+		 */
+		InputStream open(long position, long length) throws IOException {
+			if (!sealed) {
+				return new BufferedInputStream(new ChannelInputStream(this, position, length));
+			}
+			synchronized (this) {
+				if (mapped == null) {
+					mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, written);
+				}
+			}
+			ByteBuffer buffer = mapped.duplicate();
+			buffer.position((int) position);
+			buffer.limit((int) (position + length));
+			return new ByteBufferInputStream(buffer.slice());
+		}
+	}
+
+	/**
+	 * State of a mail in the queue. It's guarded by the state lock.
+	 */
+	private static class Entry {
+		final String id;
+		final long segment;
+		final long offset;
+		final long dataOffset;
+		final long length;
+		final MessageEnvelope envelope;
+		long retryCount;
+		long nextTry;
+		boolean ready;
+		boolean done;
+
+		Entry(long segment, long offset, int envelopeLength, long length, MessageEnvelope envelope) {
+			this.id = getId(segment, offset);
+			this.segment = segment;
+			this.offset = offset;
+			this.dataOffset = offset + HEADER_SIZE + envelopeLength;
+			this.length = length;
+			this.envelope = envelope;
+		}
+
+		int getPriorityIndex() {
+			return (int) Math.max(0, Math.min(PRIORITIES - 1, envelope.getPriority() - 1));
+		}
+	}
+
+	/**
+	 * Delayed mail in the delay queue. It's obsolete if the next try of the mail has changed since.
+	 */
+	private static class Delay implements Comparable<Delay> {
+		final Entry entry;
+		final long time;
+
+		Delay(Entry entry, long time) {
+			this.entry = entry;
+			this.time = time;
+		}
+
+		public int compareTo(Delay other) {
+			return time < other.time ? -1 : (time > other.time ? 1 : 0);
+		}
+	}
+
+	/**
+	 * Message of a record, read from the mapped segment
+	 */
+	private class RecordDataSource implements DataSource {
+		private final Entry entry;
+
+		RecordDataSource(Entry entry) {
+			this.entry = entry;
+		}
+
+		public InputStream getInputStream() throws IOException {
+			Segment segment;
+			synchronized (stateLock) {
+				segment = segments.get(entry.segment);
+			}
+			if (segment == null)
+				throw new IOException("Spool segment of mail is deleted: " + entry.id);
+			return segment.open(entry.dataOffset, entry.length);
+		}
+
+		public OutputStream getOutputStream() throws IOException {
+			throw new IOException("RecordDataSource does not support getOutputStream()");
+		}
+
+		public String getContentType() {
+			return "message/rfc822";
+		}
+
+		public String getName() {
+			return entry.id;
+		}
+	}
+
+	/**
+	 * Positional reads of a part of a file, the position of the channel is not used
+	 */
+	private static class ChannelInputStream extends InputStream {
+		private final LogFile file;
+		private long position;
+		private long remaining;
+
+		ChannelInputStream(LogFile file, long position, long length) {
+			this.file = file;
+			this.position = position;
+			this.remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining <= 0)
+				return -1;
+			int n = file.channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, remaining)), position);
+			if (n < 0)
+				throw new IOException("Unexpected end of " + file.file);
+			position += n;
+			remaining -= n;
+			return n;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(Integer.MAX_VALUE, remaining);
+		}
+	}
+
+	private static class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+
+		ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (!buffer.hasRemaining())
+				return -1;
+			len = Math.min(len, buffer.remaining());
+			buffer.get(b, off, len);
+			return len;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return buffer.remaining();
+		}
+	}
+}
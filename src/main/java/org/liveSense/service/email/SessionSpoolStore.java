@@ -0,0 +1,39 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.liveSense.service.email;
+
+import java.io.InputStream;
+
+import javax.jcr.Session;
+
+/**
+ * Spool store which can store the mails with a repository session. The mails enqueued with the session of
+ * the caller are saved with the other changes of the session, so the caller can save many mails at once,
+ * and the mails are not spooled if the changes of the caller are discarded.
+ */
+public interface SessionSpoolStore extends SpoolStore {
+
+	/**
+	 * Store a new mail with the given session. The mail is durable when the session is saved.
+	 * @param session - The session of the caller
+	 * @param message - The RFC822 message, it's not closed
+	 * @param envelope - The envelope of message
+	 * @return The identifier of mail
+	 * @throws Exception
+	 */
+	public String enqueue(Session session, InputStream message, MessageEnvelope envelope) throws Exception;
+}
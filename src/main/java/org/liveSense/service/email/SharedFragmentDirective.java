@@ -0,0 +1,87 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.liveSense.service.email;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import freemarker.core.Environment;
+import freemarker.template.TemplateDirectiveBody;
+import freemarker.template.TemplateDirectiveModel;
+import freemarker.template.TemplateException;
+import freemarker.template.TemplateModel;
+import freemarker.template.TemplateModelException;
+import freemarker.template.TemplateScalarModel;
+
+/**
+ * FreeMarker directive of fragments shared by every message of a bulk send. The body of the directive is
+ * rendered by the first message only, the other messages write the rendered fragment:
+ *
+ * <pre>
+ * Dear ${name},
+ * &lt;@shared key="articles"&gt;
+ *   &lt;#list articles as article&gt;...&lt;/#list&gt;
+ * &lt;/@shared&gt;
+ * </pre>
+ *
+ * where articles is a variable of the prepared email. The body must not use recipient specific variables.
+ * The directive is bound as "shared", one instance belongs to a bulk send of recipients. Single sends and
+ * bulk sends from queries (where the node differs for every message) get a new instance for every message,
+ * so the body is rendered every time.
+ */
+public class SharedFragmentDirective implements TemplateDirectiveModel {
+
+	public static final String NAME = "shared";
+
+	private static final String PARAM_KEY = "key";
+
+	private final ConcurrentHashMap<String, String> fragments = new ConcurrentHashMap<String, String>();
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	@SuppressWarnings("rawtypes")
+	public void execute(Environment env, Map params, TemplateModel[] loopVars, TemplateDirectiveBody body) throws TemplateException, IOException {
+		Object key = params.get(PARAM_KEY);
+		if (!(key instanceof TemplateScalarModel)) {
+			throw new TemplateModelException("The \"" + PARAM_KEY + "\" parameter of " + NAME + " directive is required");
+		}
+		if (body == null) return;
+
+		String name = ((TemplateScalarModel) key).getAsString();
+		String fragment = fragments.get(name);
+		if (fragment == null) {
+			StringWriter writer = new StringWriter();
+			body.render(writer);
+			fragment = writer.toString();
+			// Messages rendered in parallel can render it at the same time, the first one is kept
+			String previous = fragments.putIfAbsent(name, fragment);
+			if (previous != null) fragment = previous;
+		}
+		env.getOut().write(fragment);
+	}
+
+	/**
+	 * @return The number of rendered fragments
+	 */
+	public int size() {
+		return fragments.size();
+	}
+}
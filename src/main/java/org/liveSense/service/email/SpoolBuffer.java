@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.liveSense.service.email;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+import org.apache.commons.io.output.DeferredFileOutputStream;
+
+/**
+ * Output buffer of a message on its way to the spool. The content is kept in memory up to the threshold,
+ * above that it's written to a temporary file, so the heap used by a message is bounded by the threshold.
+ * The buffer has to be disposed after use to remove the temporary file.
+ */
+public class SpoolBuffer extends OutputStream {
+
+	private final File file;
+	private final DeferredFileOutputStream out;
+
+	/**
+	 * @param threshold - The number of bytes kept in memory
+	 */
+	public SpoolBuffer(int threshold) {
+		file = new File(System.getProperty("java.io.tmpdir"), "liveSense-mail-" + UUID.randomUUID().toString() + ".tmp");
+		out = new DeferredFileOutputStream(threshold, file);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		out.write(b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		out.write(b, off, len);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		out.close();
+	}
+
+	/**
+	 * @return The number of bytes written
+	 */
+	public long getSize() {
+		return out.getByteCount();
+	}
+
+	/**
+	 * Close the buffer and open the written content for reading.
+	 * @return The content of buffer
+	 * @throws IOException
+	 */
+	public InputStream getInputStream() throws IOException {
+		out.close();
+		if (out.isInMemory()) {
+			return new ByteArrayInputStream(out.getData());
+		}
+		return new FileInputStream(file);
+	}
+
+	/**
+	 * Remove the temporary file if the content was written to file.
+	 */
+	public void dispose() {
+		try {
+			out.close();
+		} catch (IOException e) {
+		}
+		if (file.exists()) {
+			file.delete();
+		}
+	}
+}
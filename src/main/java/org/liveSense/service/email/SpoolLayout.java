@@ -0,0 +1,223 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.liveSense.service.email;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.sling.jcr.api.SlingRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sharded layout of the spool folder. The mails are not direct children of the spool folder, they are stored in
+ * day and hash prefix buckets: <code>spoolFolder/yyyyMMdd/xx/name</code>, where xx is the first two characters of
+ * the (random UUID) mail node name. So a backed up spool spreads over 256 small parents a day instead of one huge
+ * child list, and the enqueue and delete of a mail updates only one small bucket.
+ *
+ * The buckets are created and saved in a separate session, so concurrent enqueues never conflict on them. The
+ * mails of an old flat spool can be moved to the buckets by {@link #migrate(Session, String, int)}, the empty buckets
+ * of past days are removed by {@link #prune(Session)}.
+ */
+public class SpoolLayout {
+
+	private static final Logger log = LoggerFactory.getLogger(SpoolLayout.class);
+
+	private final SlingRepository repository;
+	private final String spoolFolder;
+
+	// The existing buckets of the current day, the buckets of the past days (created by migration) are not remembered here
+	private final Set<String> knownBuckets = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private String knownBucketsDay;
+
+	/**
+	 * @param repository - The repository used to create the buckets
+	 * @param spoolFolder - The path of the spool folder, with or without leading and trailing slash
+	 */
+	public SpoolLayout(SlingRepository repository, String spoolFolder) {
+		this.repository = repository;
+		if (spoolFolder.startsWith("/"))
+			spoolFolder = spoolFolder.substring(1);
+		if (spoolFolder.endsWith("/"))
+			spoolFolder = spoolFolder.substring(0, spoolFolder.length() - 1);
+		this.spoolFolder = spoolFolder;
+	}
+
+	/**
+	 * @return The path of the spool folder relative to the root node, without leading and trailing slash
+	 */
+	public String getSpoolFolder() {
+		return spoolFolder;
+	}
+
+	/**
+	 * @param name - The name of the mail node
+	 * @param date - The date of the mail
+	 * @return The path of the bucket relative to the spool folder
+	 */
+	public static String getBucket(String name, Date date) {
+		String prefix = name.length() >= 2 ? name.substring(0, 2) : "__";
+		return getDay(date) + "/" + prefix.toLowerCase();
+	}
+
+	private static String getDay(Date date) {
+		// SimpleDateFormat is not thread safe, a new instance is cheaper than synchronization here
+		return new SimpleDateFormat("yyyyMMdd").format(date);
+	}
+
+	/**
+	 * Get the bucket of a new mail. The bucket is created if it does not exist.
+	 * @param session - The session of the mail
+	 * @param name - The name of the mail node
+	 * @return The bucket node in the session
+	 * @throws RepositoryException
+	 */
+	public Node getBucketNode(Session session, String name) throws RepositoryException {
+		Date date = new Date();
+		String day = getDay(date);
+		String bucket = spoolFolder + "/" + getBucket(name, date);
+		if (!knownBuckets.contains(bucket)) {
+			synchronized (this) {
+				// Only the buckets of the current day are remembered
+				if (!day.equals(knownBucketsDay)) {
+					knownBuckets.clear();
+					knownBucketsDay = day;
+				}
+				if (!knownBuckets.contains(bucket)) {
+					createBucket(bucket);
+					knownBuckets.add(bucket);
+				}
+			}
+		}
+		return session.getRootNode().getNode(bucket);
+	}
+
+	private void createBucket(String bucket) throws RepositoryException {
+		Session admin = repository.loginAdministrative(null);
+		try {
+			Node n = admin.getRootNode().getNode(spoolFolder);
+			for (String name : bucket.substring(spoolFolder.length() + 1).split("/")) {
+				n = n.hasNode(name) ? n.getNode(name) : n.addNode(name);
+			}
+			try {
+				admin.save();
+			} catch (RepositoryException e) {
+				// Another cluster node may have created the bucket in the meantime
+				admin.refresh(false);
+				if (!admin.nodeExists("/" + bucket))
+					throw e;
+			}
+		} finally {
+			admin.logout();
+		}
+	}
+
+	/**
+	 * Move the mails stored directly under the spool folder (the flat layout) into the buckets. The moved mails
+	 * get a nextTry property if they have not, so the periodical retry sends them. The session is saved after every
+	 * batch of moves.
+	 * @param session - The session used to move the mails
+	 * @param nodeType - The node type of mails
+	 * @param limit - The maximum number of mails moved
+	 * @return The number of moved mails
+	 * @throws RepositoryException
+	 */
+	public int migrate(Session session, String nodeType, int limit) throws RepositoryException {
+		// The mails are collected first, the child list of folder is not iterated while it's changed
+		List<Node> mails = new ArrayList<Node>();
+		NodeIterator iter = session.getRootNode().getNode(spoolFolder).getNodes();
+		while (iter.hasNext() && mails.size() < limit) {
+			Node mail = iter.nextNode();
+			if (mail.isNodeType(nodeType))
+				mails.add(mail);
+		}
+
+		// The buckets of the past days are remembered for this migration only
+		Set<String> buckets = new HashSet<String>();
+		int moved = 0;
+		for (Node mail : mails) {
+			Date date = new Date();
+			if (mail.hasProperty("jcr:content/jcr:lastModified")) {
+				date = mail.getProperty("jcr:content/jcr:lastModified").getDate().getTime();
+			}
+			if (!mail.hasProperty("nextTry")) {
+				mail.setProperty("nextTry", System.currentTimeMillis());
+			}
+			String bucketPath = spoolFolder + "/" + getBucket(mail.getName(), date);
+			if (!buckets.contains(bucketPath)) {
+				createBucket(bucketPath);
+				buckets.add(bucketPath);
+			}
+			Node bucket = session.getRootNode().getNode(bucketPath);
+			session.move(mail.getPath(), bucket.getPath() + "/" + mail.getName());
+			moved++;
+			if (moved % 100 == 0) {
+				session.save();
+			}
+		}
+		session.save();
+		if (moved > 0) {
+			log.info("Moved " + moved + " mails of flat spool folder to buckets: /" + spoolFolder);
+		}
+		return moved;
+	}
+
+	/**
+	 * Remove the empty buckets of the past days.
+	 * @param session - The session used to remove the buckets
+	 * @return The number of removed buckets
+	 * @throws RepositoryException
+	 */
+	public int prune(Session session) throws RepositoryException {
+		String today = getDay(Calendar.getInstance().getTime());
+		Node folder = session.getRootNode().getNode(spoolFolder);
+		int removed = 0;
+		NodeIterator days = folder.getNodes();
+		while (days.hasNext()) {
+			Node day = days.nextNode();
+			// Only the day buckets, the mails of a flat spool and other nodes are kept
+			if (!day.getName().matches("[0-9]{8}") || day.getName().compareTo(today) >= 0)
+				continue;
+			NodeIterator buckets = day.getNodes();
+			while (buckets.hasNext()) {
+				Node bucket = buckets.nextNode();
+				if (!bucket.hasNodes()) {
+					bucket.remove();
+					removed++;
+				}
+			}
+			if (!day.hasNodes()) {
+				day.remove();
+				removed++;
+			}
+		}
+		session.save();
+		return removed;
+	}
+}
@@ -0,0 +1,93 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.liveSense.service.email;
+
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * Storage of the mail queue. The composition (EmailService) enqueues the rendered messages, the delivery
+ * (EmailSendJobEventHandler) claims the due mails and acknowledges them when they are sent, or asks them
+ * again later with a delay. The store is selected by the {@link #STORE_NAME} service property, the users
+ * reference it with a configurable target filter, so a store can be replaced by OSGi configuration.
+ *
+ * The identifiers of mails are opaque strings of the store. A store which can write with the repository
+ * session of the caller implements {@link SessionSpoolStore}.
+ */
+public interface SpoolStore {
+
+	/**
+	 * Service property of the store name
+	 */
+	public static final String STORE_NAME = "spool.store.name";
+
+	/**
+	 * Store a new mail. The mail is durable when the method returns.
+	 * @param message - The RFC822 message, it's not closed
+	 * @param envelope - The envelope of message
+	 * @return The identifier of mail
+	 * @throws Exception
+	 */
+	public String enqueue(InputStream message, MessageEnvelope envelope) throws Exception;
+
+	/**
+	 * Claim the due mails. A claimed mail is not returned by other claims until its claim expires,
+	 * so it has to be acknowledged, nacked or dead lettered after the delivery.
+	 * @param max - The maximum number of mails
+	 * @return The claimed mails in the order of priority
+	 * @throws Exception
+	 */
+	public List<SpooledMail> claim(int max) throws Exception;
+
+	/**
+	 * Claim a mail by its identifier, typically after the store notified its arrival.
+	 * @param id - The identifier of mail
+	 * @return The mail or null if it does not exist, it's claimed or it's not due yet
+	 * @throws Exception
+	 */
+	public SpooledMail claim(String id) throws Exception;
+
+	/**
+	 * Remove a delivered mail. Nothing happens if the mail does not exist.
+	 * @param id - The identifier of mail
+	 * @throws Exception
+	 */
+	public void ack(String id) throws Exception;
+
+	/**
+	 * Release a mail which could not be delivered. The retry count of the mail is increased,
+	 * it's due again after the delay.
+	 * @param id - The identifier of mail
+	 * @param delay - The delay of the next try in milliseconds
+	 * @throws Exception
+	 */
+	public void nack(String id, long delay) throws Exception;
+
+	/**
+	 * Move a mail which can not be delivered out of the queue. It's not claimed anymore.
+	 * @param id - The identifier of mail
+	 * @param reason - The reason of failure
+	 * @throws Exception
+	 */
+	public void deadLetter(String id, String reason) throws Exception;
+
+	/**
+	 * @return The number of mails in the queue, the dead letters are not counted
+	 * @throws Exception
+	 */
+	public long count() throws Exception;
+}
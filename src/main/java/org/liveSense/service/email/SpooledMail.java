@@ -0,0 +1,59 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.liveSense.service.email;
+
+import javax.activation.DataSource;
+
+/**
+ * A mail claimed from the {@link SpoolStore}.
+ */
+public class SpooledMail {
+
+	private final String id;
+	private final MessageEnvelope envelope;
+	private final long retryCount;
+	private final DataSource content;
+
+	/**
+	 * @param id - The identifier of mail in the store
+	 * @param envelope - The envelope of mail
+	 * @param retryCount - The number of failed deliveries
+	 * @param content - The RFC822 message, every getInputStream() returns it from the beginning
+	 */
+	public SpooledMail(String id, MessageEnvelope envelope, long retryCount, DataSource content) {
+		this.id = id;
+		this.envelope = envelope;
+		this.retryCount = retryCount;
+		this.content = content;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public MessageEnvelope getEnvelope() {
+		return envelope;
+	}
+
+	public long getRetryCount() {
+		return retryCount;
+	}
+
+	public DataSource getContent() {
+		return content;
+	}
+}
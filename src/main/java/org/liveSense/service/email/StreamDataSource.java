@@ -7,12 +7,15 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.IOException;
 
+import org.apache.commons.io.IOUtils;
+
 /**
  * StreamDataSource represents implementation of DataSource interfaces, and as
  * result of that, objects of this class could be used within MimeBodyPart
  * objects to help them to read data from objects which they conveys. This class
  * is designed to help in getting data from objects of type InputStream and all
- * its subclasses.
+ * its subclasses. The whole content is read in memory, use {@link BinaryDataSource}
+ * for repository binaries.
  */
 public class StreamDataSource implements DataSource {
 
@@ -43,17 +46,11 @@ public class StreamDataSource implements DataSource {
 	 */
 	public StreamDataSource(InputStream in0, String fileName0, String contentType) throws IOException {
 
-		String sAtach = new String();
-
-		byte[] b = new byte[100000];
-		int a = in0.read(b);
-		while (a == 100000) {
-			sAtach = sAtach.concat(new String(b, "ISO-8859-1"));
-			a = in0.read(b);
+		try {
+			att = IOUtils.toByteArray(in0);
+		} finally {
+			in0.close();
 		}
-		in0.close();
-		sAtach = sAtach.concat(new String(b, "ISO-8859-1").substring(0, a));
-		att = sAtach.getBytes("ISO-8859-1");
 
 		this.contentType = contentType;
 		if (fileName0 != null) {
@@ -0,0 +1,400 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.liveSense.service.email;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Fast HTML to text converter. The HTML is tokenized in one pass without building a DOM, so the conversion
+ * is linear in the size of the source and it does not drop any visible content.
+ * The text of the links are followed by the link target (<code>text &lt;url&gt;</code>), list items are
+ * rendered as bullets or numbers, block elements and line breaks are kept as new lines.
+ * The content of script, style and head elements is skipped.
+ */
+public class TokenizingHtmlToTextConverter implements HtmlToTextConverter {
+
+	public static final String NAME = "tokenizer";
+
+	private static final Set<String> SKIPPED = new HashSet<String>(Arrays.asList(
+			"head", "title", "script", "style", "noscript", "template", "object", "applet"));
+
+	private static final Set<String> BLOCKS = new HashSet<String>(Arrays.asList(
+			"div", "table", "tr", "section", "article", "header", "footer", "nav", "aside", "main", "form",
+			"fieldset", "address", "center", "figure", "figcaption", "dt", "dd", "caption", "tbody", "thead", "tfoot"));
+
+	/**
+	 * Blocks separated by an empty line
+	 */
+	private static final Set<String> PARAGRAPHS = new HashSet<String>(Arrays.asList(
+			"p", "h1", "h2", "h3", "h4", "h5", "h6", "blockquote", "pre", "dl"));
+
+	private static final String[] LATIN1_ENTITIES = {
+			"Agrave", "Aacute", "Acirc", "Atilde", "Auml", "Aring", "AElig", "Ccedil",
+			"Egrave", "Eacute", "Ecirc", "Euml", "Igrave", "Iacute", "Icirc", "Iuml",
+			"ETH", "Ntilde", "Ograve", "Oacute", "Ocirc", "Otilde", "Ouml", "times",
+			"Oslash", "Ugrave", "Uacute", "Ucirc", "Uuml", "Yacute", "THORN", "szlig",
+			"agrave", "aacute", "acirc", "atilde", "auml", "aring", "aelig", "ccedil",
+			"egrave", "eacute", "ecirc", "euml", "igrave", "iacute", "icirc", "iuml",
+			"eth", "ntilde", "ograve", "oacute", "ocirc", "otilde", "ouml", "divide",
+			"oslash", "ugrave", "uacute", "ucirc", "uuml", "yacute", "thorn", "yuml" };
+
+	private static final Map<String, String> ENTITIES = new HashMap<String, String>();
+
+	static {
+		for (int i = 0; i < LATIN1_ENTITIES.length; i++) {
+			ENTITIES.put(LATIN1_ENTITIES[i], String.valueOf((char) (0xC0 + i)));
+		}
+		String[][] entities = {
+				{ "amp", "&" }, { "lt", "<" }, { "gt", ">" }, { "quot", "\"" }, { "apos", "'" }, { "nbsp", " " },
+				{ "shy", "" }, { "copy", "\u00A9" }, { "reg", "\u00AE" }, { "trade", "\u2122" }, { "hellip", "\u2026" },
+				{ "mdash", "\u2014" }, { "ndash", "\u2013" }, { "lsquo", "\u2018" }, { "rsquo", "\u2019" },
+				{ "sbquo", "\u201A" }, { "ldquo", "\u201C" }, { "rdquo", "\u201D" }, { "bdquo", "\u201E" },
+				{ "laquo", "\u00AB" }, { "raquo", "\u00BB" }, { "bull", "\u2022" }, { "middot", "\u00B7" },
+				{ "euro", "\u20AC" }, { "pound", "\u00A3" }, { "yen", "\u00A5" }, { "cent", "\u00A2" },
+				{ "sect", "\u00A7" }, { "deg", "\u00B0" }, { "plusmn", "\u00B1" }, { "para", "\u00B6" },
+				{ "iexcl", "\u00A1" }, { "iquest", "\u00BF" }, { "Odblac", "\u0150" }, { "odblac", "\u0151" },
+				{ "Udblac", "\u0170" }, { "udblac", "\u0171" } };
+		for (String[] entity : entities) {
+			ENTITIES.put(entity[0], entity[1]);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String convert(String html) {
+		if (html == null) return null;
+		return new Conversion(html).run();
+	}
+
+	/**
+	 * Decode the character references of HTML text. Unknown references are kept as is.
+	 */
+	static String decodeEntities(String s) {
+		int amp = s.indexOf('&');
+		if (amp < 0) return s;
+
+		StringBuilder sb = new StringBuilder(s.length());
+		int pos = 0;
+		while (amp >= 0) {
+			sb.append(s, pos, amp);
+			int semicolon = s.indexOf(';', amp);
+			String decoded = null;
+			if (semicolon > amp + 1 && semicolon - amp <= 10) {
+				String name = s.substring(amp + 1, semicolon);
+				if (name.charAt(0) == '#') {
+					try {
+						int codePoint = name.length() > 1 && (name.charAt(1) == 'x' || name.charAt(1) == 'X')
+								? Integer.parseInt(name.substring(2), 16) : Integer.parseInt(name.substring(1));
+						if (codePoint == 0xA0) {
+							decoded = " ";
+						} else if (codePoint > 0 && codePoint <= Character.MAX_CODE_POINT) {
+							decoded = new String(Character.toChars(codePoint));
+						}
+					} catch (NumberFormatException e) {
+					}
+				} else {
+					decoded = ENTITIES.get(name);
+				}
+			}
+			if (decoded != null) {
+				sb.append(decoded);
+				pos = semicolon + 1;
+			} else {
+				sb.append('&');
+				pos = amp + 1;
+			}
+			amp = s.indexOf('&', pos);
+		}
+		sb.append(s, pos, s.length());
+		return sb.toString();
+	}
+
+	/**
+	 * State of one conversion.
+	 */
+	private static class Conversion {
+		private final String html;
+		private final StringBuilder out;
+		private int pos = 0;
+
+		private int pendingBreaks = 0;
+		private boolean pendingSpace = false;
+		private int preDepth = 0;
+
+		/**
+		 * Counters of the open lists, -1 for unordered lists
+		 */
+		private final LinkedList<int[]> lists = new LinkedList<int[]>();
+
+		private String href;
+		private int linkStart;
+
+		Conversion(String html) {
+			this.html = html;
+			this.out = new StringBuilder(html.length() / 2);
+		}
+
+		String run() {
+			int length = html.length();
+			while (pos < length) {
+				int lt = html.indexOf('<', pos);
+				if (lt < 0) lt = length;
+				if (lt > pos) {
+					text(decodeEntities(html.substring(pos, lt)));
+				}
+				pos = lt;
+				if (pos < length) {
+					tag();
+				}
+			}
+			return out.toString().trim();
+		}
+
+		private void tag() {
+			int length = html.length();
+			if (html.startsWith("<!--", pos)) {
+				int end = html.indexOf("-->", pos + 4);
+				pos = end < 0 ? length : end + 3;
+				return;
+			}
+			char next = pos + 1 < length ? html.charAt(pos + 1) : ' ';
+			if (next == '!' || next == '?') {
+				int end = html.indexOf('>', pos);
+				pos = end < 0 ? length : end + 1;
+				return;
+			}
+			boolean endTag = next == '/';
+			int i = endTag ? pos + 2 : pos + 1;
+			if (i >= length || !Character.isLetter(html.charAt(i))) {
+				// Not a tag, a single '<' character
+				text("<");
+				pos++;
+				return;
+			}
+
+			int nameStart = i;
+			while (i < length && Character.isLetterOrDigit(html.charAt(i))) i++;
+			String name = html.substring(nameStart, i).toLowerCase();
+
+			Map<String, String> attributes = null;
+			boolean selfClosing = false;
+			while (i < length && html.charAt(i) != '>') {
+				char c = html.charAt(i);
+				if (c == '/') {
+					selfClosing = true;
+					i++;
+				} else if (Character.isWhitespace(c)) {
+					i++;
+				} else {
+					selfClosing = false;
+					int attrStart = i;
+					while (i < length && "=>/".indexOf(html.charAt(i)) < 0 && !Character.isWhitespace(html.charAt(i))) i++;
+					String attrName = html.substring(attrStart, i).toLowerCase();
+					while (i < length && Character.isWhitespace(html.charAt(i))) i++;
+					String value = "";
+					if (i < length && html.charAt(i) == '=') {
+						i++;
+						while (i < length && Character.isWhitespace(html.charAt(i))) i++;
+						if (i < length && (html.charAt(i) == '"' || html.charAt(i) == '\'')) {
+							char quote = html.charAt(i);
+							int end = html.indexOf(quote, i + 1);
+							if (end < 0) end = length;
+							value = html.substring(i + 1, end);
+							i = Math.min(end + 1, length);
+						} else {
+							int valueStart = i;
+							while (i < length && html.charAt(i) != '>' && !Character.isWhitespace(html.charAt(i))) i++;
+							value = html.substring(valueStart, i);
+						}
+					}
+					if (attributes == null) attributes = new HashMap<String, String>();
+					attributes.put(attrName, decodeEntities(value));
+				}
+			}
+			pos = Math.min(i + 1, length);
+
+			if (endTag) {
+				endElement(name);
+			} else if (SKIPPED.contains(name)) {
+				if (!selfClosing) skipElement(name);
+			} else {
+				startElement(name, attributes);
+			}
+		}
+
+		/**
+		 * Skip the content of element up to its end tag.
+		 */
+		private void skipElement(String name) {
+			int end = html.indexOf("</", pos);
+			while (end >= 0 && !html.regionMatches(true, end + 2, name, 0, name.length())) {
+				end = html.indexOf("</", end + 2);
+			}
+			if (end < 0) {
+				pos = html.length();
+			} else {
+				int gt = html.indexOf('>', end);
+				pos = gt < 0 ? html.length() : gt + 1;
+			}
+		}
+
+		private void startElement(String name, Map<String, String> attributes) {
+			if (name.equals("br")) {
+				newLine();
+			} else if (name.equals("li")) {
+				breakLine(1);
+				StringBuilder bullet = new StringBuilder();
+				for (int i = 1; i < lists.size(); i++) {
+					bullet.append("  ");
+				}
+				int[] counter = lists.isEmpty() ? null : lists.getLast();
+				if (counter != null && counter[0] >= 0) {
+					bullet.append(++counter[0]).append(". ");
+				} else {
+					bullet.append("* ");
+				}
+				emit(bullet.toString());
+			} else if (name.equals("ul") || name.equals("ol")) {
+				breakLine(lists.isEmpty() ? 2 : 1);
+				lists.add(new int[] { name.equals("ol") ? 0 : -1 });
+			} else if (name.equals("hr")) {
+				breakLine(1);
+				emit("----");
+				breakLine(1);
+			} else if (name.equals("td") || name.equals("th")) {
+				pendingSpace = true;
+			} else if (name.equals("a")) {
+				href = attributes != null ? attributes.get("href") : null;
+				linkStart = out.length();
+			} else if (name.equals("img")) {
+				String alt = attributes != null ? attributes.get("alt") : null;
+				if (alt != null && alt.trim().length() > 0) {
+					pendingSpace = true;
+					text(alt);
+					pendingSpace = true;
+				}
+			} else if (name.equals("pre")) {
+				breakLine(2);
+				preDepth++;
+			} else if (PARAGRAPHS.contains(name)) {
+				breakLine(2);
+			} else if (BLOCKS.contains(name)) {
+				breakLine(1);
+			}
+		}
+
+		private void endElement(String name) {
+			if (name.equals("ul") || name.equals("ol")) {
+				if (!lists.isEmpty()) lists.removeLast();
+				breakLine(lists.isEmpty() ? 2 : 1);
+			} else if (name.equals("li")) {
+				breakLine(1);
+			} else if (name.equals("a")) {
+				endLink();
+			} else if (name.equals("pre")) {
+				if (preDepth > 0) preDepth--;
+				breakLine(2);
+			} else if (PARAGRAPHS.contains(name)) {
+				breakLine(2);
+			} else if (BLOCKS.contains(name)) {
+				breakLine(1);
+			}
+		}
+
+		private void endLink() {
+			String target = href;
+			href = null;
+			if (target == null) return;
+			target = target.trim();
+			if (target.length() == 0 || target.startsWith("#") || target.toLowerCase().startsWith("javascript:")) return;
+			if (target.toLowerCase().startsWith("mailto:")) target = target.substring(7);
+
+			String text = linkStart <= out.length() ? out.substring(linkStart).trim() : "";
+			if (text.equals(target) || text.equals(target + "/") || (text + "/").equals(target)) return;
+			pendingSpace = text.length() > 0 || pendingSpace;
+			emit("<" + target + ">");
+		}
+
+		private void text(String text) {
+			if (preDepth > 0) {
+				flush();
+				out.append(text.replace("\r\n", "\n"));
+				return;
+			}
+			for (int i = 0; i < text.length(); i++) {
+				char c = text.charAt(i);
+				if (Character.isWhitespace(c)) {
+					pendingSpace = true;
+				} else {
+					flush();
+					out.append(c);
+				}
+			}
+		}
+
+		/**
+		 * Append text after the pending separators.
+		 */
+		private void emit(String text) {
+			flush();
+			out.append(text);
+		}
+
+		private void breakLine(int lines) {
+			pendingBreaks = Math.max(pendingBreaks, lines);
+			pendingSpace = false;
+		}
+
+		private void newLine() {
+			flush();
+			trimTrailingSpaces();
+			out.append('\n');
+			pendingSpace = false;
+		}
+
+		private void flush() {
+			if (out.length() == 0) {
+				pendingBreaks = 0;
+				pendingSpace = false;
+				return;
+			}
+			if (pendingBreaks > 0) {
+				trimTrailingSpaces();
+				int trailing = 0;
+				for (int i = out.length() - 1; i >= 0 && out.charAt(i) == '\n'; i--) trailing++;
+				for (int i = trailing; i < pendingBreaks; i++) out.append('\n');
+			} else if (pendingSpace && !Character.isWhitespace(out.charAt(out.length() - 1))) {
+				out.append(' ');
+			}
+			pendingBreaks = 0;
+			pendingSpace = false;
+		}
+
+		private void trimTrailingSpaces() {
+			int end = out.length();
+			while (end > 0 && out.charAt(end - 1) != '\n' && Character.isWhitespace(out.charAt(end - 1))) end--;
+			out.setLength(end);
+		}
+	}
+}
@@ -0,0 +1,162 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.liveSense.service.email;
+
+import java.io.UnsupportedEncodingException;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimePart;
+import javax.mail.internet.MimeUtility;
+
+/**
+ * Selects the Content-Transfer-Encoding of text parts and the RFC 2047 encoding of header texts
+ * in one pass over the content. When the encoding is set on the part JavaMail does not scan the content again.
+ */
+public class TransferEncodingSelector {
+
+	public static final String ENCODING_7BIT = "7bit";
+	public static final String ENCODING_8BIT = "8bit";
+	public static final String ENCODING_QUOTED_PRINTABLE = "quoted-printable";
+	public static final String ENCODING_BASE64 = "base64";
+
+	/**
+	 * RFC 5322 line length limit without CRLF
+	 */
+	private static final int MAX_LINE_LENGTH = 998;
+
+	private TransferEncodingSelector() {
+	}
+
+	/**
+	 * Select the transfer encoding of text content.
+	 * <ul>
+	 * <li>7bit if the content is ASCII text without NUL, bare CR and long lines,</li>
+	 * <li>8bit if 8bit is allowed (the relay supports 8BITMIME) and there are no NUL, bare CR or long lines,</li>
+	 * <li>otherwise quoted-printable or base64, the one which gives smaller result.</li>
+	 * </ul>
+	 * @param content - The text content
+	 * @param charset - The charset the content is written with
+	 * @param allow8bit - 8bit encoding is allowed
+	 * @return The transfer encoding
+	 */
+	public static String selectEncoding(String content, String charset, boolean allow8bit) {
+		boolean utf8 = "UTF-8".equalsIgnoreCase(charset) || "UTF8".equalsIgnoreCase(charset);
+		boolean singleByte = !utf8 && charset != null
+				&& (charset.toUpperCase().startsWith("ISO-8859") || charset.toUpperCase().startsWith("WINDOWS-") || charset.equalsIgnoreCase("US-ASCII"));
+
+		long asciiBytes = 0;
+		long nonAsciiBytes = 0;
+		// ASCII characters escaped by quoted-printable, only for the size estimate
+		long escapedBytes = 0;
+		int lineLength = 0;
+		boolean longLine = false;
+		boolean illegal8bit = false;
+
+		int length = content.length();
+		for (int i = 0; i < length; i++) {
+			char c = content.charAt(i);
+			if (c == '\n') {
+				asciiBytes++;
+				lineLength = 0;
+				continue;
+			}
+			if (c == '\r') {
+				asciiBytes++;
+				if (i + 1 < length && content.charAt(i + 1) == '\n') continue;
+				illegal8bit = true;
+				escapedBytes++;
+				continue;
+			}
+			if (++lineLength > MAX_LINE_LENGTH) longLine = true;
+
+			if (c < 0x80) {
+				asciiBytes++;
+				if (c == 0) {
+					illegal8bit = true;
+					escapedBytes++;
+				} else if ((c < 0x20 && c != '\t') || c == 0x7f || c == '=') {
+					escapedBytes++;
+				}
+			} else if (utf8) {
+				if (c < 0x800) {
+					nonAsciiBytes += 2;
+				} else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(content.charAt(i + 1))) {
+					nonAsciiBytes += 4;
+					i++;
+				} else {
+					nonAsciiBytes += 3;
+				}
+			} else {
+				nonAsciiBytes += singleByte ? 1 : 2;
+			}
+		}
+
+		if (nonAsciiBytes == 0 && !illegal8bit && !longLine) {
+			return ENCODING_7BIT;
+		}
+		if (allow8bit && !illegal8bit && !longLine) {
+			return ENCODING_8BIT;
+		}
+		long quotedPrintableSize = asciiBytes + 2 * escapedBytes + 3 * nonAsciiBytes;
+		long base64Size = (asciiBytes + nonAsciiBytes + 2) / 3 * 4;
+		return quotedPrintableSize <= base64Size ? ENCODING_QUOTED_PRINTABLE : ENCODING_BASE64;
+	}
+
+	/**
+	 * Set the text content of the part with the selected transfer encoding.
+	 */
+	public static void setText(MimePart part, String text, String charset, boolean allow8bit) throws MessagingException {
+		part.setText(text, charset);
+		part.setHeader("Content-Transfer-Encoding", selectEncoding(text, charset, allow8bit));
+	}
+
+	/**
+	 * Set the HTML content of the part with the selected transfer encoding.
+	 */
+	public static void setHtml(MimePart part, String html, String charset, boolean allow8bit) throws MessagingException {
+		part.setContent(html, "text/html;charset=" + charset);
+		part.setHeader("Content-Transfer-Encoding", selectEncoding(html, charset, allow8bit));
+	}
+
+	/**
+	 * @return true if the text contains only ASCII characters
+	 */
+	public static boolean isAscii(String text) {
+		for (int i = 0; i < text.length(); i++) {
+			if (text.charAt(i) >= 0x80) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Encode unstructured header text by RFC 2047. ASCII text is returned as is, otherwise the
+	 * Q encoding is used for mostly ASCII text and B encoding for the others.
+	 * @param text - The header text
+	 * @param charset - The charset of encoded words
+	 * @return The encoded text
+	 * @throws UnsupportedEncodingException
+	 */
+	public static String encodeHeader(String text, String charset) throws UnsupportedEncodingException {
+		if (text == null) return null;
+		int nonAscii = 0;
+		for (int i = 0; i < text.length(); i++) {
+			if (text.charAt(i) >= 0x80) nonAscii++;
+		}
+		if (nonAscii == 0) return text;
+		return MimeUtility.encodeText(text, charset, nonAscii * 3 <= text.length() ? "Q" : "B");
+	}
+}
@@ -0,0 +1,53 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.liveSense.template.freemarker.wrapper;
+
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+
+import freemarker.template.TemplateBooleanModel;
+import freemarker.template.TemplateModelException;
+
+/**
+ * A wrapper for JCR BOOLEAN properties to support freemarker scripting.
+ */
+public class BooleanPropertyModel extends PropertyModel implements TemplateBooleanModel {
+
+    private Boolean bool;
+
+    public BooleanPropertyModel(Property property) {
+        super(property);
+    }
+
+    public BooleanPropertyModel(Value value) {
+        super(value);
+    }
+
+    /**
+     * @return the boolean value of this model.
+     */
+    public boolean getAsBoolean() throws TemplateModelException {
+        if (bool != null) return bool.booleanValue();
+        try {
+            bool = Boolean.valueOf(getValue().getBoolean());
+            return bool.booleanValue();
+        } catch (RepositoryException e) {
+            throw new TemplateModelException(e);
+        }
+    }
+}
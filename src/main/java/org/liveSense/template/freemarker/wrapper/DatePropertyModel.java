@@ -0,0 +1,65 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.liveSense.template.freemarker.wrapper;
+
+import java.util.Date;
+
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+
+import freemarker.template.TemplateDateModel;
+import freemarker.template.TemplateModelException;
+
+/**
+ * A wrapper for JCR DATE properties to support freemarker scripting.
+ * The value is read as a date, so there is no need for <code>?date</code>.
+ */
+public class DatePropertyModel extends PropertyModel implements TemplateDateModel {
+
+    private Date date;
+
+    public DatePropertyModel(Property property) {
+        super(property);
+    }
+
+    public DatePropertyModel(Value value) {
+        super(value);
+    }
+
+    /**
+     * Returns the date value. The return value must not be null.
+     * @return the {@link Date} instance associated with this date model.
+     */
+    public Date getAsDate() throws TemplateModelException {
+        if (date != null) return date;
+        try {
+            date = getValue().getDate().getTime();
+            return date;
+        } catch (RepositoryException e) {
+            throw new TemplateModelException(e);
+        }
+    }
+
+    /**
+     * JCR dates have both date and time part.
+     * @return {@link #DATETIME}
+     */
+    public int getDateType() {
+        return DATETIME;
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.liveSense.template.freemarker.wrapper;
+
+import freemarker.template.ObjectWrapper;
+import freemarker.template.TemplateModel;
+import freemarker.template.TemplateModelException;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Object wrapper for JCR nodes and properties. The models are memoised by item path,
+ * so an item is wrapped only once however many times the template reads it.
+ * An instance belongs to one <code>Template.process</code> call and it is not thread safe.
+ * Only the items reached through {@link #wrapNode} and {@link #wrapProperty} get JCR models,
+ * the template variables (nodes included) are wrapped by the default object wrapper as before,
+ * so the bean access of existing templates (<code>${n.path}</code>) keeps working.
+ */
+public class JcrObjectWrapper implements ObjectWrapper {
+
+    private final ObjectWrapper defaultWrapper;
+
+    private final Map<String, NodeModel> nodeModels = new HashMap<String, NodeModel>();
+    private final Map<String, TemplateModel> propertyModels = new HashMap<String, TemplateModel>();
+    private final Map<String, TemplateModel> typedPropertyModels = new HashMap<String, TemplateModel>();
+    private final Map<String, Node> nodesByIdentifier = new HashMap<String, Node>();
+
+    public JcrObjectWrapper() {
+        this(ObjectWrapper.DEFAULT_WRAPPER);
+    }
+
+    public JcrObjectWrapper(ObjectWrapper defaultWrapper) {
+        this.defaultWrapper = defaultWrapper;
+    }
+
+    /**
+     * Makes a <tt>TemplateModel</tt> out of a non-<tt>TemplateModel</tt> object
+     * with the default wrapper.
+     */
+    public TemplateModel wrap(Object obj) throws TemplateModelException {
+        if (obj instanceof TemplateModel) return (TemplateModel) obj;
+        return defaultWrapper.wrap(obj);
+    }
+
+    /**
+     * @return the model of the node, created on the first access.
+     */
+    public NodeModel wrapNode(Node node) throws RepositoryException {
+        String path = node.getPath();
+        NodeModel model = nodeModels.get(path);
+        if (model == null) {
+            model = new NodeModel(node, this);
+            nodeModels.put(path, model);
+        }
+        return model;
+    }
+
+    /**
+     * Resolves a node by identifier. The nodes are cached for the render, so a node
+     * referenced many times is loaded only once.
+     */
+    public Node getNodeByIdentifier(Session session, String identifier) throws RepositoryException {
+        Node node = nodesByIdentifier.get(identifier);
+        if (node == null) {
+            node = session.getNodeByIdentifier(identifier);
+            nodesByIdentifier.put(identifier, node);
+        }
+        return node;
+    }
+
+    /**
+     * @return the string model of the property, created on the first access. Multi value
+     *         properties are wrapped as sequences.
+     */
+    public TemplateModel wrapProperty(Property property) throws RepositoryException {
+        String path = property.getPath();
+        TemplateModel model = propertyModels.get(path);
+        if (model == null) {
+            if (property.isMultiple()) {
+                model = new PropertyListModel(property);
+            } else {
+                model = new PropertyModel(property);
+            }
+            propertyModels.put(path, model);
+        }
+        return model;
+    }
+
+    /**
+     * @return the typed model of the property (number, date or boolean by the
+     *         property type), created on the first access. Multi value properties
+     *         are wrapped as sequences of typed models.
+     */
+    public TemplateModel wrapTypedProperty(Property property) throws RepositoryException {
+        String path = property.getPath();
+        TemplateModel model = typedPropertyModels.get(path);
+        if (model == null) {
+            if (property.isMultiple()) {
+                model = new PropertyListModel(property, true);
+            } else {
+                model = PropertyModel.newInstance(property);
+            }
+            typedPropertyModels.put(path, model);
+        }
+        return model;
+    }
+}
@@ -28,19 +28,64 @@ import java.util.ArrayList;
 
 /**
  * A wrapper for JCR node lists to support freemarker scripting.
+ * Nodes of an iterator are fetched only as far as the template reads them.
  */
 public class NodeListModel implements TemplateSequenceModel {
 
+    private Node parent;
+    private NodeIterator iterator;
     private List<Node> nodes;
+    private JcrObjectWrapper wrapper;
 
     public NodeListModel(List<Node> nodes) {
+        this(nodes, new JcrObjectWrapper());
+    }
+
+    public NodeListModel(List<Node> nodes, JcrObjectWrapper wrapper) {
         this.nodes = nodes;
+        this.wrapper = wrapper;
     }
 
     public NodeListModel(NodeIterator nodes) {
+        this(nodes, new JcrObjectWrapper());
+    }
+
+    public NodeListModel(NodeIterator nodes, JcrObjectWrapper wrapper) {
+        this.iterator = nodes;
+        this.nodes = new ArrayList<Node>();
+        this.wrapper = wrapper;
+    }
+
+    /**
+     * Creates a list of the child nodes of parent. The children are not
+     * enumerated until the list is accessed.
+     */
+    public NodeListModel(Node parent, JcrObjectWrapper wrapper) {
+        this.parent = parent;
         this.nodes = new ArrayList<Node>();
-        while (nodes.hasNext()) {
-            this.nodes.add(nodes.nextNode());
+        this.wrapper = wrapper;
+    }
+
+    private NodeIterator getIterator() throws TemplateModelException {
+        if (iterator == null && parent != null) {
+            try {
+                iterator = parent.getNodes();
+            } catch (RepositoryException e) {
+                throw new TemplateModelException(e);
+            }
+            parent = null;
+        }
+        return iterator;
+    }
+
+    /**
+     * Fetches nodes from the iterator until the list has more than index elements.
+     */
+    private void fetch(int index) throws TemplateModelException {
+        NodeIterator iter = getIterator();
+        if (iter == null) return;
+        while (nodes.size() <= index && iter.hasNext()) {
+            nodes.add(iter.nextNode());
         }
     }
 
@@ -54,8 +99,11 @@ public class NodeListModel implements TemplateSequenceModel {
      *         Template Language, so the usage of a bad index will not remain hidden.
      */
     public TemplateModel get(int index) throws TemplateModelException {
+        if (index < 0) return null;
+        fetch(index);
+        if (index >= nodes.size()) return null;
         try {
-            return new NodeModel(nodes.get(index));
+            return wrapper.wrapNode(nodes.get(index));
         } catch (RepositoryException e) {
             throw new TemplateModelException(e);
         }
@@ -65,6 +113,11 @@ public class NodeListModel implements TemplateSequenceModel {
      * @return the number of items in the list.
      */
     public int size() throws TemplateModelException {
+        NodeIterator iter = getIterator();
+        if (iter == null) return nodes.size();
+        long size = iter.getSize();
+        if (size != -1) return (int) size;
+        fetch(Integer.MAX_VALUE - 1);
         return nodes.size();
     }
 }
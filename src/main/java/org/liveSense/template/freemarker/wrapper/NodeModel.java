@@ -19,8 +19,8 @@ package org.liveSense.template.freemarker.wrapper;
 import freemarker.template.*;
 
 import javax.jcr.*;
-import java.util.List;
-import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * A wrapper for JCR nodes to support freemarker scripting.
@@ -29,10 +29,29 @@ public class NodeModel implements TemplateScalarModel, TemplateNodeModel, Templa
 
     private Node node;
     private NodeListModel nodeList;
+    private JcrObjectWrapper wrapper;
+    private Map<String, TemplateModel> values;
 
     public NodeModel(Node node) throws RepositoryException {
+        this(node, new JcrObjectWrapper());
+    }
+
+    /**
+     * @param wrapper the wrapper of the current render, used to wrap the related items.
+     */
+    public NodeModel(Node node, JcrObjectWrapper wrapper) throws RepositoryException {
         this.node = node;
-        this.nodeList = new NodeListModel(node.getNodes());
+        this.wrapper = wrapper;
+    }
+
+    /**
+     * The children are enumerated only when the template accesses them.
+     */
+    private NodeListModel getNodeList() {
+        if (nodeList == null) {
+            nodeList = new NodeListModel(node, wrapper);
+        }
+        return nodeList;
     }
 
     /**
@@ -41,7 +60,7 @@ public class NodeModel implements TemplateScalarModel, TemplateNodeModel, Templa
      */
     public TemplateNodeModel getParentNode() throws TemplateModelException {
         try {
-            return new NodeModel(node.getParent());
+            return wrapper.wrapNode(node.getParent());
         } catch (ItemNotFoundException infe) {
             return null;
         } catch (RepositoryException e) {
@@ -55,7 +74,7 @@ public class NodeModel implements TemplateScalarModel, TemplateNodeModel, Templa
      *         a leaf node.
      */
     public TemplateSequenceModel getChildNodes() throws TemplateModelException {
-        return this.nodeList;
+        return getNodeList();
     }
 
     /**
@@ -109,15 +128,21 @@ public class NodeModel implements TemplateScalarModel, TemplateNodeModel, Templa
      */
     public TemplateModel get(String key) throws TemplateModelException {
         if (key == null) return null;
+        if (values == null) {
+            values = new HashMap<String, TemplateModel>();
+        } else if (values.containsKey(key)) {
+            return values.get(key);
+        }
+        TemplateModel value = lookup(key);
+        values.put(key, value);
+        return value;
+    }
+
+    private TemplateModel lookup(String key) throws TemplateModelException {
         if (key.startsWith("@")) {
             try {
                 if (node.hasProperty(key.substring(1))) {
-                    if (node.getProperty(key.substring(1)).getDefinition().isMultiple()) {
-                        return new PropertyListModel(node.getProperty(key.substring(1)));
-                    }
-                    else {
-                        return new PropertyModel(node.getProperty(key.substring(1)));
-                    }
+                    return wrapper.wrapProperty(node.getProperty(key.substring(1)));
                 }
                 else return null;
             } catch (RepositoryException e) {
@@ -127,20 +152,21 @@ public class NodeModel implements TemplateScalarModel, TemplateNodeModel, Templa
         else {
             try {
                 if (node.hasNode(key)) {
-                    return new NodeModel(node.getNode(key));
+                    return wrapper.wrapNode(node.getNode(key));
                 }
                 else if (node.hasProperty(key) && node.getProperty(key).getType() == PropertyType.REFERENCE) {
-                    if (node.getProperty(key).getDefinition().isMultiple()) {
-                        List<Node> nodes = new ArrayList<Node>();
-                        for (Value value : node.getProperty(key).getValues()) {
-                            nodes.add(node.getSession().getNodeByUUID(value.getString()));
-                        }
-                        return new NodeListModel(nodes);
+                    Property property = node.getProperty(key);
+                    if (property.isMultiple()) {
+                        return new ReferenceListModel(property, wrapper);
                     }
                     else {
-                        return new NodeModel(node.getProperty(key).getNode());
+                        return wrapper.wrapNode(wrapper.getNodeByIdentifier(node.getSession(), property.getString()));
                     }
                 }
+                // Children and references named "typed" take precedence over the typed view
+                else if (TypedPropertiesModel.KEY.equals(key)) {
+                    return new TypedPropertiesModel(node, wrapper);
+                }
                 return null;
             } catch (RepositoryException e) {
                 throw new TemplateModelException(e);
@@ -166,14 +192,14 @@ public class NodeModel implements TemplateScalarModel, TemplateNodeModel, Templa
      *         Template Language, so the usage of a bad index will not remain hidden.
      */
     public TemplateModel get(int index) throws TemplateModelException {
-        return nodeList.get(index);
+        return getNodeList().get(index);
     }
 
     /**
      * @return the number of items in the list.
      */
     public int size() throws TemplateModelException {
-        return nodeList.size();
+        return getNodeList().size();
     }
 
     /**
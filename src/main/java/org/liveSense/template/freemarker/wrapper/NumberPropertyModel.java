@@ -0,0 +1,73 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.liveSense.template.freemarker.wrapper;
+
+import java.math.BigDecimal;
+
+import javax.jcr.Property;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+
+import freemarker.template.TemplateModelException;
+import freemarker.template.TemplateNumberModel;
+
+/**
+ * A wrapper for JCR LONG, DOUBLE and DECIMAL properties to support freemarker scripting.
+ * The value is read as a number, so there is no need for <code>?number</code>.
+ * The number is a BigDecimal, FreeMarker's default arithmetic engine converts
+ * any other number to BigDecimal through its string on every operation.
+ */
+public class NumberPropertyModel extends PropertyModel implements TemplateNumberModel {
+
+    private Number number;
+
+    public NumberPropertyModel(Property property) {
+        super(property);
+    }
+
+    public NumberPropertyModel(Value value) {
+        super(value);
+    }
+
+    /**
+     * Returns the numeric value. The return value must not be null.
+     *
+     * @return the {@link Number} instance associated with this number model.
+     */
+    public Number getAsNumber() throws TemplateModelException {
+        if (number != null) return number;
+        try {
+            Value value = getValue();
+            switch (value.getType()) {
+                case PropertyType.LONG:
+                    number = BigDecimal.valueOf(value.getLong());
+                    break;
+                case PropertyType.DECIMAL:
+                    number = value.getDecimal();
+                    break;
+                default:
+                    double d = value.getDouble();
+                    // NaN and infinity have no BigDecimal
+                    number = Double.isNaN(d) || Double.isInfinite(d) ? Double.valueOf(d) : BigDecimal.valueOf(d);
+            }
+            return number;
+        } catch (RepositoryException e) {
+            throw new TemplateModelException(e);
+        }
+    }
+}
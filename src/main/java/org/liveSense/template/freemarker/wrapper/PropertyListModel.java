@@ -19,7 +19,6 @@ package org.liveSense.template.freemarker.wrapper;
 import freemarker.template.TemplateModel;
 import freemarker.template.TemplateSequenceModel;
 import freemarker.template.TemplateModelException;
-import freemarker.template.SimpleScalar;
 
 import javax.jcr.Property;
 import javax.jcr.Value;
@@ -27,13 +26,25 @@ import javax.jcr.RepositoryException;
 
 /**
  * A wrapper for JCR multi value properties to support freemarker scripting.
+ * The elements are strings, or typed models if the list is typed.
  */
 public class PropertyListModel implements TemplateSequenceModel {
 
     private Value[] values;
+    private TemplateModel[] models;
+    private boolean typed;
 
     public PropertyListModel(Property property) throws RepositoryException {
+        this(property, false);
+    }
+
+    /**
+     * @param typed the elements are the typed models of {@link PropertyModel#newInstance(Value)}
+     */
+    public PropertyListModel(Property property, boolean typed) throws RepositoryException {
         this.values = property.getValues();
+        this.models = new TemplateModel[values.length];
+        this.typed = typed;
     }
 
     /**
@@ -46,11 +57,11 @@ public class PropertyListModel implements TemplateSequenceModel {
      *         Template Language, so the usage of a bad index will not remain hidden.
      */
     public TemplateModel get(int index) throws TemplateModelException {
-        try {
-            return new SimpleScalar(values[index].getString());
-        } catch (RepositoryException e) {
-            throw new TemplateModelException(e);
+        if (index < 0 || index >= values.length) return null;
+        if (models[index] == null) {
+            models[index] = typed ? PropertyModel.newInstance(values[index]) : new PropertyModel(values[index]);
         }
+        return models[index];
     }
 
     /**
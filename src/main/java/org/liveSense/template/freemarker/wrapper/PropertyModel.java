@@ -17,22 +17,78 @@
 package org.liveSense.template.freemarker.wrapper;
 
 import javax.jcr.Property;
+import javax.jcr.PropertyType;
 import javax.jcr.RepositoryException;
+import javax.jcr.Value;
 
 import freemarker.template.TemplateModelException;
 import freemarker.template.TemplateScalarModel;
 
 /**
- * A wrapper for JCR properties to support freemarker scripting.
+ * A wrapper for JCR properties to support freemarker scripting. The value is the string
+ * of the property, as <code>${node.@prop}</code> always printed it.
+ * Use {@link #newInstance(Property)} to get the typed model of LONG, DOUBLE,
+ * DECIMAL, DATE and BOOLEAN values, which are also numbers, dates and booleans in the template.
+ * FreeMarker prints numbers and dates through its formats, so the typed models are exposed only
+ * explicitly, by <code>node.typed.@prop</code> (see {@link TypedPropertiesModel}).
  */
 public class PropertyModel implements TemplateScalarModel {
 
     private Property property;
+    private Value value;
+    private String string;
 
     public PropertyModel(Property property) {
         this.property = property;
     }
 
+    public PropertyModel(Value value) {
+        this.value = value;
+    }
+
+    /**
+     * @return the typed model of the property value.
+     */
+    public static PropertyModel newInstance(Property property) throws RepositoryException {
+        switch (property.getType()) {
+            case PropertyType.LONG:
+            case PropertyType.DOUBLE:
+            case PropertyType.DECIMAL:
+                return new NumberPropertyModel(property);
+            case PropertyType.DATE:
+                return new DatePropertyModel(property);
+            case PropertyType.BOOLEAN:
+                return new BooleanPropertyModel(property);
+            default:
+                return new PropertyModel(property);
+        }
+    }
+
+    /**
+     * @return the typed model of the value.
+     */
+    public static PropertyModel newInstance(Value value) {
+        switch (value.getType()) {
+            case PropertyType.LONG:
+            case PropertyType.DOUBLE:
+            case PropertyType.DECIMAL:
+                return new NumberPropertyModel(value);
+            case PropertyType.DATE:
+                return new DatePropertyModel(value);
+            case PropertyType.BOOLEAN:
+                return new BooleanPropertyModel(value);
+            default:
+                return new PropertyModel(value);
+        }
+    }
+
+    protected Value getValue() throws RepositoryException {
+        if (value == null) {
+            value = property.getValue();
+        }
+        return value;
+    }
+
     /**
      * Returns the string representation of this model. In general, avoid
      * returning null. In compatibility mode the engine will convert
@@ -40,8 +96,10 @@ public class PropertyModel implements TemplateScalarModel {
      * throw an exception if you return null from this method.
      */
     public String getAsString() throws TemplateModelException {
+        if (string != null) return string;
         try {
-            return property.getString();
+            string = getValue().getString();
+            return string;
         } catch (RepositoryException e) {
             throw new TemplateModelException(e);
         }
@@ -0,0 +1,81 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.liveSense.template.freemarker.wrapper;
+
+import freemarker.template.TemplateModel;
+import freemarker.template.TemplateModelException;
+import freemarker.template.TemplateSequenceModel;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+
+/**
+ * A wrapper for JCR multi value reference properties to support freemarker scripting.
+ * A referenced node is resolved when its index is first accessed, through the identifier
+ * cache of the render, so the nodes the template does not read are never loaded and a node
+ * referenced many times is loaded once. JCR has no lookup of many identifiers at once,
+ * so the nodes are resolved one by one.
+ */
+public class ReferenceListModel implements TemplateSequenceModel {
+
+    private Session session;
+    private String[] identifiers;
+    private Node[] nodes;
+    private JcrObjectWrapper wrapper;
+
+    public ReferenceListModel(Property property, JcrObjectWrapper wrapper) throws RepositoryException {
+        Value[] values = property.getValues();
+        this.identifiers = new String[values.length];
+        for (int i = 0; i < values.length; i++) {
+            identifiers[i] = values[i].getString();
+        }
+        this.nodes = new Node[values.length];
+        this.session = property.getSession();
+        this.wrapper = wrapper;
+    }
+
+    /**
+     * Retrieves the i-th template model in this sequence.
+     *
+     * @return the item at the specified index, or <code>null</code> if
+     *         the index is out of bounds. Note that a <code>null</code> value is
+     *         interpreted by FreeMarker as "variable does not exist", and accessing
+     *         a missing variables is usually considered as an error in the FreeMarker
+     *         Template Language, so the usage of a bad index will not remain hidden.
+     */
+    public TemplateModel get(int index) throws TemplateModelException {
+        if (index < 0 || index >= identifiers.length) return null;
+        try {
+            if (nodes[index] == null) {
+                nodes[index] = wrapper.getNodeByIdentifier(session, identifiers[index]);
+            }
+            return wrapper.wrapNode(nodes[index]);
+        } catch (RepositoryException e) {
+            throw new TemplateModelException(e);
+        }
+    }
+
+    /**
+     * @return the number of items in the list.
+     */
+    public int size() throws TemplateModelException {
+        return identifiers.length;
+    }
+}
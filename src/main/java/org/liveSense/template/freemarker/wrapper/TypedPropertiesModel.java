@@ -0,0 +1,77 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.liveSense.template.freemarker.wrapper;
+
+import freemarker.template.TemplateHashModel;
+import freemarker.template.TemplateModel;
+import freemarker.template.TemplateModelException;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Typed view of the properties of a node, <code>node.typed.@prop</code> in the template.
+ * LONG, DOUBLE and DECIMAL properties are numbers, DATE properties are dates and BOOLEAN
+ * properties are booleans, so the template computes and formats them without parsing
+ * their string (<code>node.typed.@price * 2</code>, <code>node.typed.@created?string("yyyy")</code>).
+ * Printed directly they go through the <code>number_format</code> and <code>datetime_format</code>
+ * settings, unlike <code>${node.@prop}</code>, which prints the string of the property.
+ */
+public class TypedPropertiesModel implements TemplateHashModel {
+
+    public static final String KEY = "typed";
+
+    private Node node;
+    private JcrObjectWrapper wrapper;
+    private Map<String, TemplateModel> values;
+
+    public TypedPropertiesModel(Node node, JcrObjectWrapper wrapper) {
+        this.node = node;
+        this.wrapper = wrapper;
+    }
+
+    /**
+     * @param key the property name with <code>@</code> prefix
+     * @return the typed model of the property or null if there is no such property
+     */
+    public TemplateModel get(String key) throws TemplateModelException {
+        if (key == null || !key.startsWith("@")) return null;
+        if (values == null) {
+            values = new HashMap<String, TemplateModel>();
+        } else if (values.containsKey(key)) {
+            return values.get(key);
+        }
+        try {
+            String name = key.substring(1);
+            TemplateModel value = node.hasProperty(name) ? wrapper.wrapTypedProperty(node.getProperty(name)) : null;
+            values.put(key, value);
+            return value;
+        } catch (RepositoryException e) {
+            throw new TemplateModelException(e);
+        }
+    }
+
+    public boolean isEmpty() throws TemplateModelException {
+        try {
+            return !node.hasProperties();
+        } catch (RepositoryException e) {
+            throw new TemplateModelException(e);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.liveSense.service.email;
+
+import static org.junit.Assert.assertEquals;
+
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+
+import org.junit.Test;
+
+public class AddressNormalizerTest {
+
+	private AddressNormalizer normalizer = new AddressNormalizer("UTF-8", 100);
+
+	@Test
+	public void parsesAddressLists() throws Exception {
+		InternetAddress[] addresses = normalizer.normalize(new Object[] {"a@example.com, Bob <b@example.org>", new InternetAddress("c@example.net")});
+		assertEquals(3, addresses.length);
+		assertEquals("b@example.org", addresses[1].getAddress());
+		assertEquals("Bob", addresses[1].getPersonal());
+		assertEquals("example.org", AddressNormalizer.getDomain(addresses[1]));
+	}
+
+	@Test(expected = AddressException.class)
+	public void rejectsAddressWithoutDomain() throws Exception {
+		normalizer.parse("nodomain");
+	}
+
+	@Test(expected = AddressException.class)
+	public void rejectsSpaceSeparatedAddresses() throws Exception {
+		normalizer.parse("a@example.com b@example.com");
+	}
+
+	@Test(expected = AddressException.class)
+	public void rejectsFromCacheAgain() throws Exception {
+		try {
+			normalizer.parse("broken@");
+		} catch (AddressException e) {
+			// Not cached, fails again
+		}
+		normalizer.parse("broken@");
+	}
+}
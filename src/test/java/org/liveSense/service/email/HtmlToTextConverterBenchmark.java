@@ -0,0 +1,84 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.liveSense.service.email;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Plain text alternative of a newsletter like HTML mail by the built-in converters.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HtmlToTextConverterBenchmark {
+
+	/**
+	 * Number of articles in the mail
+	 */
+	@Param({"1", "20"})
+	public int articles;
+
+	private String html;
+	private HtmlToTextConverter tokenizer = new TokenizingHtmlToTextConverter();
+	private HtmlToTextConverter boilerpipe = new BoilerpipeHtmlToTextConverter();
+
+	@Setup
+	public void setup() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("<!DOCTYPE html><html><head><meta charset=\"UTF-8\"><title>Newsletter</title>")
+			.append("<style>body { font-family: Arial; } .button { color: #fff; }</style></head><body>")
+			.append("<table width=\"600\"><tr><td><img src=\"cid:logo.png\" alt=\"Logo\"></td>")
+			.append("<td><a href=\"http://example.com/web\">View in browser</a></td></tr></table>");
+		for (int i = 0; i < articles; i++) {
+			sb.append("<table width=\"600\"><tr><td><h2>Article title ").append(i).append("</h2>")
+				.append("<p>Lorem ipsum dolor sit amet, <b>consectetur</b> adipiscing elit, sed do eiusmod tempor incididunt ")
+				.append("ut labore et dolore magna aliqua. Ut enim ad minim veniam, quis nostrud exercitation ullamco laboris ")
+				.append("nisi ut aliquip ex ea commodo consequat. <a href=\"http://example.com/article/").append(i)
+				.append("\">Read more</a></p><ul><li>First point of article</li><li>Second point &amp; more</li></ul>")
+				.append("<p><a class=\"button\" href=\"http://example.com/buy/").append(i).append("\">Buy now</a></p></td></tr></table>");
+		}
+		sb.append("<table width=\"600\"><tr><td><p>You received this mail because you subscribed. ")
+			.append("<a href=\"http://example.com/unsubscribe\">Unsubscribe</a></p><p>Example Ltd, 1 Main street</p></td></tr></table>")
+			.append("</body></html>");
+		html = sb.toString();
+	}
+
+	@Benchmark
+	public String tokenizer() throws Exception {
+		return tokenizer.convert(html);
+	}
+
+	@Benchmark
+	public String boilerpipe() throws Exception {
+		return boilerpipe.convert(html);
+	}
+}
@@ -0,0 +1,105 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.liveSense.service.email;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.Reader;
+import java.io.StringReader;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+
+import org.apache.jackrabbit.commons.cnd.CndImporter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.liveSense.template.freemarker.wrapper.JcrTestRepository;
+
+public class MessageEnvelopeTest {
+
+	/**
+	 * The node types of an install before the envelope
+	 */
+	private static final String PREVIOUS_CND = "<email = 'http://livesense.org/email/1.0'>\n"
+			+ "<nt  = 'http://www.jcp.org/jcr/nt/1.0'>\n"
+			+ "[email:email] > nt:file\n"
+			+ "- 'nextTry'  (Long)\n"
+			+ "- 'retryCount' (Long)\n";
+
+	private JcrTestRepository repository;
+	private Session session;
+
+	@Before
+	public void setUp() throws Exception {
+		repository = new JcrTestRepository();
+		session = repository.login();
+		// The existing node types are not re-registered, like on the upgrade of an install
+		CndImporter.registerNodeTypes(new StringReader(PREVIOUS_CND), session);
+		Reader cnd = new FileReader(new File(System.getProperty("basedir", "."), "src/main/nodetypes/email.cnd"));
+		try {
+			CndImporter.registerNodeTypes(cnd, session, false);
+		} finally {
+			cnd.close();
+		}
+	}
+
+	@After
+	public void tearDown() {
+		session.logout();
+		repository.shutdown();
+	}
+
+	private Node createMail(String name) throws Exception {
+		Node mail = session.getRootNode().addNode(name, "email:email");
+		Node content = mail.addNode("jcr:content", "nt:resource");
+		content.setProperty("jcr:data", session.getValueFactory().createBinary(new ByteArrayInputStream("Subject: test\r\n\r\n".getBytes("US-ASCII"))));
+		return mail;
+	}
+
+	@Test
+	public void storesEnvelopeOnPreviousNodeType() throws Exception {
+		Node mail = createMail("mail");
+		assertNull(MessageEnvelope.readFrom(mail));
+
+		new MessageEnvelope("from@example.com", new String[] {"a@example.com", "b@Example.org"}, 100, 1).writeTo(mail);
+		session.save();
+
+		MessageEnvelope envelope = MessageEnvelope.readFrom(session.getNode("/mail"));
+		assertEquals("from@example.com", envelope.getEnvelopeFrom());
+		assertArrayEquals(new String[] {"a@example.com", "b@Example.org"}, envelope.getRecipients());
+		assertArrayEquals(new String[] {"example.com", "example.org"}, envelope.getRecipientDomains());
+		assertEquals(100, envelope.getSize());
+		assertEquals(1, envelope.getPriority());
+		assertTrue(session.getNode("/mail").isNodeType(MessageEnvelope.MIXIN_ENVELOPE));
+	}
+
+	@Test
+	public void storesDeadLetterReasonOnPreviousNodeType() throws Exception {
+		Node mail = createMail("dead");
+		mail.addMixin(JcrSpoolStore.MIXIN_DEAD_LETTER);
+		mail.setProperty(JcrSpoolStore.PROPERTY_DEAD_LETTER_REASON, "Unknown user");
+		session.save();
+		assertEquals("Unknown user", session.getNode("/dead").getProperty(JcrSpoolStore.PROPERTY_DEAD_LETTER_REASON).getString());
+	}
+}
@@ -0,0 +1,129 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.liveSense.service.email;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Enqueue throughput of the segment store with one and with concurrent enqueuers (sharing the fsyncs),
+ * and the reads of a message from the current and from a sealed segment.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SegmentSpoolStoreBenchmark {
+
+	private static final int SEGMENT_SIZE = 1024 * 1024;
+
+	private File directory;
+	private SegmentSpoolStore store;
+	private byte[] message;
+	private MessageEnvelope envelope;
+	private SpooledMail sealed;
+	private SpooledMail current;
+
+	@Setup(Level.Iteration)
+	public void setup() throws Exception {
+		directory = File.createTempFile("liveSense-spool-", "");
+		directory.delete();
+		store = new SegmentSpoolStore();
+		store.open(directory, SEGMENT_SIZE, 60000);
+
+		StringBuilder sb = new StringBuilder("Subject: benchmark\r\n\r\n");
+		while (sb.length() < 4096) {
+			sb.append("Lorem ipsum dolor sit amet, consectetur adipiscing elit.\r\n");
+		}
+		message = sb.toString().getBytes("US-ASCII");
+		envelope = new MessageEnvelope("from@example.com", new String[] {"to@example.com"}, message.length, 3);
+
+		// The first message is sealed by the large one, the last one is in the current segment
+		String sealedId = enqueue();
+		store.enqueue(new ByteArrayInputStream(new byte[SEGMENT_SIZE]), new MessageEnvelope(null, new String[] {"to@example.com"}, SEGMENT_SIZE, 5));
+		String currentId = enqueue();
+		sealed = store.claim(sealedId);
+		current = store.claim(currentId);
+	}
+
+	@TearDown(Level.Iteration)
+	public void tearDown() {
+		store.close();
+		FileUtils.deleteQuietly(directory);
+	}
+
+	private String enqueue() throws Exception {
+		return store.enqueue(new ByteArrayInputStream(message), envelope);
+	}
+
+	private static long read(SpooledMail mail) throws Exception {
+		InputStream in = mail.getContent().getInputStream();
+		try {
+			byte[] buffer = new byte[8192];
+			long length = 0;
+			for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+				length += n;
+			}
+			return length;
+		} finally {
+			in.close();
+		}
+	}
+
+	@Benchmark
+	@Threads(1)
+	public String enqueue1() throws Exception {
+		return enqueue();
+	}
+
+	@Benchmark
+	@Threads(8)
+	public String enqueue8() throws Exception {
+		return enqueue();
+	}
+
+	@Benchmark
+	@Threads(1)
+	public long readCurrent() throws Exception {
+		return read(current);
+	}
+
+	@Benchmark
+	@Threads(1)
+	public long readSealed() throws Exception {
+		return read(sealed);
+	}
+}
@@ -0,0 +1,319 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.liveSense.service.email;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SegmentSpoolStoreTest {
+
+	private static final int SEGMENT_SIZE = 1024;
+
+	private File directory;
+	private SegmentSpoolStore store;
+
+	@Before
+	public void setUp() throws Exception {
+		directory = File.createTempFile("liveSense-spool-", "");
+		directory.delete();
+		store = new SegmentSpoolStore();
+		store.open(directory, SEGMENT_SIZE, 60000);
+	}
+
+	@After
+	public void tearDown() {
+		store.close();
+		FileUtils.deleteQuietly(directory);
+	}
+
+	private void reopen() throws IOException {
+		store.close();
+		store = new SegmentSpoolStore();
+		store.open(directory, SEGMENT_SIZE, 60000);
+	}
+
+	private static byte[] message(String subject, int bodySize) throws IOException {
+		StringBuilder sb = new StringBuilder("Subject: ").append(subject).append("\r\n\r\n");
+		for (int i = 0; i < bodySize; i++) {
+			sb.append((char) ('a' + i % 26));
+		}
+		return sb.toString().getBytes("US-ASCII");
+	}
+
+	private String enqueue(byte[] message, long priority) throws Exception {
+		return store.enqueue(new ByteArrayInputStream(message), new MessageEnvelope("from@example.com", new String[] {"to@example.com"}, message.length, priority));
+	}
+
+	private static byte[] content(SpooledMail mail) throws IOException {
+		InputStream in = mail.getContent().getInputStream();
+		try {
+			return IOUtils.toByteArray(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	private List<String> claimIds() throws Exception {
+		List<String> ids = new ArrayList<String>();
+		for (SpooledMail mail : store.claim(100)) {
+			ids.add(mail.getId());
+		}
+		Collections.sort(ids);
+		return ids;
+	}
+
+	private File[] segmentFiles() {
+		File[] files = directory.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.startsWith("segment-");
+			}
+		});
+		Arrays.sort(files);
+		return files;
+	}
+
+	private File segmentFile(String id) {
+		long seq = Long.parseLong(id.substring(0, id.indexOf('-')));
+		return new File(directory, "segment-" + String.format("%019d", seq) + ".log");
+	}
+
+	private static long offset(String id) {
+		return Long.parseLong(id.substring(id.indexOf('-') + 1));
+	}
+
+	private static void write(File file, long position, byte[] bytes) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.seek(position);
+			raf.write(bytes);
+		} finally {
+			raf.close();
+		}
+	}
+
+	@Test
+	public void readsFramedRecords() throws Exception {
+		byte[] small = message("small", 100);
+		byte[] large = message("large", 3 * SEGMENT_SIZE);
+		byte[] urgent = message("urgent", 200);
+		String smallId = enqueue(small, 3);
+		String largeId = enqueue(large, 3);
+		String urgentId = enqueue(urgent, 1);
+		// The large message is stored alone in a segment
+		assertEquals(3, segmentFiles().length);
+
+		List<SpooledMail> mails = store.claim(10);
+		assertEquals(3, mails.size());
+		assertEquals(urgentId, mails.get(0).getId());
+		assertArrayEquals(urgent, content(mails.get(0)));
+		assertEquals(smallId, mails.get(1).getId());
+		assertArrayEquals(small, content(mails.get(1)));
+		assertEquals(largeId, mails.get(2).getId());
+		assertArrayEquals(large, content(mails.get(2)));
+		assertEquals("from@example.com", mails.get(0).getEnvelope().getEnvelopeFrom());
+		assertArrayEquals(new String[] {"to@example.com"}, mails.get(0).getEnvelope().getRecipients());
+		assertEquals(1, mails.get(0).getEnvelope().getPriority());
+		// Claimed mails are not returned again
+		assertTrue(store.claim(10).isEmpty());
+	}
+
+	@Test
+	public void claimsByIdOnlyWithoutLease() throws Exception {
+		String id = enqueue(message("a", 10), 3);
+		assertNotNull(store.claim(id));
+		assertNull(store.claim(id));
+		assertTrue(store.claim(10).isEmpty());
+		store.nack(id, 60000);
+		assertNull(store.claim(id));
+	}
+
+	@Test
+	public void cutsTornTailOfLastSegment() throws Exception {
+		String a = enqueue(message("a", 100), 3);
+		String b = enqueue(message("b", 100), 3);
+		File file = segmentFile(b);
+		long length = file.length();
+		store.close();
+		// An interrupted enqueue: the header and a part of the message
+		ByteBuffer header = ByteBuffer.allocate(16);
+		header.putInt(0x4d41494c).putInt(10).putLong(100);
+		write(file, length, header.array());
+		write(file, length + 16, new byte[20]);
+
+		reopen();
+		assertEquals(length, file.length());
+		List<String> expected = new ArrayList<String>(Arrays.asList(a, b));
+		Collections.sort(expected);
+		assertEquals(expected, claimIds());
+		// The next record is appended after the cut
+		String c = enqueue(message("c", 10), 3);
+		assertEquals(length, offset(c));
+	}
+
+	@Test
+	public void skipsCorruptRecordsOfSealedSegment() throws Exception {
+		List<String> ids = new ArrayList<String>();
+		for (int i = 0; i < 6; i++) {
+			ids.add(enqueue(message("mail" + i, 200), 3));
+		}
+		assertEquals(segmentFile(ids.get(0)), segmentFile(ids.get(2)));
+		File sealed = segmentFile(ids.get(0));
+		assertFalse(sealed.equals(segmentFile(ids.get(5))));
+		long length = sealed.length();
+		store.close();
+		// A changed byte of the first message, the second record is found again by its checksum
+		write(sealed, offset(ids.get(1)) - 9, new byte[] {'!'});
+		// A broken header of the third record, the rest of the segment is skipped
+		write(sealed, offset(ids.get(2)), new byte[] {0, 0, 0, 0});
+
+		reopen();
+		assertEquals(length, sealed.length());
+		List<String> expected = new ArrayList<String>(ids.subList(3, 6));
+		expected.add(ids.get(1));
+		Collections.sort(expected);
+		assertEquals(expected, claimIds());
+		File[] corrupt = new File(directory, "corrupt").listFiles();
+		Arrays.sort(corrupt);
+		assertEquals(2, corrupt.length);
+		assertEquals(offset(ids.get(1)), corrupt[0].length());
+		assertEquals(length - offset(ids.get(2)), corrupt[1].length());
+	}
+
+	@Test
+	public void replaysIndex() throws Exception {
+		String acked = enqueue(message("acked", 10), 3);
+		String retried = enqueue(message("retried", 10), 3);
+		String delayed = enqueue(message("delayed", 10), 3);
+		String waiting = enqueue(message("waiting", 10), 3);
+		assertEquals(4, store.claim(10).size());
+		store.ack(acked);
+		store.nack(retried, 0);
+		store.nack(delayed, 60000);
+		store.deadLetter(waiting, "test");
+		assertTrue(new File(directory, "dead/" + waiting + ".eml").isFile());
+
+		reopen();
+		assertEquals(2, store.count());
+		List<SpooledMail> mails = store.claim(10);
+		assertEquals(1, mails.size());
+		assertEquals(retried, mails.get(0).getId());
+		assertEquals(1, mails.get(0).getRetryCount());
+		assertNull(store.claim(delayed));
+	}
+
+	@Test
+	public void deletesAckedSegments() throws Exception {
+		List<String> ids = new ArrayList<String>();
+		for (int i = 0; i < 6; i++) {
+			ids.add(enqueue(message("mail" + i, 200), 3));
+		}
+		File first = segmentFile(ids.get(0));
+		File last = segmentFile(ids.get(5));
+		for (String id : ids) {
+			if (segmentFile(id).equals(first))
+				store.ack(id);
+		}
+		// The current segment is not deleted even if it's acked
+		store.ack(ids.get(5));
+		store.run();
+		assertFalse(first.exists());
+		assertTrue(last.exists());
+
+		reopen();
+		List<String> expected = new ArrayList<String>();
+		for (String id : ids.subList(0, 5)) {
+			if (!segmentFile(id).equals(first))
+				expected.add(id);
+		}
+		Collections.sort(expected);
+		assertEquals(expected, claimIds());
+	}
+
+	@Test
+	public void sharesSyncs() throws Exception {
+		SegmentSpoolStore.LogFile file = new SegmentSpoolStore.LogFile(new File(directory, "test.log"));
+		try {
+			file.write(ByteBuffer.wrap(new byte[10]), 0);
+			file.written = 10;
+			file.write(ByteBuffer.wrap(new byte[10]), 10);
+			file.written = 20;
+			file.sync(10);
+			// The first sync covered the second write
+			file.sync(20);
+			assertEquals(1, file.getSyncs());
+		} finally {
+			file.close();
+		}
+	}
+
+	@Test
+	public void enqueuesConcurrently() throws Exception {
+		final Set<String> ids = Collections.synchronizedSet(new HashSet<String>());
+		final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+		Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; t++) {
+			final int thread = t;
+			threads[t] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						for (int i = 0; i < 25; i++) {
+							ids.add(enqueue(message("mail" + thread + "-" + i, 100 + i), 3));
+						}
+					} catch (Throwable th) {
+						errors.add(th);
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertTrue(errors.toString(), errors.isEmpty());
+		assertEquals(200, ids.size());
+
+		reopen();
+		assertEquals(200, store.count());
+		for (SpooledMail mail : store.claim(200)) {
+			assertEquals(mail.getEnvelope().getSize(), content(mail).length);
+		}
+	}
+}
@@ -0,0 +1,59 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.liveSense.service.email;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class TransferEncodingSelectorTest {
+
+	private static String repeat(char c, int count) {
+		StringBuilder sb = new StringBuilder(count);
+		for (int i = 0; i < count; i++) {
+			sb.append(c);
+		}
+		return sb.toString();
+	}
+
+	@Test
+	public void keepsAsciiWith7bit() {
+		assertEquals(TransferEncodingSelector.ENCODING_7BIT,
+				TransferEncodingSelector.selectEncoding("<p class=\"x\">\n<a href=\"http://x\">Hello</a>\n</p>", "UTF-8", false));
+		assertEquals(TransferEncodingSelector.ENCODING_7BIT, TransferEncodingSelector.selectEncoding("1+1=2\r\n", "UTF-8", true));
+	}
+
+	@Test
+	public void encodesLongLines() {
+		String html = "<p>" + repeat('a', 1000) + "</p>";
+		assertEquals(TransferEncodingSelector.ENCODING_QUOTED_PRINTABLE, TransferEncodingSelector.selectEncoding(html, "UTF-8", false));
+		assertEquals(TransferEncodingSelector.ENCODING_QUOTED_PRINTABLE, TransferEncodingSelector.selectEncoding(html, "UTF-8", true));
+	}
+
+	@Test
+	public void encodesNulAndBareCr() {
+		assertEquals(TransferEncodingSelector.ENCODING_QUOTED_PRINTABLE, TransferEncodingSelector.selectEncoding("Hello\u0000world", "UTF-8", true));
+		assertEquals(TransferEncodingSelector.ENCODING_QUOTED_PRINTABLE, TransferEncodingSelector.selectEncoding("Hello\rworld", "UTF-8", true));
+	}
+
+	@Test
+	public void encodesNonAsciiText() {
+		assertEquals(TransferEncodingSelector.ENCODING_8BIT, TransferEncodingSelector.selectEncoding("\u00c1rv\u00edzt\u0171r\u0151 t\u00fck\u00f6rf\u00far\u00f3g\u00e9p", "UTF-8", true));
+		assertEquals(TransferEncodingSelector.ENCODING_QUOTED_PRINTABLE, TransferEncodingSelector.selectEncoding("Hello vil\u00e1g, <a href=\"http://x\">link</a>", "UTF-8", false));
+		assertEquals(TransferEncodingSelector.ENCODING_BASE64, TransferEncodingSelector.selectEncoding("\u0417\u0434\u0440\u0430\u0432\u0441\u0442\u0432\u0443\u0439, \u043c\u0438\u0440", "UTF-8", false));
+	}
+}
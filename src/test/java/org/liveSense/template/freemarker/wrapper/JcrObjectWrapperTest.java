@@ -0,0 +1,82 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.liveSense.template.freemarker.wrapper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import freemarker.template.Configuration;
+import freemarker.template.Template;
+
+public class JcrObjectWrapperTest {
+
+    private JcrTestRepository repository;
+    private Session session;
+    private Node node;
+
+    @Before
+    public void setUp() throws Exception {
+        repository = new JcrTestRepository();
+        session = repository.login();
+        node = session.getRootNode().addNode("article", "nt:unstructured");
+        node.setProperty("title", "Title");
+        session.save();
+    }
+
+    @After
+    public void tearDown() {
+        session.logout();
+        repository.shutdown();
+    }
+
+    private String render(String source, Map<String, Object> bindings, JcrObjectWrapper wrapper) throws Exception {
+        Template template = new Template("test", new StringReader(source), new Configuration());
+        StringWriter out = new StringWriter();
+        template.process(bindings, out, wrapper);
+        return out.toString();
+    }
+
+    @Test
+    public void variableNodesKeepBeanAccess() throws Exception {
+        JcrObjectWrapper wrapper = new JcrObjectWrapper();
+        Map<String, Object> bindings = new HashMap<String, Object>();
+        bindings.put("n", node);
+        bindings.put("list", Collections.singletonList(node));
+        bindings.put("node", wrapper.wrapNode(node));
+        assertEquals("/article article /article Title", render("${n.path} ${n.name} ${list[0].path} ${node.@title}", bindings, wrapper));
+    }
+
+    @Test
+    public void modelsAreMemoised() throws Exception {
+        JcrObjectWrapper wrapper = new JcrObjectWrapper();
+        assertSame(wrapper.wrapNode(node), wrapper.wrapNode(session.getNode("/article")));
+        assertSame(wrapper.wrapNode(node).get("@title"), wrapper.wrapNode(node).get("@title"));
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.liveSense.template.freemarker.wrapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.jackrabbit.core.RepositoryImpl;
+import org.apache.jackrabbit.core.config.RepositoryConfig;
+
+/**
+ * In memory Jackrabbit repository of the tests and benchmarks.
+ */
+public class JcrTestRepository {
+
+    private final File home;
+    private final RepositoryImpl repository;
+
+    public JcrTestRepository() throws IOException, RepositoryException {
+        home = File.createTempFile("liveSense-jcr-", "");
+        home.delete();
+        home.mkdirs();
+        InputStream config = JcrTestRepository.class.getResourceAsStream("repository.xml");
+        try {
+            repository = RepositoryImpl.create(RepositoryConfig.create(config, home.getAbsolutePath()));
+        } finally {
+            config.close();
+        }
+    }
+
+    public Session login() throws RepositoryException {
+        return repository.login(new SimpleCredentials("admin", "admin".toCharArray()));
+    }
+
+    public void shutdown() {
+        repository.shutdown();
+        FileUtils.deleteQuietly(home);
+    }
+}
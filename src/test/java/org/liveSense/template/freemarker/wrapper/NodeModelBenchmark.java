@@ -0,0 +1,94 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.liveSense.template.freemarker.wrapper;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import freemarker.template.TemplateModel;
+
+/**
+ * Property reads through NodeModel on nodes of different width. Only the constructor and the
+ * hash access are used, so the same benchmark runs against the eager wrapper for comparison.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NodeModelBenchmark {
+
+    @Param({"10", "500"})
+    public int children;
+
+    private JcrTestRepository repository;
+    private Session session;
+    private Node parent;
+    private Node child;
+
+    @Setup
+    public void setup() throws Exception {
+        repository = new JcrTestRepository();
+        session = repository.login();
+        parent = session.getRootNode().addNode("parent", "nt:unstructured");
+        parent.setProperty("title", "Parent");
+        for (int i = 0; i < children; i++) {
+            Node node = parent.addNode("child" + i, "nt:unstructured");
+            node.setProperty("title", "Child " + i);
+        }
+        session.save();
+        child = parent.getNode("child0");
+    }
+
+    @TearDown
+    public void tearDown() {
+        session.logout();
+        repository.shutdown();
+    }
+
+    /**
+     * <code>${parent.@title}</code>
+     */
+    @Benchmark
+    public TemplateModel property() throws Exception {
+        return new NodeModel(parent).get("@title");
+    }
+
+    /**
+     * <code>${child?parent.@title}</code>
+     */
+    @Benchmark
+    public TemplateModel parentProperty() throws Exception {
+        return ((NodeModel) new NodeModel(child).getParentNode()).get("@title");
+    }
+}
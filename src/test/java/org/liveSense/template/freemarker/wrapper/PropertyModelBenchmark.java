@@ -0,0 +1,120 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.liveSense.template.freemarker.wrapper;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import freemarker.template.Configuration;
+import freemarker.template.Template;
+
+/**
+ * Template loops over numeric and date properties, read as strings and parsed by the
+ * built-ins or read as typed values through <code>node.typed</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PropertyModelBenchmark {
+
+    private static final String LOOP = "<#list 1..100 as i>";
+
+    private JcrTestRepository repository;
+    private Session session;
+    private Node node;
+    private Template stringNumber;
+    private Template typedNumber;
+    private Template stringDate;
+    private Template typedDate;
+
+    @Setup
+    public void setup() throws Exception {
+        repository = new JcrTestRepository();
+        session = repository.login();
+        node = session.getRootNode().addNode("product", "nt:unstructured");
+        node.setProperty("price", 1234L);
+        node.setProperty("created", Calendar.getInstance());
+        session.save();
+
+        Configuration configuration = new Configuration();
+        stringNumber = template(configuration, "<#assign s = 0>" + LOOP + "<#assign s = s + node.@price?number></#list>${s?c}");
+        typedNumber = template(configuration, "<#assign s = 0>" + LOOP + "<#assign s = s + node.typed.@price></#list>${s?c}");
+        stringDate = template(configuration, LOOP + "${node.@created?datetime(\"yyyy-MM-dd'T'HH:mm:ss.SSSXXX\")?string(\"yyyy\")}</#list>");
+        typedDate = template(configuration, LOOP + "${node.typed.@created?string(\"yyyy\")}</#list>");
+    }
+
+    private static Template template(Configuration configuration, String source) throws Exception {
+        return new Template("benchmark", new StringReader(source), configuration);
+    }
+
+    @TearDown
+    public void tearDown() {
+        session.logout();
+        repository.shutdown();
+    }
+
+    private String render(Template template) throws Exception {
+        JcrObjectWrapper wrapper = new JcrObjectWrapper();
+        Map<String, Object> bindings = new HashMap<String, Object>();
+        bindings.put("node", wrapper.wrapNode(node));
+        StringWriter out = new StringWriter();
+        template.process(bindings, out, wrapper);
+        return out.toString();
+    }
+
+    @Benchmark
+    public String stringNumber() throws Exception {
+        return render(stringNumber);
+    }
+
+    @Benchmark
+    public String typedNumber() throws Exception {
+        return render(typedNumber);
+    }
+
+    @Benchmark
+    public String stringDate() throws Exception {
+        return render(stringDate);
+    }
+
+    @Benchmark
+    public String typedDate() throws Exception {
+        return render(typedDate);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.liveSense.template.freemarker.wrapper;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+
+import javax.jcr.Node;
+import javax.jcr.PropertyType;
+import javax.jcr.Session;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import freemarker.template.Configuration;
+import freemarker.template.Template;
+
+public class PropertyModelTest {
+
+    private JcrTestRepository repository;
+    private Session session;
+    private Node node;
+
+    @Before
+    public void setUp() throws Exception {
+        repository = new JcrTestRepository();
+        session = repository.login();
+        node = session.getRootNode().addNode("article", "nt:unstructured");
+        node.setProperty("id", 1234L);
+        node.setProperty("price", 12.5d);
+        node.setProperty("flag", true);
+        node.setProperty("ids", new String[] {"1234", "5678"}, PropertyType.LONG);
+        Calendar created = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        created.clear();
+        created.set(2014, Calendar.MARCH, 1, 12, 30, 0);
+        node.setProperty("created", created);
+        session.save();
+    }
+
+    @After
+    public void tearDown() {
+        session.logout();
+        repository.shutdown();
+    }
+
+    private String render(String source) throws Exception {
+        Template template = new Template("test", new StringReader(source), new Configuration());
+        JcrObjectWrapper wrapper = new JcrObjectWrapper();
+        Map<String, Object> bindings = new HashMap<String, Object>();
+        bindings.put("node", wrapper.wrapNode(node));
+        StringWriter out = new StringWriter();
+        template.process(bindings, out, wrapper);
+        return out.toString();
+    }
+
+    @Test
+    public void printsThePropertyString() throws Exception {
+        assertEquals("1234 12.5 true 5678 " + node.getProperty("created").getString(),
+                render("${node.@id} ${node.@price} ${node.@flag} ${node.@ids[1]} ${node.@created}"));
+    }
+
+    @Test
+    public void typedViewExposesValues() throws Exception {
+        assertEquals("1235 25 yes 2014 6912",
+                render("${(node.typed.@id + 1)?c} ${node.typed.@price * 2} <#if node.typed.@flag>yes</#if> "
+                        + "${node.typed.@created?string(\"yyyy\")} ${(node.typed.@ids[0] + node.typed.@ids[1])?c}"));
+    }
+
+    @Test
+    public void childNamedTypedTakesPrecedence() throws Exception {
+        node.addNode("typed", "nt:unstructured").setProperty("id", "child");
+        session.save();
+        assertEquals("child", render("${node.typed.@id}"));
+    }
+}
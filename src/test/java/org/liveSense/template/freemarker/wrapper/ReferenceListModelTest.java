@@ -0,0 +1,71 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.liveSense.template.freemarker.wrapper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+import javax.jcr.Value;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReferenceListModelTest {
+
+    private JcrTestRepository repository;
+    private Session session;
+    private Node node;
+
+    @Before
+    public void setUp() throws Exception {
+        repository = new JcrTestRepository();
+        session = repository.login();
+        Node products = session.getRootNode().addNode("products", "nt:unstructured");
+        Node[] product = new Node[2];
+        for (int i = 0; i < product.length; i++) {
+            product[i] = products.addNode("product" + i, "nt:unstructured");
+            product[i].addMixin("mix:referenceable");
+        }
+        session.save();
+        node = session.getRootNode().addNode("mail", "nt:unstructured");
+        node.setProperty("products", new Value[] {
+                session.getValueFactory().createValue(product[0]),
+                session.getValueFactory().createValue(product[1]),
+                session.getValueFactory().createValue(product[0])});
+        session.save();
+    }
+
+    @After
+    public void tearDown() {
+        session.logout();
+        repository.shutdown();
+    }
+
+    @Test
+    public void resolvesReferencesOnAccess() throws Exception {
+        JcrObjectWrapper wrapper = new JcrObjectWrapper();
+        ReferenceListModel list = (ReferenceListModel) wrapper.wrapNode(node).get("products");
+        assertEquals(3, list.size());
+        assertEquals("/products/product1", ((NodeModel) list.get(1)).getAsString());
+        assertSame(list.get(0), list.get(2));
+        assertNull(list.get(3));
+    }
+}